@@ -0,0 +1,80 @@
+package de.deadmist.deadSimpleHttp.handlers;
+
+import de.deadmist.deadSimpleHttp.errors.RequestException;
+import de.deadmist.deadSimpleHttp.structures.Request;
+import de.deadmist.deadSimpleHttp.structures.Response;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Interface for RequestHandlers that answer asynchronously<br>
+ * The handler returns a future right away and completes it once the response is ready, e.g. when a call to another
+ * service returns. No thread is held while the handler waits, the server sends the response when the future completes.
+ * If the future completes exceptionally a 500 Internal Server Error is sent.
+ * <p>
+ * Async handlers are registered like every other handler:
+ * <pre>
+ * server.addHandler("^/user$", (AsyncRequestHandler) request -&gt; client.fetchUser(request.getQueryString())
+ *         .thenApply(user -&gt; new Response(user.toJson())));
+ * </pre>
+ * A handler that works with callbacks completes a {@link CompletableFuture} from its callback.
+ * {@link #of(RequestHandler)} adapts a synchronous handler, {@link #processRequest(Request)} waits for the response
+ * where a synchronous answer is needed.
+ * </p>
+ *
+ * @author Deadmist
+ */
+@FunctionalInterface
+public interface AsyncRequestHandler extends RequestHandler {
+
+    /**
+     * Starts processing the request, must not block
+     *
+     * @param request Request as received from the client
+     * @return Future that is completed with the response to be send to the client
+     */
+    CompletableFuture<Response> processRequestAsync(Request request);
+
+    /**
+     * Processes the request and waits for the response
+     *
+     * @param request Request as received from the client
+     * @return Response to be send to the client
+     * @throws RequestException If the future completes with a RequestException or the thread is interrupted
+     */
+    @Override
+    default Response processRequest(Request request) throws RequestException {
+        try {
+            return processRequestAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RequestException) throw (RequestException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Adapts a synchronous handler, the returned future is completed when the handler returns
+     *
+     * @param handler The handler
+     * @return The handler itself if it already is asynchronous, otherwise an adapter
+     */
+    static AsyncRequestHandler of(final RequestHandler handler) {
+        if (handler instanceof AsyncRequestHandler) return (AsyncRequestHandler) handler;
+        return request -> {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            try {
+                future.complete(handler.processRequest(request));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        };
+    }
+}
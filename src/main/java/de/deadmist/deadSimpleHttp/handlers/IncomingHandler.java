@@ -2,94 +2,564 @@ package de.deadmist.deadSimpleHttp.handlers;
 
 import de.deadmist.deLog.Logger;
 import de.deadmist.deadSimpleHttp.errors.RequestException;
+import de.deadmist.deadSimpleHttp.routing.Router;
 import de.deadmist.deadSimpleHttp.structures.Request;
+import de.deadmist.deadSimpleHttp.structures.RequestParser;
 import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.structures.ResponseEncoder;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+import de.deadmist.deadSimpleHttp.util.Compression;
 import de.deadmist.deadSimpleHttp.util.StandardResponses;
 
+import de.deadmist.deadSimpleHttp.server.AdmissionControl;
+import de.deadmist.deadSimpleHttp.server.ConnectionTimeouts;
+import de.deadmist.deadSimpleHttp.server.ServerSettings;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * This class handles incoming connections and matches them to handlers that process them
+ * This class handles incoming connections and matches them to handlers that process them<br>
+ * It is run on a worker thread of the server, see {@link de.deadmist.deadSimpleHttp.server.WorkerPool WorkerPool}
+ * <p>
+ * Connections are kept open for further requests as long as client and {@link ServerSettings} allow it.
+ * Clients may pipeline requests, i.e. send several requests without waiting for the responses.
+ * The requests are answered in order and responses are only flushed once no further request is waiting,
+ * so the responses to a batch of pipelined requests are sent together.
+ * </p>
+ * <p>
+ * The response of an {@link AsyncRequestHandler} is written once its future completes. With an executor for the
+ * workers this worker is released in the meantime, the connection continues on a worker once the response is
+ * complete. With {@link ConnectionTimeouts} the response has to complete within the handler timeout, otherwise
+ * the client gets a 504 Gateway Timeout.
+ * </p>
+ * <p>
+ * With an {@link AdmissionControl} every request waits for a free slot before its handler runs. Requests that get
+ * none are answered with a 503 Service Unavailable and the connection is closed.
+ * </p>
+ * <p>
+ * With {@link ConnectionTimeouts} slow and idle clients are disconnected by the timer thread of the server, which
+ * closes the socket this worker is blocked on. Responses are written in parts of WRITE_CHUNK_SIZE bytes, every part
+ * has to reach the client within the write timeout.
+ * </p>
  *
  * @author Jonas
  */
-public class IncomingHandler extends Thread {
+public class IncomingHandler implements Runnable {
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
 
     private Socket socket;
-    private HashMap<String, RequestHandler> handlers;
+    private Router router;
+    private ServerSettings settings;
+    private AdmissionControl admission;
+    private ConnectionTimeouts timeouts;
+    private Executor workers;
+
+    //State of the connection, kept while it waits for an asynchronous handler
+    private OutputStream stream;
+    private InputStream in;
+    private RequestParser parser;
+    private ResponseEncoder encoder;
+    //Received data that has not been parsed yet, e.g. pipelined requests
+    private ByteBuffer input;
+    private ConnectionTimeouts.Watch watch;
+    private int served;
+
+    /**
+     * Creates new IncomingHandler
+     *
+     * @param socket    Socket of the connection
+     * @param router    Router that selects the handler for each request
+     * @param settings  Settings of the server, e.g. for persistent connections
+     * @param admission Admission control of the server, the connection slot is given back when the connection is
+     *                  closed. Null to admit every request
+     * @param timeouts  Timeouts of the server, or null to only close connections after the keep-alive timeout
+     * @param workers   Workers of the server, the connection continues on one of them once an asynchronous handler
+     *                  completes its response. Null to wait for the response on the current thread
+     * @param watch     Watch of the connection if it was created by the server, e.g. for the TLS handshake, it has
+     *                  to close the socket when it expires. Null to create one from the timeouts
+     */
+    public IncomingHandler(Socket socket, Router router, ServerSettings settings, AdmissionControl admission,
+                           ConnectionTimeouts timeouts, Executor workers, ConnectionTimeouts.Watch watch) {
+        this.socket = socket;
+        this.router = router;
+        this.settings = settings;
+        this.admission = admission;
+        this.timeouts = timeouts;
+        this.workers = workers;
+        this.watch = watch;
+    }
 
     /**
      * Creates new IncomingHandler
      *
+     * @param socket    Socket of the connection
+     * @param router    Router that selects the handler for each request
+     * @param settings  Settings of the server, e.g. for persistent connections
+     * @param admission Admission control of the server, the connection slot is given back when the connection is
+     *                  closed. Null to admit every request
+     * @param timeouts  Timeouts of the server, or null to only close connections after the keep-alive timeout
+     * @param workers   Workers of the server, the connection continues on one of them once an asynchronous handler
+     *                  completes its response. Null to wait for the response on the current thread
+     */
+    public IncomingHandler(Socket socket, Router router, ServerSettings settings, AdmissionControl admission,
+                           ConnectionTimeouts timeouts, Executor workers) {
+        this(socket, router, settings, admission, timeouts, workers, null);
+    }
+
+    /**
+     * Creates new IncomingHandler that waits for the responses of asynchronous handlers on its thread
+     *
+     * @param socket    Socket of the connection
+     * @param router    Router that selects the handler for each request
+     * @param settings  Settings of the server, e.g. for persistent connections
+     * @param admission Admission control of the server, the connection slot is given back when the connection is
+     *                  closed. Null to admit every request
+     * @param timeouts  Timeouts of the server, or null to only close connections after the keep-alive timeout
+     */
+    public IncomingHandler(Socket socket, Router router, ServerSettings settings, AdmissionControl admission,
+                           ConnectionTimeouts timeouts) {
+        this(socket, router, settings, admission, timeouts, null);
+    }
+
+    /**
+     * Creates new IncomingHandler that admits every request
+     *
+     * @param socket   Socket of the connection
+     * @param router   Router that selects the handler for each request
+     * @param settings Settings of the server, e.g. for persistent connections
+     */
+    public IncomingHandler(Socket socket, Router router, ServerSettings settings) {
+        this(socket, router, settings, null, null);
+    }
+
+    /**
+     * Creates new IncomingHandler with default settings
+     *
      * @param socket   Socket of the connection
      * @param handlers HashMap with handlers, the best matching handler will be selected to handle the request
      */
     public IncomingHandler(Socket socket, HashMap<String, RequestHandler> handlers) {
-        this.socket = socket;
-        this.handlers = handlers;
+        this(socket, new Router(handlers), new ServerSettings());
+    }
+
+    /**
+     * Selects the handler with the longest match for the requested file and lets it process the request.<br>
+     * If no handler matches a {@link HandlerMissingHandler} is used, if the handler fails or returns no response a
+     * 500 Internal Server Error is returned.
+     * The response body might still read from the request body, close it once the response has been sent.
+     *
+     * @param request Request as received from the client
+     * @param router  Router that selects the handler
+     * @return Response to be send to the client
+     */
+    public static Response process(Request request, Router router) {
+        return process(request, route(request, router));
+    }
+
+    private static Response process(Request request, RequestHandler handler) {
+        Response response;
+        try {
+            response = handler.processRequest(request);
+        } catch (Exception e) {
+            //If something goes wrong handling this
+            Logger.e("INCOMING", "Exception in response handler", e);
+            return StandardResponses.create500();
+        }
+        if (response == null) {
+            Logger.e("INCOMING", "Handler returned no response for " + request.getFile());
+            return StandardResponses.create500();
+        }
+        return response;
+    }
+
+    /**
+     * Selects the handler for a request like {@link #process(Request, Router)}, but doesn't wait for the response
+     * of an {@link AsyncRequestHandler}.<br>
+     * Synchronous handlers are run right away and return a completed future. The future never completes
+     * exceptionally, if the handler fails it is completed with a 500 Internal Server Error.
+     *
+     * @param request Request as received from the client
+     * @param router  Router that selects the handler
+     * @return Future that is completed with the response to be send to the client
+     */
+    public static CompletableFuture<Response> processAsync(final Request request, Router router) {
+        RequestHandler handler = route(request, router);
+        if (!(handler instanceof AsyncRequestHandler)) {
+            return CompletableFuture.completedFuture(process(request, handler));
+        }
+
+        CompletableFuture<Response> future;
+        try {
+            future = ((AsyncRequestHandler) handler).processRequestAsync(request);
+        } catch (Exception e) {
+            Logger.e("INCOMING", "Exception in response handler", e);
+            return CompletableFuture.completedFuture(StandardResponses.create500());
+        }
+        if (future == null) {
+            Logger.e("INCOMING", "Async handler returned no future for " + request.getFile());
+            return CompletableFuture.completedFuture(StandardResponses.create500());
+        }
+        return future.handle((response, error) -> {
+            if (error != null || response == null) {
+                Logger.e("INCOMING", "Async handler failed for " + request.getFile(),
+                        error instanceof Exception ? (Exception) error : new Exception(error));
+                return StandardResponses.create500();
+            }
+            return response;
+        });
+    }
+
+    private static RequestHandler route(Request request, Router router) {
+        RequestHandler handler = router.route(request.getFile());
+
+        //In case we don't find a handler use a provided one alerting us
+        if (handler == null) {
+            handler = new HandlerMissingHandler(request.getFile());
+        }
+        return handler;
+    }
+
+    /**
+     * Compresses the body of a response with gzip if the settings enable it and the client accepts it.<br>
+     * Only bodies held in a byte array are compressed, streamed bodies are sent as they are.
+     * Call this before {@link #applyTransferEncoding(Request, Response)}.
+     *
+     * @param request  Request that was answered
+     * @param response Response to the request
+     * @param settings Settings of the server
+     */
+    public static void applyCompression(Request request, Response response, ServerSettings settings) {
+        int threshold = settings.getCompressionThreshold();
+        byte[] body = response.getBody();
+        if (threshold < 0 || body == null || body.length < threshold || !response.mayHaveBody()
+                || response.getHeader("Content-Encoding") != null || response.getHeader("Content-Range") != null
+                || !Compression.isCompressible(response.getHeader("Content-Type"))) {
+            return;
+        }
+
+        //The response depends on the Accept-Encoding header, even if this client gets it uncompressed
+        String vary = response.getHeader("Vary");
+        if (vary == null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase().contains("accept-encoding")) {
+            response.setHeader("Vary", vary + ", Accept-Encoding");
+        }
+        if (!Compression.accepts(request.getHeader("Accept-Encoding"), "gzip")) return;
+
+        byte[] compressed = Compression.gzip(body);
+        if (compressed.length >= body.length) return;
+        response.setBody(compressed);
+        response.setHeader("Content-Encoding", "gzip");
+        if (response.getHeader("Content-Length") != null) {
+            response.setHeader("Content-Length", String.valueOf(compressed.length));
+        }
+        //The compressed body is a different representation and needs a different ETag
+        String etag = response.getHeader("ETag");
+        if (etag != null && etag.endsWith("\"")) {
+            response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-gzip\"");
+        }
+    }
+
+    /**
+     * Decides how the end of a streamed body of unknown length is marked.<br>
+     * HTTP/1.1 clients receive the body in chunks, for HTTP/1.0 clients the body ends when the connection is closed.
+     * Call this before {@link #applyKeepAlive(Request, Response, int, ServerSettings)}.
+     *
+     * @param request  Request that was answered
+     * @param response Response to the request
+     */
+    public static void applyTransferEncoding(Request request, Response response) {
+        if (response.getContentLength() >= 0 || response.getHeader("Transfer-Encoding") != null
+                || !response.mayHaveBody()) return;
+
+        if ("1.0".equals(request.getHttpVersion())) {
+            response.setHeader("Connection", "close");
+        } else {
+            response.setHeader("Transfer-Encoding", "chunked");
+        }
+    }
+
+    /**
+     * Decides whether the connection is kept open after this response and sets the Connection header accordingly.<br>
+     * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+     * HTTP/1.0 connections only if the client sends "Connection: keep-alive".
+     * A handler can force the connection to close by setting "Connection: close" on its response.
+     *
+     * @param request  Request that was answered
+     * @param response Response to the request
+     * @param served   Number of requests served on this connection, including this one
+     * @param settings Settings of the server
+     * @return true if the connection should be kept open for the next request
+     */
+    public static boolean applyKeepAlive(Request request, Response response, int served, ServerSettings settings) {
+        String requested = request.getHeader("Connection");
+        boolean keepAlive;
+        if ("1.0".equals(request.getHttpVersion())) {
+            keepAlive = requested != null && requested.equalsIgnoreCase("keep-alive");
+        } else {
+            keepAlive = requested == null || !requested.equalsIgnoreCase("close");
+        }
+
+        keepAlive = keepAlive
+                && settings.isKeepAlive()
+                && served < settings.getMaxKeepAliveRequests()
+                && !"close".equalsIgnoreCase(response.getHeader("Connection"));
+
+        if (keepAlive) {
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=" + settings.getKeepAliveTimeout() / 1000
+                    + ", max=" + (settings.getMaxKeepAliveRequests() - served));
+        } else {
+            response.setHeader("Connection", "close");
+        }
+        return keepAlive;
+    }
+
+    private static void write(OutputStream stream, ByteBuffer buffer) throws IOException {
+        stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Writes head and body with gathering writes of at most WRITE_CHUNK_SIZE body bytes
+     */
+    private void writeGathering(ByteBuffer head, ByteBuffer body, ConnectionTimeouts.Watch watch) throws IOException {
+        ByteBuffer[] buffers = {head, body};
+        int end = body.limit();
+        while (head.hasRemaining() || body.position() < end) {
+            body.limit(Math.min(end, body.position() + WRITE_CHUNK_SIZE));
+            if (watch != null) watch.writing();
+            long written = socket.getChannel().write(buffers);
+            if (watch != null) {
+                watch.transferred(written);
+                watch.processing();
+            }
+        }
+    }
+
+    /**
+     * Transfers a body that is a region of a file straight to the socket, in parts of WRITE_CHUNK_SIZE bytes
+     */
+    private void transferFile(Response response, ConnectionTimeouts.Watch watch) throws IOException {
+        try (FileChannel file = response.getBodyFile()) {
+            long position = response.getBodyPosition();
+            long end = position + response.getContentLength();
+            while (position < end) {
+                if (watch != null) watch.writing();
+                long transferred = file.transferTo(position, Math.min(end - position, WRITE_CHUNK_SIZE), socket.getChannel());
+                if (watch != null) {
+                    watch.transferred(transferred);
+                    watch.processing();
+                }
+                if (transferred == 0 && position >= file.size()) throw new EOFException("File is shorter than the response");
+                position += transferred;
+            }
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.d("INCOMING", "Could not close timed out socket", e);
+        }
     }
 
     @Override
     public void run() {
+        parser = settings.createParser();
+        encoder = new ResponseEncoder();
+        input = BufferPool.getDefault().acquire(INPUT_BUFFER_SIZE);
+        if (watch == null && timeouts != null) watch = timeouts.watch(this::closeSocket);
+        try {
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            if (watch != null) {
+                in = watch.watchInput(in, parser);
+                out = watch.watchOutput(out, WRITE_CHUNK_SIZE);
+            }
+            stream = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        } catch (IOException e) {
+            Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Could not open socket streams", e);
+            close();
+            return;
+        }
+        input.flip();
+        serve(null, null);
+    }
+
+    /**
+     * Serves requests until the connection is closed, or until a handler completes its response asynchronously
+     *
+     * @param pending  Request whose response has just been completed, or null
+     * @param response Response to the pending request
+     */
+    private void serve(Request pending, Response response) {
+        boolean suspended = false;
         try {
-            Request request = new Request(socket.getInputStream());
-
-            String file = request.getFile();
-
-            Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Requested file: " + file);
-
-            //Find longest matching handler
-            int biggestMatch = 0;
-            int biggestRegex = 0;
-            RequestHandler biggestMatchingHandler = null;
-            for (String pattern : this.handlers.keySet()) {
-                Pattern p = Pattern.compile(pattern);
-                Matcher m = p.matcher(file);
-                if (m.find()) {
-                    int matchSize = m.group(0).length();
-                    if (matchSize >= biggestMatch && pattern.length() > biggestRegex) {
-                        biggestMatch = matchSize;
-                        biggestMatchingHandler = this.handlers.get(pattern);
-                        biggestRegex = pattern.length();
+            boolean keepAlive = pending == null || respond(pending, response);
+            while (keepAlive) {
+                if (watch != null) {
+                    //A pipelined request is not idle, the connection must not be closed to free the worker
+                    if (served > 0 && (input.hasRemaining() || in.available() > 0)) {
+                        watch.readingHeaders();
+                    } else {
+                        watch.awaitRequest(served == 0);
                     }
                 }
-            }
+                Request request;
+                try {
+                    request = parser.parse(in, input);
+                } catch (RequestException e) {
+                    Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Invalid request: " + e.getMessage());
+                    Response invalid = StandardResponses.create400(e.getMessage());
+                    invalid.setHeader("Connection", "close");
+                    write(stream, encoder.encodeHead(invalid));
+                    invalid.writeBody(stream);
+                    break;
+                } catch (SocketTimeoutException e) {
+                    Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Idle connection timed out");
+                    break;
+                } catch (IOException e) {
+                    if (served > 0) break; //Client closed the persistent connection
+                    throw e;
+                }
+                served++;
+                if (watch != null) watch.processing();
 
-            //In case we don't find a handler use a provided one alerting us
-            if (biggestMatch == 0 && biggestMatchingHandler == null) {
-                biggestMatchingHandler = new HandlerMissingHandler(file);
-            }
-            Response response;
-            try {
-                response = biggestMatchingHandler.processRequest(request);
-            } catch (Exception e) {
-                //If something goes wrong handling this
-                Logger.e("INCOMING", "Exception in response handler", e);
-                response = StandardResponses.create500();
-            }
-            try (OutputStream stream = socket.getOutputStream()) {
-                stream.write(response.getBytes());
-                stream.flush();
-                socket.close();
+                Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Requested file: " + request.getFile());
+
+                if (admission != null && !admission.acquire(settings.getPriority(request.getFile()))) {
+                    Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Server busy, shedding request");
+                    request.closeBody();
+                    Response busy = StandardResponses.create503(settings.getRetryAfter());
+                    busy.setHeader("Connection", "close");
+                    write(stream, encoder.encodeHead(busy));
+                    busy.writeBody(stream);
+                    break;
+                }
+                CompletableFuture<Response> future = processAsync(request, router);
+                if (timeouts != null) future = timeouts.limit(future);
+                if (!future.isDone() && workers != null) {
+                    //Responses to earlier pipelined requests must not wait for this one
+                    stream.flush();
+                    final Request waiting = request;
+                    suspended = true;
+                    future.thenAccept(completed -> resume(waiting, completed));
+                    return;
+                }
+                keepAlive = respond(request, future.join());
             }
 
         } catch (IOException e) {
             Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] IOException writing to socket", e);
             //  e.printStackTrace();
-        } catch (RequestException e) {
-            e.printStackTrace();
         } finally {
+            if (!suspended) close();
+        }
+    }
+
+    /**
+     * Continues serving the connection on a worker once an asynchronous handler has completed its response.<br>
+     * Runs on the thread that completed the response, which must not block, so without a free worker the
+     * connection is closed
+     */
+    private void resume(final Request request, final Response response) {
+        try {
+            workers.execute(() -> serve(request, response));
+        } catch (RejectedExecutionException e) {
+            Logger.w("INCOMING", "[" + socket.getRemoteSocketAddress() + "] No worker for the response, closing connection");
+            response.closeBody();
+            request.closeBody();
+            if (admission != null) admission.release();
+            close();
+        }
+    }
+
+    /**
+     * Writes the response to a request and gives back its admission slot
+     *
+     * @param request  The request
+     * @param response Response to the request
+     * @return true if the connection should be kept open for the next request
+     * @throws IOException If the response could not be written
+     */
+    private boolean respond(Request request, Response response) throws IOException {
+        boolean keepAlive;
+        try {
+            applyCompression(request, response, settings);
+            applyTransferEncoding(request, response);
+            keepAlive = applyKeepAlive(request, response, served, settings);
+
+            ByteBuffer head = encoder.encodeHead(response);
+            boolean large = socket.getChannel() != null && response.getContentLength() >= OUTPUT_BUFFER_SIZE
+                    && response.getHeader("Transfer-Encoding") == null;
+            if (request.getMethod().equals("HEAD")) {
+                write(stream, head);
+                response.closeBody();
+            } else if (large && (!response.isStreaming() || response.getBodyBuffer() != null)) {
+                //Large bodies in memory are written together with the head, without copying either
+                stream.flush();
+                ByteBuffer body = response.isStreaming()
+                        ? response.getBodyBuffer().duplicate() : ByteBuffer.wrap(response.getBody());
+                writeGathering(head, body, watch);
+            } else if (large && response.getBodyFile() != null) {
+                //Large files go straight from disk to the socket, small ones are cheaper to copy
+                write(stream, head);
+                stream.flush();
+                transferFile(response, watch);
+            } else {
+                //Streamed bodies go through the output buffer, never completely into memory
+                write(stream, head);
+                response.writeBody(stream);
+            }
+        } finally {
+            request.closeBody();
+            if (admission != null) admission.release();
+        }
+        //If the next pipelined request is already waiting its response is sent together with this one
+        if (!keepAlive || (!input.hasRemaining() && in.available() == 0)) {
+            stream.flush();
+        }
+
+        //Only wait for the keep-alive timeout between requests
+        if (keepAlive && watch == null) socket.setSoTimeout(settings.getKeepAliveTimeout());
+        return keepAlive;
+    }
+
+    private void close() {
+        //Deletes a partially received body
+        parser.reset();
+        BufferPool.getDefault().release(input);
+        //Responses to earlier pipelined requests might still be buffered
+        if (stream != null) {
             try {
-                socket.close();
+                stream.flush();
             } catch (IOException e) {
-                Logger.w("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Could not close socket");
-                e.printStackTrace();
+                Logger.d("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Could not flush responses", e);
             }
         }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.w("INCOMING", "[" + socket.getRemoteSocketAddress() + "] Could not close socket");
+            e.printStackTrace();
+        }
+        if (watch != null) watch.cancel();
+        if (admission != null) admission.closeConnection();
     }
 }
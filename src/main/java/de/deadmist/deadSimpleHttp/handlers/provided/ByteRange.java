@@ -0,0 +1,132 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes requested with the Range header, both ends inclusive.<br>
+ * Supports every form of RFC 7233 byte ranges: "bytes=0-499", "bytes=500-", "bytes=-500" (the last 500 bytes)
+ * and lists of them, e.g. "bytes=0-0,-1".
+ *
+ * @author Deadmist
+ */
+class ByteRange {
+
+    /**
+     * More ranges than this are not worth sending as parts, the whole file is sent instead
+     */
+    static final int MAX_RANGES = 64;
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the number of bytes in this range
+     *
+     * @return Length in bytes
+     */
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for this range
+     *
+     * @param total Length of the whole file
+     * @return e.g. "bytes 0-499/1234"
+     */
+    String contentRange(long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    /**
+     * Parses a Range header.<br>
+     * Overlapping and adjacent ranges are merged, the ranges are sorted by their start.
+     *
+     * @param header Content of the Range header
+     * @param length Length of the file
+     * @return The satisfiable ranges, an empty list if none is satisfiable (416 Range Not Satisfiable),
+     * or null if the header is invalid or asks for too many ranges and has to be ignored
+     */
+    static List<ByteRange> parse(String header, long length) {
+        int equals = header.indexOf('=');
+        if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes")) return null;
+
+        String[] specs = header.substring(equals + 1).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<ByteRange> ranges = new ArrayList<>();
+        boolean any = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            //Empty list elements are allowed
+            if (spec.isEmpty()) continue;
+            any = true;
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                //Suffix range, the last n bytes
+                long suffix = parseNumber(last);
+                if (suffix < 0) return null;
+                if (suffix == 0 || length == 0) continue;
+                ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+            } else {
+                long start = parseNumber(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : parseNumber(last);
+                if (start < 0 || end < 0 || end < start) return null;
+                if (start >= length) continue;
+                ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+            }
+        }
+        if (!any) return null;
+        return merge(ranges);
+    }
+
+    /**
+     * Parses a non-negative number, numbers too large for a long are clamped
+     *
+     * @param number Digits
+     * @return The number, or -1 if it contains something but digits
+     */
+    private static long parseNumber(String number) {
+        if (number.isEmpty()) return -1;
+        for (int i = 0; i < number.length(); i++) {
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') return -1;
+        }
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        Collections.sort(ranges, Comparator.comparingLong(range -> range.start));
+
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
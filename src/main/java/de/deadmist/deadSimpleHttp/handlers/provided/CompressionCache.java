@@ -0,0 +1,135 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.util.Compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps gzip compressed versions of files for a {@link FileHandler}, so every file is only compressed once.<br>
+ * Files are identified by their path and {@link Validators}, a changed file is compressed again and the outdated
+ * version is eventually evicted. The cache holds at most a fixed number of bytes, the least recently used files are
+ * evicted first.
+ * <p>
+ * Only files between 256 bytes and the maximum file size are compressed, smaller files don't get noticeably smaller.
+ * The cache is thread safe.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class CompressionCache {
+
+    private static final int MIN_FILE_SIZE = 256;
+    //Files that don't get smaller are remembered as well, so they are not compressed again
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+    private static final int INCOMPRESSIBLE_COST = 64;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+
+    //Access ordered, the first entry is the least recently used one
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits, misses;
+
+    /**
+     * Creates a cache, files up to 1/16 of the cache size are compressed
+     *
+     * @param maxBytes Maximum number of compressed bytes held in memory
+     */
+    public CompressionCache(long maxBytes) {
+        this(maxBytes, Math.max(1, maxBytes / 16));
+    }
+
+    /**
+     * Creates a cache
+     *
+     * @param maxBytes    Maximum number of compressed bytes held in memory
+     * @param maxFileSize Larger files are sent uncompressed
+     */
+    public CompressionCache(long maxBytes, long maxFileSize) {
+        if (maxBytes < 1) throw new IllegalArgumentException("Cache size must be positive");
+        this.maxBytes = maxBytes;
+        //Compressed in memory, has to fit into an array
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE - 64);
+    }
+
+    /**
+     * Returns the compressed file, compressing it if it is not cached yet
+     *
+     * @param file       The file
+     * @param validators Validators of the file
+     * @return The gzip compressed file, or null if the file is too small, too large or does not get smaller
+     */
+    byte[] get(Path file, Validators validators) {
+        if (validators.length < MIN_FILE_SIZE || validators.length > maxFileSize) return null;
+
+        String key = file.toAbsolutePath().normalize() + " " + validators.etag;
+        synchronized (this) {
+            byte[] compressed = entries.get(key);
+            if (compressed != null) {
+                hits++;
+                return compressed == INCOMPRESSIBLE ? null : compressed;
+            }
+            misses++;
+        }
+
+        byte[] compressed;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            compressed = Compression.gzip(data);
+            if (compressed.length >= data.length) compressed = INCOMPRESSIBLE;
+        } catch (IOException e) {
+            Logger.w("COMPRESSIONCACHE", "Could not compress " + file, e);
+            return null;
+        }
+
+        synchronized (this) {
+            byte[] previous = entries.put(key, compressed);
+            if (previous != null) size -= cost(previous);
+            size += cost(compressed);
+
+            Iterator<byte[]> iterator = entries.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                size -= cost(iterator.next());
+                iterator.remove();
+            }
+        }
+        return compressed == INCOMPRESSIBLE ? null : compressed;
+    }
+
+    private static long cost(byte[] compressed) {
+        return compressed == INCOMPRESSIBLE ? INCOMPRESSIBLE_COST : compressed.length;
+    }
+
+    /**
+     * Returns how many files were served from the cache
+     *
+     * @return Number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many files had to be compressed
+     *
+     * @return Number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of bytes held in memory
+     *
+     * @return Size of all compressed files
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,321 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.util.FileUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps frequently requested files in memory for a {@link FileHandler}.<br>
+ * Files up to a maximum size are loaded into direct (off-heap) buffers together with their response headers and
+ * validators, so a cache hit needs neither disk access nor a mime type lookup. The cache holds at most a fixed number of bytes,
+ * the least recently used files are evicted first.
+ * <p>
+ * A {@link WatchService} watches the base directory and all its subdirectories, files are dropped from the cache as
+ * soon as they are changed or deleted. Some platforms only poll for changes, there a changed file can be served from
+ * the cache for a few more seconds.
+ * </p>
+ * <p>
+ * The cache is thread safe. Call {@link #close()} to stop watching the directory.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class FileCache implements Closeable {
+
+    /**
+     * A cached file with its headers
+     */
+    static class Entry {
+        final ByteBuffer content;
+        final String contentType;
+        final String contentLength;
+        final Validators validators;
+
+        Entry(ByteBuffer content, String contentType, Validators validators) {
+            this.content = content;
+            this.contentType = contentType;
+            this.contentLength = String.valueOf(content.remaining());
+            this.validators = validators;
+        }
+    }
+
+    private final Path baseDir;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final WatchService watchService;
+
+    //Access ordered, the first entry is the least recently used one
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    //Incremented on every invalidation, files loaded while it changed might be outdated
+    private long generation;
+
+    private long hits, misses, evictions, invalidations;
+
+    /**
+     * Creates a cache for the files in a directory, files up to 1/16 of the cache size are cached
+     *
+     * @param baseDir  Directory the files are served from, the same as the FileHandlers base directory
+     * @param maxBytes Maximum number of bytes held in memory
+     * @throws IOException If the directory can not be watched
+     */
+    public FileCache(String baseDir, long maxBytes) throws IOException {
+        this(baseDir, maxBytes, Math.max(1, maxBytes / 16));
+    }
+
+    /**
+     * Creates a cache for the files in a directory
+     *
+     * @param baseDir     Directory the files are served from, the same as the FileHandlers base directory
+     * @param maxBytes    Maximum number of bytes held in memory
+     * @param maxFileSize Larger files are never cached
+     * @throws IOException If the directory can not be watched
+     */
+    public FileCache(String baseDir, long maxBytes, long maxFileSize) throws IOException {
+        if (maxBytes < 1) throw new IllegalArgumentException("Cache size must be positive");
+        this.baseDir = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(maxBytes, Integer.MAX_VALUE));
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(this.baseDir);
+
+        Thread watcher = new Thread(this::watch, "FileCache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns the cached file, loading it if it is not cached yet
+     *
+     * @param file The requested file
+     * @return The cached file, or null if it does not exist or can not be cached
+     */
+    Entry get(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        Entry entry = load(key);
+        if (entry == null) return null;
+
+        synchronized (this) {
+            //The file was changed while it was loaded, serve it this time but don't keep it
+            if (loadGeneration != generation) return entry;
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) size -= previous.content.capacity();
+            size += entry.content.capacity();
+            evict();
+        }
+        return entry;
+    }
+
+    private Entry load(Path file) {
+        try {
+            if (!file.startsWith(baseDir) || !Files.isRegularFile(file)) return null;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length > maxFileSize) return null;
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+                ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+                while (content.hasRemaining()) {
+                    if (channel.read(content) == -1) throw new EOFException("File changed while reading");
+                }
+                content.flip();
+                return new Entry(content.asReadOnlyBuffer(), FileUtils.getMimeType(file.toFile()),
+                        new Validators(length, lastModified));
+            }
+        } catch (IOException e) {
+            Logger.w("FILECACHE", "Could not cache " + file, e);
+            return null;
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            size -= iterator.next().content.capacity();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops a file, or every file below a directory, from the cache
+     *
+     * @param path File or directory
+     */
+    private synchronized void invalidate(Path path) {
+        generation++;
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(path)) {
+                size -= entry.getValue().content.capacity();
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops every file from the cache
+     */
+    public void invalidateAll() {
+        invalidate(baseDir);
+    }
+
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) throws IOException {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    //Events were lost, anything could have changed
+                    invalidate(dir);
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        registerTree(changed);
+                    } catch (IOException e) {
+                        Logger.w("FILECACHE", "Could not watch new directory " + changed, e);
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Returns how many requests were answered from the cache
+     *
+     * @return Number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many requests were not answered from the cache
+     *
+     * @return Number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns how many files were dropped to stay below the size limit
+     *
+     * @return Number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns how many files were dropped because they changed
+     *
+     * @return Number of invalidations
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of bytes held in memory
+     *
+     * @return Size of all cached files
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached files
+     *
+     * @return Number of files
+     */
+    public synchronized int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * Stops watching the directory and drops every file
+     *
+     * @throws IOException If the watch service could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FileCache{" +
+                "baseDir=" + baseDir +
+                ", files=" + entries.size() +
+                ", size=" + size +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", invalidations=" + invalidations +
+                '}';
+    }
+}
@@ -5,10 +5,17 @@ import de.deadmist.deadSimpleHttp.errors.RequestException;
 import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
 import de.deadmist.deadSimpleHttp.structures.Request;
 import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.util.Compression;
 import de.deadmist.deadSimpleHttp.util.FileUtils;
 import de.deadmist.deadSimpleHttp.util.StandardResponses;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * Provides provided handling of file requests.<br>
@@ -16,12 +23,31 @@ import java.io.*;
  * If the file could not be found a 404 File Not Found error page is generated<br>
  * <p>
  * Supported HTTP methods are GET and POST. However, POST form data is simply discarded.<br>
- * It also supports partial downloads via Range request header and 206 Partial Content response
+ * It also supports partial downloads via Range request header and 206 Partial Content response, including suffix
+ * ranges and multiple ranges, which are sent as multipart/byteranges.
+ * Every file is sent with ETag and Last-Modified headers, conditional requests for unchanged files are answered with
+ * 304 Not Modified.
+ * <p>
+ * Frequently requested files can be kept in memory by passing a {@link FileCache}, see
+ * {@link #FileHandler(String, FileCache)}.
+ * Large files can be served from memory mapped regions shared by all requests, see {@link #setMapThreshold(long)}.
+ * <p>
+ * Clients accepting compressed content get the precompressed sibling of a file if there is one, e.g. "app.js.br" or
+ * "app.js.gz" for "app.js". Other text files can be compressed on the fly, see {@link #setCompression(CompressionCache)}.
+ * Ranges are always sent from the uncompressed file.
  *
  * @author Deadmist
  */
 public class FileHandler implements RequestHandler {
     private String baseDir;
+    private FileCache cache;
+    private volatile long mapThreshold = -1;
+    private final MappedFiles mappedFiles = new MappedFiles(64);
+    private volatile boolean precompressed = true;
+    private volatile CompressionCache compression;
+
+    //Precompressed siblings by preference, brotli compresses better than gzip
+    private static final String[][] PRECOMPRESSED = {{"br", ".br"}, {"gzip", ".gz"}};
 
     /**
      * Constructs a new handler
@@ -32,6 +58,49 @@ public class FileHandler implements RequestHandler {
         this.baseDir = baseDir;
     }
 
+    /**
+     * Constructs a new handler that serves files from a cache
+     *
+     * @param baseDir The base directory where the handler looks for files
+     * @param cache   Cache for the files in the base directory, can be shared between handlers for the same directory
+     */
+    public FileHandler(String baseDir, FileCache cache) {
+        this.baseDir = baseDir;
+        this.cache = cache;
+    }
+
+    /**
+     * Serves files of at least the given size from memory mapped regions.<br>
+     * Concurrent downloads of the same file then share the operating system's page cache, which helps when many
+     * clients download parts of the same large file. The server sends these files from the mapping, not with sendfile.
+     * Regions larger than 256MB are always sent from disk. Truncating a file while it is mapped can crash the server
+     * on some platforms, only use this for files that are replaced rather than modified.
+     *
+     * @param mapThreshold Minimum size of mapped files in bytes, or -1 to disable mapping (the default)
+     */
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Enables or disables serving precompressed siblings of files, e.g. "style.css.gz" for "style.css" (default enabled)
+     *
+     * @param precompressed true to look for precompressed files
+     */
+    public void setPrecompressed(boolean precompressed) {
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Compresses text files without a precompressed sibling on the fly.<br>
+     * Every file is compressed once, the result is kept in the cache until the file changes or is evicted.
+     *
+     * @param compression Cache for the compressed files, or null to send them uncompressed (the default)
+     */
+    public void setCompression(CompressionCache compression) {
+        this.compression = compression;
+    }
+
 
     @Override
     public Response processRequest(Request request) throws RequestException {
@@ -52,106 +121,205 @@ public class FileHandler implements RequestHandler {
             requestedFile = new File(baseDir + File.separator + request.getFile());
         }
 
-        //Check if file exists and return a File Not Found if it doesn't
-        if (!requestedFile.exists()) {
-            Logger.i("FILEHANDLER", "File not found: " + requestedFile.getPath());
-            return StandardResponses.create404();
+        //The validators of a cached file are known without touching the disk
+        FileCache.Entry entry = cache != null ? cache.get(requestedFile.toPath()) : null;
+        Validators validators;
+        if (entry != null) {
+            validators = entry.validators;
+        } else {
+            //Check if file exists and return a File Not Found if it doesn't
+            validators = Validators.read(requestedFile);
+            if (validators == null) {
+                Logger.i("FILEHANDLER", "File not found: " + requestedFile.getPath());
+                return StandardResponses.create404();
+            }
         }
+        String contentType = entry != null ? entry.contentType : FileUtils.getMimeType(requestedFile);
 
         //Check if the client wants the whole file or only parts of it
-        String rangeHeader = request.parseHeaders().get("Range");
-        if (rangeHeader == null || rangeHeader.toLowerCase().equals("bytes=0-")) {
-            //Client wants whole file
-            return readFile(requestedFile);
-        } else {
-            //Client wants only part of a file
-            return readFile(requestedFile, rangeHeader);
+        String rangeHeader = request.getHeader("Range");
+        //A part of a changed file is useless to the client, it gets the whole file instead
+        if (rangeHeader != null && !validators.isRangeAllowed(request)) rangeHeader = null;
+        boolean wholeFile = rangeHeader == null || rangeHeader.toLowerCase().equals("bytes=0-");
+
+        //Text files might be sent compressed, caches have to store a version per Accept-Encoding
+        boolean compressible = (precompressed || compression != null) && Compression.isCompressible(contentType);
+        Response r = null;
+        if (compressible && wholeFile) {
+            r = createEncodedResponse(request, requestedFile, contentType, validators);
+        }
+
+        if (r == null) {
+            r = notModified(request, validators);
+        }
+        if (r == null) {
+            if (wholeFile) {
+                //Client wants whole file
+                r = entry != null ? createCachedResponse(entry) : readFile(requestedFile, contentType, validators);
+            } else {
+                //Client wants only part of a file
+                r = readFile(requestedFile, entry, contentType, rangeHeader, validators);
+            }
         }
+
+        if (compressible) r.setHeader("Vary", "Accept-Encoding");
+        return r;
     }
 
     /**
-     * Reads a file partially
+     * Confirms that the client already has the current version of a file, without sending the file again
      *
-     * @param requestedFile File to read
-     * @param rangeHeader   Content of the Range header, needed to figure out which part of the file to read
-     * @return Response containing the file
+     * @param request    Request for the file
+     * @param validators Validators of the file
+     * @return 304 Not Modified response, or null if the client does not have the current version
      */
-    private Response readFile(File requestedFile, String rangeHeader) {
-        //Get start and end point to read
-        int startByte, endByte, contentLenght;
-
-        //Eliminate the "bytes=" portion of the header leaving us with two numbers "start-end"
-        // or "start-" if no end is given
-        rangeHeader = rangeHeader.toLowerCase().replace("bytes=", "");
-        String[] ranges = rangeHeader.split("-");
-
-        if (ranges.length == 2) {
-            //Both start and end are given
-            startByte = Integer.parseInt(ranges[0]);
-            endByte = Integer.parseInt(ranges[1]);
-            if (endByte > requestedFile.length() - 1) endByte = (int) (requestedFile.length() - 1);
-        } else {
-            startByte = Integer.parseInt(ranges[0]);
-            endByte = (int) requestedFile.length() - 1;
-        }
+    private Response notModified(Request request, Validators validators) {
+        if (!request.getMethod().equals("GET") || !validators.isNotModified(request)) return null;
+        Response r = StandardResponses.create304();
+        validators.apply(r);
+        return r;
+    }
+
+    /**
+     * Sends a file compressed, if the client accepts it
+     *
+     * @param request       Request for the file
+     * @param requestedFile File to send
+     * @param contentType   Mimetype of the uncompressed file
+     * @param validators    Validators of the uncompressed file
+     * @return Response containing the compressed file, or null if it has to be sent uncompressed
+     */
+    private Response createEncodedResponse(Request request, File requestedFile, String contentType,
+                                           Validators validators) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) return null;
 
-        contentLenght = endByte - startByte + 1;
+        if (precompressed) {
+            for (String[] coding : PRECOMPRESSED) {
+                if (!Compression.accepts(acceptEncoding, coding[0])) continue;
+                File sibling = new File(requestedFile.getPath() + coding[1]);
 
-        Logger.d("FILEHANDLER", String.format("Received Range request for %s. Ranges: %d-%d",
-                requestedFile.getPath(), startByte, endByte));
+                FileCache.Entry entry = cache != null ? cache.get(sibling.toPath()) : null;
+                Validators siblingValidators;
+                if (entry != null) {
+                    siblingValidators = entry.validators;
+                } else {
+                    siblingValidators = Validators.read(sibling);
+                    if (siblingValidators == null) continue;
+                }
 
-        try (RandomAccessFile file = new RandomAccessFile(requestedFile, "r")) {
-            byte[] buffer = new byte[contentLenght];
+                Response r = notModified(request, siblingValidators);
+                if (r != null) return r;
+                if (entry != null) return encoded(createCachedResponse(entry), contentType, coding[0]);
+                try {
+                    r = createFileResponse(sibling, contentType, siblingValidators, 0, siblingValidators.length);
+                    return encoded(r, contentType, coding[0]);
+                } catch (IOException e) {
+                    //Deleted in the meantime, try the next coding
+                    Logger.d("FILEHANDLER", "Could not open precompressed file " + sibling.getPath(), e);
+                }
+            }
+        }
 
-            file.seek(startByte);
-            file.readFully(buffer);
+        CompressionCache compression = this.compression;
+        if (compression != null && Compression.accepts(acceptEncoding, "gzip")) {
+            byte[] compressed = compression.get(requestedFile.toPath(), validators);
+            if (compressed == null) return null;
 
-            Response r = new Response(buffer);
-            String mimetype = FileUtils.getMimeType(requestedFile);
-            String contentRange = String.format("bytes %d-%d/%d", startByte, endByte, requestedFile.length());
+            Validators encodedValidators = validators.encoded("gzip", compressed.length);
+            Response r = notModified(request, encodedValidators);
+            if (r != null) return r;
 
-            r.setStatus("206 Partial Content");
-            r.setHeader("Connection", "close");
-            r.setHeader("Content-Length", String.valueOf(contentLenght));
-            r.setHeader("Content-Range", contentRange);
-            r.setHeader("Accept-Ranges", "bytes");
+            r = new Response(compressed);
+            encodedValidators.apply(r);
+            return encoded(r, contentType, "gzip");
+        }
+        return null;
+    }
 
-            if (mimetype != null) r.setHeader("Content-Type", mimetype);
+    private static Response encoded(Response r, String contentType, String coding) {
+        r.setHeader("Content-Type", contentType);
+        r.setHeader("Content-Encoding", coding);
+        //Ranges of the compressed file are not supported
+        r.setHeader("Accept-Ranges", "none");
+        return r;
+    }
 
+    /**
+     * Sends one or more parts of a file, several parts are sent as multipart/byteranges
+     *
+     * @param requestedFile File to read
+     * @param entry         The cached file, or null if it is not cached
+     * @param contentType   Mimetype of the file
+     * @param rangeHeader   Content of the Range header, needed to figure out which parts of the file to read
+     * @param validators    Validators of the file
+     * @return Response containing the parts of the file
+     */
+    private Response readFile(File requestedFile, FileCache.Entry entry, String contentType, String rangeHeader,
+                              Validators validators) {
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, validators.length);
+        if (ranges == null) {
+            //Invalid headers are ignored
+            Logger.d("FILEHANDLER", "Ignoring invalid Range header: " + rangeHeader);
+            return entry != null ? createCachedResponse(entry) : readFile(requestedFile, contentType, validators);
+        }
+        if (ranges.isEmpty()) {
+            Response r = StandardResponses.create416(validators.length);
+            validators.apply(r);
             return r;
+        }
 
-        } catch (FileNotFoundException e) {
-            Logger.e("FILEHANLDER", "File not found, this should have been caught earlier!", e);
-            return StandardResponses.create404();
-        } catch (IOException e) {
-            Logger.e("FILEHANDLER", "Error reading file " + requestedFile.getAbsolutePath(), e);
-            return StandardResponses.create500();
+        Logger.d("FILEHANDLER", String.format("Received Range request for %s. Ranges: %s",
+                requestedFile.getPath(), rangeHeader));
+
+        Response r;
+        if (ranges.size() > 1) {
+            MultipartRanges parts = new MultipartRanges(requestedFile.toPath(), contentType, ranges, validators.length);
+            r = new Response();
+            r.setHttpVersion(1.1f);
+            r.setBody(parts, parts.length());
+            r.setHeader("Content-Type", parts.getContentType());
+            r.setHeader("Content-Length", String.valueOf(parts.length()));
+            validators.apply(r);
+        } else {
+            ByteRange range = ranges.get(0);
+            if (entry != null) {
+                //Parts of a cached file are sent from memory as well
+                ByteBuffer part = entry.content.duplicate();
+                part.position((int) range.start);
+                part.limit((int) range.end + 1);
+                r = createCachedResponse(entry);
+                r.setBody(part.slice());
+                r.setHeader("Content-Length", String.valueOf(range.length()));
+            } else {
+                try {
+                    r = createFileResponse(requestedFile, contentType, validators, range.start, range.length());
+                } catch (NoSuchFileException e) {
+                    Logger.e("FILEHANLDER", "File not found, this should have been caught earlier!", e);
+                    return StandardResponses.create404();
+                } catch (IOException e) {
+                    Logger.e("FILEHANDLER", "Error reading file " + requestedFile.getAbsolutePath(), e);
+                    return StandardResponses.create500();
+                }
+            }
+            r.setHeader("Content-Range", range.contentRange(validators.length));
         }
+        r.setStatus("206 Partial Content");
+        return r;
     }
 
     /**
-     * Reads a whole file from disk
+     * Sends a whole file
      *
      * @param requestedFile File to read
+     * @param contentType   Mimetype of the file
+     * @param validators    Validators of the file
      * @return Contains file and headers
      */
-    private Response readFile(File requestedFile) {
-        try (FileInputStream stream = new FileInputStream(requestedFile)) {
-
-            byte[] buffer = new byte[(int) requestedFile.length()];
-
-            stream.read(buffer);
-
-            Response r = new Response(buffer);
-            String mimetype = FileUtils.getMimeType(requestedFile);
-
-            if (mimetype != null) r.setHeader("Content-Type", mimetype);
-            r.setHeader("Connection", "close");
-            r.setHeader("Content-Length", String.valueOf(buffer.length));
-            r.setHeader("Accept-Ranges", "bytes");
-
-            return r;
-        } catch (FileNotFoundException e) {
+    private Response readFile(File requestedFile, String contentType, Validators validators) {
+        try {
+            return createFileResponse(requestedFile, contentType, validators, 0, validators.length);
+        } catch (NoSuchFileException e) {
             Logger.e("FILEHANLDER", "File not found, this should have been caught earlier!", e);
             return StandardResponses.create404();
         } catch (IOException e) {
@@ -161,5 +329,59 @@ public class FileHandler implements RequestHandler {
         }
     }
 
+    /**
+     * Creates a response for a cached file, the cached buffer is sent without copying it
+     *
+     * @param entry Cached file
+     * @return Response with status 200 OK
+     */
+    private Response createCachedResponse(FileCache.Entry entry) {
+        Response r = new Response();
+        r.setStatus("200 OK");
+        r.setHttpVersion(1.1f);
+        r.setBody(entry.content.duplicate());
+
+        if (entry.contentType != null) r.setHeader("Content-Type", entry.contentType);
+        r.setHeader("Content-Length", entry.contentLength);
+        r.setHeader("Accept-Ranges", "bytes");
+        entry.validators.apply(r);
+
+        return r;
+    }
+
+    /**
+     * Creates a response for a region of a file.<br>
+     * The file is not read here, the server transfers the region straight from the file to the client
+     *
+     * @param requestedFile File to send
+     * @param contentType   Mimetype of the file
+     * @param validators    Validators of the file
+     * @param position      First byte to send
+     * @param count         Number of bytes to send
+     * @return Response with status 200 OK
+     * @throws IOException If the file can not be opened
+     */
+    private Response createFileResponse(File requestedFile, String contentType, Validators validators, long position,
+                                        long count) throws IOException {
+        Response r = new Response();
+        r.setStatus("200 OK");
+        r.setHttpVersion(1.1f);
+
+        ByteBuffer mapped = null;
+        if (mapThreshold >= 0 && validators.length >= mapThreshold) {
+            mapped = mappedFiles.slice(requestedFile.toPath(), position, count);
+        }
+        if (mapped != null) {
+            r.setBody(mapped);
+        } else {
+            r.setBody(FileChannel.open(requestedFile.toPath(), StandardOpenOption.READ), position, count);
+        }
 
+        if (contentType != null) r.setHeader("Content-Type", contentType);
+        r.setHeader("Content-Length", String.valueOf(count));
+        r.setHeader("Accept-Ranges", "bytes");
+        validators.apply(r);
+
+        return r;
+    }
 }
@@ -0,0 +1,118 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory maps large files for a {@link FileHandler}, so concurrent downloads of the same file share the pages of the
+ * operating system's page cache instead of each reading the file on its own.<br>
+ * A single mapping can not be larger than 2GB, files are therefore mapped in segments of {@link #SEGMENT_SIZE} bytes.
+ * Segments overlap by {@link #SEGMENT_OVERLAP} bytes, so every region up to that size lies completely within one
+ * segment.
+ * <p>
+ * Mappings are kept for a limited number of files, the least recently used file is dropped first. Its pages are
+ * released once no response uses them any more. A file is mapped again if its size or modification time changed.
+ * </p>
+ *
+ * @author Deadmist
+ */
+class MappedFiles {
+
+    static final long SEGMENT_SIZE = 1L << 30;
+    static final long SEGMENT_OVERLAP = 1L << 28;
+
+    /**
+     * The segments of one file and the attributes of the file when it was mapped
+     */
+    private static class Mapping {
+        final long size;
+        final long lastModified;
+        final MappedByteBuffer[] segments;
+
+        Mapping(long size, long lastModified, MappedByteBuffer[] segments) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.segments = segments;
+        }
+    }
+
+    private final LinkedHashMap<Path, Mapping> mappings;
+
+    /**
+     * Creates an empty registry
+     *
+     * @param maxFiles Maximum number of files kept mapped
+     */
+    MappedFiles(final int maxFiles) {
+        this.mappings = new LinkedHashMap<Path, Mapping>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Mapping> eldest) {
+                return size() > maxFiles;
+            }
+        };
+    }
+
+    /**
+     * Returns a region of a file as a read only buffer backed by the mapping of the file
+     *
+     * @param file     File to read
+     * @param position First byte of the region
+     * @param count    Length of the region
+     * @return Buffer containing the region, or null if the region is too large to be served from a single segment
+     * @throws IOException If the file can not be mapped
+     */
+    ByteBuffer slice(Path file, long position, long count) throws IOException {
+        if (count > SEGMENT_OVERLAP) return null;
+
+        Mapping mapping = map(file);
+        if (position < 0 || position + count > mapping.size) return null;
+
+        //The last segment starting at or before the position, the overlap guarantees the region fits into it
+        int index = (int) (position / (SEGMENT_SIZE - SEGMENT_OVERLAP));
+        index = Math.min(index, mapping.segments.length - 1);
+        long segmentStart = index * (SEGMENT_SIZE - SEGMENT_OVERLAP);
+
+        ByteBuffer region = mapping.segments[index].duplicate();
+        region.position((int) (position - segmentStart));
+        region.limit((int) (position - segmentStart + count));
+        return region.slice().asReadOnlyBuffer();
+    }
+
+    private Mapping map(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (mappings) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null && mapping.size == size && mapping.lastModified == lastModified) return mapping;
+        }
+
+        //Mapping is cheap, two requests mapping the same file at once don't need to be prevented
+        Mapping mapping;
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            long step = SEGMENT_SIZE - SEGMENT_OVERLAP;
+            int count = size <= SEGMENT_SIZE ? 1 : (int) ((size - SEGMENT_OVERLAP + step - 1) / step);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * step;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            mapping = new Mapping(size, lastModified, segments);
+        }
+
+        synchronized (mappings) {
+            mappings.put(key, mapping);
+        }
+        return mapping;
+    }
+}
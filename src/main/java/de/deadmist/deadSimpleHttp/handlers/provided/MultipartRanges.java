@@ -0,0 +1,112 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import de.deadmist.deadSimpleHttp.structures.BodyWriter;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes several ranges of a file as a multipart/byteranges body.<br>
+ * The ranges are read from the file while the body is written, through a buffer borrowed from the
+ * {@link BufferPool}, so the parts never have to fit into memory. The length of the body is known in advance and
+ * sent as Content-Length.
+ *
+ * @author Deadmist
+ */
+class MultipartRanges implements BodyWriter {
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final Path file;
+    private final List<ByteRange> ranges;
+    private final String boundary;
+    private final byte[][] partHeads;
+    private final byte[] end;
+
+    /**
+     * Creates the body
+     *
+     * @param file        File to read the ranges from
+     * @param contentType Mimetype of the file, may be null
+     * @param ranges      Ranges to send, sorted and not overlapping
+     * @param total       Length of the file
+     */
+    MultipartRanges(Path file, String contentType, List<ByteRange> ranges, long total) {
+        this.file = file;
+        this.ranges = ranges;
+        this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+        //The heads of the parts are small, encode them once to know the length of the body
+        this.partHeads = new byte[ranges.size()][];
+        for (int i = 0; i < ranges.size(); i++) {
+            String head = "\r\n--" + boundary + "\r\n"
+                    + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                    + "Content-Range: " + ranges.get(i).contentRange(total) + "\r\n\r\n";
+            partHeads[i] = head.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        this.end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the Content-Type of the body, including the boundary
+     *
+     * @return e.g. "multipart/byteranges; boundary=..."
+     */
+    String getContentType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * Returns the length of the body
+     *
+     * @return Length in bytes
+     */
+    long length() {
+        long length = end.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            length += partHeads[i].length + ranges.get(i).length();
+        }
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = pool.acquire(COPY_BUFFER_SIZE);
+            try {
+                copyRanges(channel, buffer, out);
+            } finally {
+                pool.release(buffer);
+            }
+            out.write(end);
+        }
+    }
+
+    private void copyRanges(FileChannel channel, ByteBuffer buffer, OutputStream out) throws IOException {
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(partHeads[i]);
+
+            long position = ranges.get(i).start;
+            long end = ranges.get(i).end + 1;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) throw new EOFException("File is shorter than the response");
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import de.deadmist.deadSimpleHttp.structures.Request;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.util.HttpDates;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The ETag and Last-Modified validators of a file, used to answer conditional requests.<br>
+ * The ETag is derived from the modification time and size of the file, so it changes whenever the file is
+ * modified without the file having to be hashed.
+ *
+ * @author Deadmist
+ */
+class Validators {
+    final long length;
+    final long lastModified;
+    final String etag;
+    final String lastModifiedHeader;
+
+    /**
+     * Creates the validators of a file
+     *
+     * @param length       Size of the file in bytes
+     * @param lastModified Modification time of the file in milliseconds since the epoch
+     */
+    Validators(long length, long lastModified) {
+        this(length, lastModified, "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"");
+    }
+
+    /**
+     * Reads the validators of a file from disk, size and modification time are read with a single call
+     *
+     * @param file The file
+     * @return Validators of the file, or null if it doesn't exist or isn't a regular file
+     */
+    static Validators read(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return new Validators(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Validators(long length, long lastModified, String etag) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.lastModifiedHeader = HttpDates.format(lastModified);
+    }
+
+    /**
+     * Returns the validators of the file compressed with a content coding, which need a different ETag
+     *
+     * @param coding The content coding, e.g. "gzip"
+     * @param length Size of the compressed file
+     * @return Validators of the compressed file
+     */
+    Validators encoded(String coding, long length) {
+        return new Validators(length, lastModified, etag.substring(0, etag.length() - 1) + "-" + coding + "\"");
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers
+     *
+     * @param response Response for the file
+     */
+    void apply(Response response) {
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", lastModifiedHeader);
+    }
+
+    /**
+     * Checks if the client already has the current version of the file.<br>
+     * If-None-Match takes precedence over If-Modified-Since, as the ETag is more precise
+     *
+     * @param request Request for the file
+     * @return true if the file can be answered with 304 Not Modified
+     */
+    boolean isNotModified(Request request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                //Weak comparison, a weak tag from a cache matches our strong tag
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+
+        long ifModifiedSince = HttpDates.parse(request.getHeader("If-Modified-Since"));
+        //HTTP dates have a resolution of one second
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Checks if a range request can be answered with a part of the file.<br>
+     * With an If-Range header only the unchanged file may be sent partially, otherwise the whole file has to be sent
+     *
+     * @param request Request for a part of the file
+     * @return true if the range can be sent
+     */
+    boolean isRangeAllowed(Request request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+
+        //Strong comparison, a weak tag never matches
+        if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+        if (ifRange.startsWith("W/")) return false;
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+}
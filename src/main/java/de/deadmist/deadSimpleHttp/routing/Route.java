@@ -0,0 +1,267 @@
+package de.deadmist.deadSimpleHttp.routing;
+
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled route, the regex pattern together with the handler that processes matching requests.<br>
+ * When the route is created the pattern is analysed, simple patterns (literals, "^/path$", "^/prefix/.*") are
+ * recognised so the {@link Router} can match them with plain string operations instead of evaluating the regex.
+ *
+ * @author Deadmist
+ */
+public class Route {
+
+    /**
+     * How a route is matched
+     */
+    enum Kind {
+        /**
+         * "^literal$", matches if the path equals the literal
+         */
+        EXACT,
+        /**
+         * "^literal", matches if the path starts with the literal, the match covers the literal
+         */
+        PREFIX,
+        /**
+         * "^literal.*", matches if the path starts with the literal, the match covers the whole path
+         */
+        PREFIX_TAIL,
+        /**
+         * "literal$", matches if the path ends with the literal
+         */
+        SUFFIX,
+        /**
+         * "literal", matches if the path contains the literal
+         */
+        CONTAINS,
+        /**
+         * "literal.*", matches if the path contains the literal, the match covers the rest of the path
+         */
+        CONTAINS_TAIL,
+        /**
+         * Anything else, evaluated as a regex. If the regex starts with "^literal" it is only evaluated
+         * for paths starting with that literal
+         */
+        REGEX
+    }
+
+    private final String pattern;
+    private final Pattern compiled;
+    private final RequestHandler handler;
+    private final Kind kind;
+    private final String literal;
+    private final String regexPrefix;
+
+    /**
+     * Compiles a route
+     *
+     * @param pattern Regex to match the requested file against
+     * @param handler Handler for matching requests
+     * @throws java.util.regex.PatternSyntaxException If the pattern is not a valid regex
+     */
+    public Route(String pattern, RequestHandler handler) {
+        this.pattern = pattern;
+        this.compiled = Pattern.compile(pattern);
+        this.handler = handler;
+
+        String body = pattern;
+        boolean anchoredStart = body.startsWith("^");
+        if (anchoredStart) body = body.substring(1);
+
+        boolean anchoredEnd = body.endsWith("$") && !isEscaped(body, body.length() - 1);
+        if (anchoredEnd) body = body.substring(0, body.length() - 1);
+
+        boolean tail = body.endsWith(".*") && !isEscaped(body, body.length() - 2);
+        if (tail) body = body.substring(0, body.length() - 2);
+
+        String literal = unescapeLiteral(body);
+        if (literal == null) {
+            this.kind = Kind.REGEX;
+        } else if (tail) {
+            //".*" already runs to the end of the path, a following "$" changes nothing
+            this.kind = anchoredStart ? Kind.PREFIX_TAIL : Kind.CONTAINS_TAIL;
+        } else if (anchoredStart) {
+            this.kind = anchoredEnd ? Kind.EXACT : Kind.PREFIX;
+        } else {
+            this.kind = anchoredEnd ? Kind.SUFFIX : Kind.CONTAINS;
+        }
+        this.literal = literal;
+        this.regexPrefix = kind == Kind.REGEX && anchoredStart ? literalPrefix(pattern.substring(1)) : "";
+    }
+
+    private Route(Route route, RequestHandler handler) {
+        this.pattern = route.pattern;
+        this.compiled = route.compiled;
+        this.handler = handler;
+        this.kind = route.kind;
+        this.literal = route.literal;
+        this.regexPrefix = route.regexPrefix;
+    }
+
+    /**
+     * Creates a copy of this route with another handler, without compiling the pattern again
+     *
+     * @param handler Handler of the new route
+     * @return The new route
+     */
+    Route withHandler(RequestHandler handler) {
+        return new Route(this, handler);
+    }
+
+    /**
+     * Matches the route against the requested file
+     *
+     * @param file Requested file, must not contain line terminators for non regex routes
+     * @return Length of the match or -1 if the route does not match
+     */
+    int match(String file) {
+        switch (kind) {
+            case EXACT:
+                return file.equals(literal) ? literal.length() : -1;
+            case PREFIX:
+                return file.startsWith(literal) ? literal.length() : -1;
+            case PREFIX_TAIL:
+                return file.startsWith(literal) ? file.length() : -1;
+            case SUFFIX:
+                return file.endsWith(literal) ? literal.length() : -1;
+            case CONTAINS:
+                return file.contains(literal) ? literal.length() : -1;
+            case CONTAINS_TAIL: {
+                int index = file.indexOf(literal);
+                return index == -1 ? -1 : file.length() - index;
+            }
+            default:
+                return matchRegex(file);
+        }
+    }
+
+    /**
+     * Matches the compiled regex against the requested file, works for every kind of route
+     *
+     * @param file Requested file
+     * @return Length of the match or -1 if the route does not match
+     */
+    int matchRegex(String file) {
+        Matcher m = compiled.matcher(file);
+        return m.find() ? m.end() - m.start() : -1;
+    }
+
+    /**
+     * Returns the regex of this route
+     *
+     * @return The pattern
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the handler that processes requests matching this route
+     *
+     * @return The handler
+     */
+    public RequestHandler getHandler() {
+        return handler;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getLiteral() {
+        return literal;
+    }
+
+    String getRegexPrefix() {
+        return regexPrefix;
+    }
+
+    /**
+     * Checks if this route beats another route that matched with the given length.<br>
+     * The longer match wins, if both matches have the same length the longer pattern wins.
+     *
+     * @param matchLength      Length of this routes match
+     * @param other            Best route so far, may be null
+     * @param otherMatchLength Length of the best match so far
+     * @return true if this route is the better match
+     */
+    boolean beats(int matchLength, Route other, int otherMatchLength) {
+        if (other == null) return true;
+        if (matchLength != otherMatchLength) return matchLength > otherMatchLength;
+        return pattern.length() > other.pattern.length();
+    }
+
+    private static boolean isEscaped(String s, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && s.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Turns a regex into the literal string it matches
+     *
+     * @param regex Regex without anchors
+     * @return The literal, or null if the regex contains anything but literal characters
+     */
+    private static String unescapeLiteral(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == regex.length()) return null;
+                char escaped = regex.charAt(++i);
+                //Escaped letters and digits are character classes or back references (\d, \w, \1...)
+                if (Character.isLetterOrDigit(escaped)) return null;
+                literal.append(escaped);
+            } else if (".[]{}()*+?^$|".indexOf(c) != -1) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Returns the literal characters at the start of a regex, every match has to start with them
+     *
+     * @param regex Regex without the leading anchor
+     * @return Literal prefix, may be empty
+     */
+    private static String literalPrefix(String regex) {
+        //An alternation could make the prefix optional
+        if (regex.indexOf('|') != -1) return "";
+
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == regex.length() || Character.isLetterOrDigit(regex.charAt(next))) break;
+                c = regex.charAt(next++);
+                i++;
+            } else if (".[]{}()*+?^$".indexOf(c) != -1) {
+                break;
+            }
+            //A quantifier makes the last character optional or repeatable
+            if (next < regex.length() && "?*{+".indexOf(regex.charAt(next)) != -1) break;
+            prefix.append(c);
+        }
+        return prefix.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Route{" +
+                "pattern='" + pattern + '\'' +
+                ", kind=" + kind +
+                ", handler=" + handler +
+                '}';
+    }
+}
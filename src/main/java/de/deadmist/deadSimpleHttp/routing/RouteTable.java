@@ -0,0 +1,191 @@
+package de.deadmist.deadSimpleHttp.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Index over a set of {@link Route Routes} that finds the best route for a requested file.<br>
+ * Exact routes are looked up in a hash map, prefix routes in a prefix tree and only routes that are real regex are
+ * evaluated, longest pattern first. Regex starting with "^literal" are stored in the prefix tree as well and only
+ * evaluated if the path starts with the literal. Regex evaluation stops as soon as no remaining route can beat
+ * the best match found so far.
+ * <p>
+ * A table is never modified after it has been built.
+ * </p>
+ *
+ * @author Deadmist
+ */
+class RouteTable {
+
+    private static class Node {
+        final HashMap<Character, Node> children = new HashMap<>();
+        //Best "^literal" and "^literal.*" route ending at this node
+        Route fixed;
+        Route tail;
+        //Regex starting with "^literal", longest pattern first
+        Route[] regexes = new Route[0];
+    }
+
+    private static final Comparator<Route> LONGEST_PATTERN_FIRST =
+            (a, b) -> b.getPattern().length() - a.getPattern().length();
+
+    private final Route[] all;
+    private final HashMap<String, Route> exact = new HashMap<>();
+    private final Node prefixes = new Node();
+    private final Route[] literals;
+    private final Route[] regexes;
+
+    /**
+     * Builds the index
+     *
+     * @param routes Routes to index
+     */
+    RouteTable(Collection<Route> routes) {
+        this.all = routes.toArray(new Route[routes.size()]);
+
+        ArrayList<Route> literals = new ArrayList<>();
+        ArrayList<Route> regexes = new ArrayList<>();
+        for (Route route : all) {
+            switch (route.getKind()) {
+                case EXACT: {
+                    Route existing = exact.get(route.getLiteral());
+                    if (route.beats(0, existing, 0)) exact.put(route.getLiteral(), route);
+                    break;
+                }
+                case PREFIX: {
+                    Node node = node(route.getLiteral());
+                    if (route.beats(0, node.fixed, 0)) node.fixed = route;
+                    break;
+                }
+                case PREFIX_TAIL: {
+                    Node node = node(route.getLiteral());
+                    if (route.beats(0, node.tail, 0)) node.tail = route;
+                    break;
+                }
+                case REGEX:
+                    if (route.getRegexPrefix().isEmpty()) {
+                        regexes.add(route);
+                    } else {
+                        Node node = node(route.getRegexPrefix());
+                        Route[] nodeRegexes = Arrays.copyOf(node.regexes, node.regexes.length + 1);
+                        nodeRegexes[nodeRegexes.length - 1] = route;
+                        Arrays.sort(nodeRegexes, LONGEST_PATTERN_FIRST);
+                        node.regexes = nodeRegexes;
+                    }
+                    break;
+                default:
+                    literals.add(route);
+            }
+        }
+        //Longest pattern first, so evaluation can stop once no route can win the tie-break anymore
+        regexes.sort(LONGEST_PATTERN_FIRST);
+
+        this.literals = literals.toArray(new Route[literals.size()]);
+        this.regexes = regexes.toArray(new Route[regexes.size()]);
+    }
+
+    /**
+     * Finds the route with the longest match, if multiple routes match with the same length the longest pattern wins
+     *
+     * @param file Requested file
+     * @return Best matching route or null if no route matches
+     */
+    Route find(String file) {
+        if (hasLineTerminator(file)) {
+            //Anchors and "." behave differently around line terminators, leave those cases to the regex engine
+            return findByRegex(file);
+        }
+
+        Route best = exact.get(file);
+        int bestLength = best == null ? -1 : file.length();
+
+        //Every node on the way down the tree is a prefix of the file
+        Node node = prefixes;
+        int depth = 0;
+        while (node != null) {
+            if (node.tail != null && node.tail.beats(file.length(), best, bestLength)) {
+                best = node.tail;
+                bestLength = file.length();
+            }
+            if (node.fixed != null && node.fixed.beats(depth, best, bestLength)) {
+                best = node.fixed;
+                bestLength = depth;
+            }
+            for (Route route : node.regexes) {
+                if (bestLength == file.length() && route.getPattern().length() <= best.getPattern().length()) break;
+
+                int length = route.matchRegex(file);
+                if (length >= 0 && route.beats(length, best, bestLength)) {
+                    best = route;
+                    bestLength = length;
+                }
+            }
+            if (depth == file.length()) break;
+            node = node.children.get(file.charAt(depth++));
+        }
+
+        for (Route route : literals) {
+            int length = route.match(file);
+            if (length >= 0 && route.beats(length, best, bestLength)) {
+                best = route;
+                bestLength = length;
+            }
+        }
+
+        for (Route route : regexes) {
+            //No match can be longer than the whole file, so shorter patterns can't win anymore
+            if (bestLength == file.length() && route.getPattern().length() <= best.getPattern().length()) break;
+
+            int length = route.matchRegex(file);
+            if (length >= 0 && route.beats(length, best, bestLength)) {
+                best = route;
+                bestLength = length;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the node of the prefix tree for a literal, creating missing nodes
+     *
+     * @param literal Path of the node
+     * @return The node
+     */
+    private Node node(String literal) {
+        Node node = prefixes;
+        for (int i = 0; i < literal.length(); i++) {
+            Node child = node.children.get(literal.charAt(i));
+            if (child == null) {
+                child = new Node();
+                node.children.put(literal.charAt(i), child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private Route findByRegex(String file) {
+        Route best = null;
+        int bestLength = -1;
+        for (Route route : all) {
+            int length = route.matchRegex(file);
+            if (length >= 0 && route.beats(length, best, bestLength)) {
+                best = route;
+                bestLength = length;
+            }
+        }
+        return best;
+    }
+
+    private static boolean hasLineTerminator(String file) {
+        for (int i = 0; i < file.length(); i++) {
+            char c = file.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,154 @@
+package de.deadmist.deadSimpleHttp.routing;
+
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Selects the {@link RequestHandler} for a requested file.<br>
+ * Every handler is registered with a regex, the handler whose regex has the longest match against the requested file
+ * is chosen. If two or more regex match the same amount of characters the longer regex is chosen.
+ * <p>
+ * Patterns are compiled once when they are added. Simple patterns such as "^/index.html$" or "^/static/.*" are kept
+ * in a hash map and a prefix tree, so most requests are routed without evaluating a single regex.
+ * </p>
+ * <p>
+ * The router is thread safe. Routing works on an immutable snapshot of the routes and never locks, every change
+ * builds a new snapshot and publishes it atomically. Routes can therefore be added, replaced or removed while
+ * requests are processed, every request sees either the old or the new set of routes, never a mix of both.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class Router {
+
+    /**
+     * Immutable state of the router, the routes by pattern and the index built from them
+     */
+    private static class Snapshot {
+        final Map<String, Route> routes;
+        final RouteTable table;
+
+        Snapshot(LinkedHashMap<String, Route> routes) {
+            this.routes = Collections.unmodifiableMap(routes);
+            this.table = new RouteTable(routes.values());
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(new LinkedHashMap<>()));
+
+    /**
+     * Creates an empty router
+     */
+    public Router() {
+    }
+
+    /**
+     * Creates a router with the given handlers
+     *
+     * @param handlers Regex to match URLs against and the handler for them
+     * @throws java.util.regex.PatternSyntaxException If one of the patterns is not a valid regex
+     */
+    public Router(Map<String, RequestHandler> handlers) {
+        setRoutes(handlers);
+    }
+
+    /**
+     * Adds a new RequestHandler, replacing the handler registered for the same pattern if there is one
+     *
+     * @param pattern Pattern to match URLs against
+     * @param handler Handler to handler requests
+     * @throws java.util.regex.PatternSyntaxException If the pattern is not a valid regex
+     */
+    public void addRoute(String pattern, RequestHandler handler) {
+        Route route = new Route(pattern, handler);
+        Snapshot current, updated;
+        do {
+            current = snapshot.get();
+            LinkedHashMap<String, Route> routes = new LinkedHashMap<>(current.routes);
+            routes.put(pattern, route);
+            updated = new Snapshot(routes);
+        } while (!snapshot.compareAndSet(current, updated));
+    }
+
+    /**
+     * Replaces the handler of an existing route
+     *
+     * @param pattern Pattern of the route
+     * @param handler New handler for the route
+     * @return true if the route was replaced, false if no route with this pattern exists
+     */
+    public boolean replaceRoute(String pattern, RequestHandler handler) {
+        Snapshot current, updated;
+        do {
+            current = snapshot.get();
+            Route existing = current.routes.get(pattern);
+            if (existing == null) return false;
+            LinkedHashMap<String, Route> routes = new LinkedHashMap<>(current.routes);
+            routes.put(pattern, existing.withHandler(handler));
+            updated = new Snapshot(routes);
+        } while (!snapshot.compareAndSet(current, updated));
+        return true;
+    }
+
+    /**
+     * Removes a route
+     *
+     * @param pattern Pattern of the route
+     * @return true if the route was removed, false if no route with this pattern exists
+     */
+    public boolean removeRoute(String pattern) {
+        Snapshot current, updated;
+        do {
+            current = snapshot.get();
+            if (!current.routes.containsKey(pattern)) return false;
+            LinkedHashMap<String, Route> routes = new LinkedHashMap<>(current.routes);
+            routes.remove(pattern);
+            updated = new Snapshot(routes);
+        } while (!snapshot.compareAndSet(current, updated));
+        return true;
+    }
+
+    /**
+     * Replaces all routes at once
+     *
+     * @param handlers Regex to match URLs against and the handler for them
+     * @throws java.util.regex.PatternSyntaxException If one of the patterns is not a valid regex,
+     *                                                the current routes are kept in that case
+     */
+    public void setRoutes(Map<String, RequestHandler> handlers) {
+        LinkedHashMap<String, Route> routes = new LinkedHashMap<>();
+        for (Map.Entry<String, RequestHandler> entry : handlers.entrySet()) {
+            routes.put(entry.getKey(), new Route(entry.getKey(), entry.getValue()));
+        }
+        snapshot.set(new Snapshot(routes));
+    }
+
+    /**
+     * Finds the handler for a requested file
+     *
+     * @param file Requested file
+     * @return Handler with the best matching pattern, or null if no pattern matches
+     */
+    public RequestHandler route(String file) {
+        Route route = snapshot.get().table.find(file);
+        return route == null ? null : route.getHandler();
+    }
+
+    /**
+     * Returns every registered pattern with its handler
+     *
+     * @return Copy of the registered routes
+     */
+    public HashMap<String, RequestHandler> getRoutes() {
+        HashMap<String, RequestHandler> copy = new HashMap<>();
+        for (Route route : snapshot.get().routes.values()) {
+            copy.put(route.getPattern(), route.getHandler());
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,239 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.IncomingHandler;
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+import de.deadmist.deadSimpleHttp.routing.Router;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.structures.ResponseEncoder;
+import de.deadmist.deadSimpleHttp.util.StandardResponses;
+import de.deadmist.deadSimpleHttp.util.TimerWheel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Common base of {@link HTTPServer} and {@link HTTPSServer}.<br>
+ * The server thread only accepts new connections, every connection is then handed to a {@link WorkerPool}
+ * which reads the request, runs the matching handler and sends the response.
+ * Connections and requests over the limits of the {@link AdmissionControl} are shed with a 503 Service Unavailable.
+ * Slow and idle connections are closed by the {@link ConnectionTimeouts}, which run on a timer thread of the server.
+ *
+ * @author Deadmist
+ */
+public abstract class AbstractServer extends Thread {
+    private static final long TIMER_TICK = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    private volatile boolean interrupted = false;
+    protected final String tag;
+    private final boolean ownsPool;
+
+    protected final Router router;
+    protected ServerSocket serverSocket;
+    protected WorkerPool workerPool;
+    protected final ServerSettings settings = new ServerSettings();
+    protected final TimerWheel timers = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE);
+    protected final AdmissionControl admission = new AdmissionControl(settings, timers);
+    protected final ConnectionTimeouts timeouts = new ConnectionTimeouts(settings, timers);
+    //Only used by the server thread, for shedding connections
+    private final ResponseEncoder encoder = new ResponseEncoder();
+
+    /**
+     * Creates a new server
+     *
+     * @param tag        Tag used for logging
+     * @param handlers   List of handlers to handle requests, the patterns are compiled once so later changes
+     *                   to the map are not picked up. Use {@link #addHandler(String, RequestHandler)} instead
+     * @param workerPool Pool that processes connections, if null the server creates and owns its own pool
+     * @throws java.util.regex.PatternSyntaxException If one of the patterns is not a valid regex
+     */
+    protected AbstractServer(String tag, HashMap<String, RequestHandler> handlers, WorkerPool workerPool) {
+        super(tag + "-server");
+        this.tag = tag;
+        this.router = new Router(handlers);
+        this.ownsPool = workerPool == null;
+        this.workerPool = workerPool == null ? new WorkerPool() : workerPool;
+        //Every connection holds a worker, also while it waits for its next request
+        timeouts.setWorkersNeeded(() -> this.workerPool.getQueueSize() > 0);
+    }
+
+    /**
+     * Adds a new RequestHandler, can be called while the server is running
+     *
+     * @param pattern Pattern to match URLs against
+     * @param handler Handler to handler requests
+     * @throws java.util.regex.PatternSyntaxException If the pattern is not a valid regex
+     */
+    public void addHandler(String pattern, RequestHandler handler) {
+        this.router.addRoute(pattern, handler);
+    }
+
+    /**
+     * Removes the RequestHandler registered for a pattern, can be called while the server is running
+     *
+     * @param pattern Pattern the handler was registered with
+     * @return true if a handler was removed
+     */
+    public boolean removeHandler(String pattern) {
+        return this.router.removeRoute(pattern);
+    }
+
+    /**
+     * Replaces all RequestHandlers at once, can be called while the server is running.<br>
+     * Every request is either handled with the old or with the new handlers, never a mix of both
+     *
+     * @param handlers Patterns to match URLs against and their handlers
+     * @throws java.util.regex.PatternSyntaxException If one of the patterns is not a valid regex,
+     *                                                the current handlers are kept in that case
+     */
+    public void setHandlers(Map<String, RequestHandler> handlers) {
+        this.router.setRoutes(handlers);
+    }
+
+    /**
+     * Returns the router that selects the handler for each request
+     *
+     * @return The router
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    /**
+     * Returns the settings of this server, e.g. for configuring persistent connections
+     *
+     * @return The settings
+     */
+    public ServerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the pool that processes the connections of this server, e.g. for reading its metrics
+     *
+     * @return The worker pool
+     */
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Returns the admission control of this server, e.g. for reading its metrics.<br>
+     * The limits are configured through the {@link #getSettings() settings}
+     *
+     * @return The admission control
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * Returns the timeouts that close slow and idle connections, e.g. for reading how many connections they closed.<br>
+     * The timeouts are configured through the {@link #getSettings() settings}
+     *
+     * @return The connection timeouts
+     */
+    public ConnectionTimeouts getConnectionTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * This method is required to be public, but should never be called directly.
+     * Use start() instead
+     */
+    @Override
+    public void run() {
+        Logger.i(tag, "Starting server");
+        timers.start(tag + "-timer");
+        while (!interrupted) {
+            try {
+                Socket socket = serverSocket.accept();
+                Logger.d(tag, "New connection");
+                if (!admission.openConnection()) {
+                    Logger.w(tag, "Too many connections, shedding connection from " + socket.getRemoteSocketAddress());
+                    shed(socket);
+                    continue;
+                }
+                dispatch(socket);
+            } catch (IOException e) {
+                if (!interrupted) { //Server should not have stopped
+                    Logger.e(tag, "Exception while waiting for connection", e);
+                }
+            }
+        }
+        timers.stop();
+        if (ownsPool) {
+            workerPool.shutdown();
+        }
+        Logger.i(tag, "Stopping server");
+    }
+
+    /**
+     * Hands a new connection over to the worker pool.<br>
+     * The connection holds a slot of the {@link AdmissionControl}, which has to be given back once it is closed
+     *
+     * @param socket Socket of the new connection
+     */
+    protected void dispatch(Socket socket) {
+        try {
+            workerPool.execute(new IncomingHandler(socket, router, settings, admission, timeouts, workerPool));
+            freeIdleWorker();
+        } catch (RejectedExecutionException e) {
+            Logger.w(tag, "Worker pool saturated, shedding connection from " + socket.getRemoteSocketAddress());
+            admission.closeConnection();
+            shed(socket);
+        }
+    }
+
+    /**
+     * Closes an idle persistent connection if the connection just dispatched has to wait for a worker,
+     * otherwise it would wait up to the keep-alive timeout while the worker does nothing
+     */
+    protected void freeIdleWorker() {
+        if (workerPool.getQueueSize() > 0) timeouts.closeIdle();
+    }
+
+    /**
+     * Answers a connection the server has no capacity for with a 503 Service Unavailable and closes it.<br>
+     * Runs on the server thread, the answer is small enough for the socket buffer of a new connection.
+     *
+     * @param socket Socket of the new connection
+     */
+    protected void shed(Socket socket) {
+        Response response = StandardResponses.create503(settings.getRetryAfter());
+        response.setHeader("Connection", "close");
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(encoder.encodeHeadBytes(response));
+            response.writeBody(out);
+            out.flush();
+        } catch (IOException e) {
+            Logger.d(tag, "Couldn't answer shed connection", e);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.w(tag, "Couldn't close shed socket", e);
+        }
+    }
+
+    /**
+     * Stops the server
+     */
+    @Override
+    public void interrupt() {
+        this.interrupted = true;
+        super.interrupt();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Logger.w(tag, "Couldn't close server socket", e);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deadSimpleHttp.util.TimerWheel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much work a server takes on, so an overloaded server answers quickly instead of getting slower for everyone.<br>
+ * The limits are part of the {@link ServerSettings}: the number of open connections, the number of requests whose
+ * handlers run at the same time, and how many requests may wait for a free slot and for how long.
+ * Work over the limits is shed with a 503 Service Unavailable and a Retry-After header, see
+ * {@link de.deadmist.deadSimpleHttp.util.StandardResponses#create503(int)}.
+ * <p>
+ * Every request has a {@link Priority}, selected by the patterns registered with
+ * {@link ServerSettings#setPriority(String, Priority)}. Cheap requests, e.g. for static files, can be given a high
+ * priority so they are still served while expensive handlers are throttled.
+ * </p>
+ * Every server has its own instance, see {@link AbstractServer#getAdmissionControl()}. The methods that take and
+ * return slots are used by the servers, the remaining methods provide metrics. This class is thread safe.
+ *
+ * @author Deadmist
+ */
+public class AdmissionControl {
+
+    /**
+     * Priority classes of requests
+     */
+    public enum Priority {
+        /**
+         * Always admitted, only limited by the number of connections. Counts towards the requests in flight
+         */
+        HIGH,
+        /**
+         * Admitted while fewer requests than the limit are in flight, waits in the queue otherwise
+         */
+        NORMAL,
+        /**
+         * Only admitted while less than half of the limit is in use, waits behind every request of normal priority
+         */
+        LOW
+    }
+
+    private final ServerSettings settings;
+    private final TimerWheel timers;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong expiredRequests = new AtomicLong();
+
+    //Guarded by this
+    private int inFlight;
+    private final ArrayDeque<Waiter> normal = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> low = new ArrayDeque<>();
+
+    /**
+     * A request waiting for a free slot
+     */
+    private static class Waiter {
+        final Runnable onAdmitted;
+        final Runnable onRejected;
+        final long deadline;
+
+        Waiter(Runnable onAdmitted, Runnable onRejected, long deadline) {
+            this.onAdmitted = onAdmitted;
+            this.onRejected = onRejected;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Creates the admission control of a server
+     *
+     * @param settings Settings of the server, changes to the limits apply to later requests
+     * @param timers   Wheel that expires the waiting requests, or null if {@link #expire()} is called otherwise
+     */
+    AdmissionControl(ServerSettings settings, TimerWheel timers) {
+        this.settings = settings;
+        this.timers = timers;
+    }
+
+    /**
+     * Takes a connection slot for a new connection
+     *
+     * @return true if the connection is accepted, it has to be given back with {@link #closeConnection()}.
+     * false if the connection has to be shed
+     */
+    public boolean openConnection() {
+        int max = settings.getMaxConnections();
+        while (true) {
+            int current = connections.get();
+            if (max >= 0 && current >= max) {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Gives back the slot of a closed connection
+     */
+    public void closeConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Takes a slot for a request without blocking.<br>
+     * Exactly one of the callbacks is run, either right away on the calling thread, or later on the thread that
+     * frees a slot or expires the waiting requests. The callbacks must not block.
+     *
+     * @param priority   Priority of the request
+     * @param onAdmitted Run once the request may be processed, the slot has to be given back with {@link #release()}
+     * @param onRejected Run if the queue is full or the request waited longer than the queue time, it has to be shed
+     */
+    public void admit(Priority priority, Runnable onAdmitted, Runnable onRejected) {
+        Waiter waiter = new Waiter(onAdmitted, onRejected,
+                System.nanoTime() + settings.getMaxQueueTime() * 1000000L);
+        if (!enqueue(priority, waiter)) return;
+        onAdmitted.run();
+    }
+
+    /**
+     * Takes a slot for a request, waits up to the queue time if none is free
+     *
+     * @param priority Priority of the request
+     * @return true if the request may be processed, the slot has to be given back with {@link #release()}.
+     * false if it has to be shed
+     */
+    public boolean acquire(Priority priority) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        long queueTime = settings.getMaxQueueTime();
+        Waiter waiter = new Waiter(() -> result.complete(true), () -> result.complete(false),
+                System.nanoTime() + queueTime * 1000000L);
+        if (enqueue(priority, waiter)) return true;
+
+        boolean interrupted = false;
+        try {
+            return result.get(queueTime, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } catch (TimeoutException | ExecutionException e) {
+            //Withdrawn below
+        }
+        try {
+            if (withdraw(waiter)) {
+                expiredRequests.incrementAndGet();
+                return false;
+            }
+            //Admitted or rejected while the wait ended, the callback completes the result right away
+            return result.join();
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Admits the request or queues it
+     *
+     * @return true if it was admitted right away, the callbacks are not run in that case
+     */
+    private boolean enqueue(Priority priority, Waiter waiter) {
+        synchronized (this) {
+            if (mayStart(priority)) {
+                inFlight++;
+                return true;
+            }
+            if (normal.size() + low.size() < settings.getMaxQueuedRequests()) {
+                (priority == Priority.LOW ? low : normal).add(waiter);
+                if (timers != null) timers.schedule(this::expire, settings.getMaxQueueTime());
+                return false;
+            }
+        }
+        rejectedRequests.incrementAndGet();
+        waiter.onRejected.run();
+        return false;
+    }
+
+    private boolean mayStart(Priority priority) {
+        int max = settings.getMaxInFlightRequests();
+        if (max < 0 || priority == Priority.HIGH) return true;
+        if (priority == Priority.LOW) return normal.isEmpty() && inFlight < Math.max(1, max / 2);
+        return inFlight < max;
+    }
+
+    private synchronized boolean withdraw(Waiter waiter) {
+        return normal.remove(waiter) || low.remove(waiter);
+    }
+
+    /**
+     * Gives back the slot of a request once its handler is done, the next waiting request is admitted
+     */
+    public void release() {
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            collectExpired(callbacks);
+            while (!normal.isEmpty() && mayStart(Priority.NORMAL)) {
+                inFlight++;
+                callbacks.add(normal.poll().onAdmitted);
+            }
+            while (!low.isEmpty() && mayStart(Priority.LOW)) {
+                inFlight++;
+                callbacks.add(low.poll().onAdmitted);
+            }
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Rejects the waiting requests that have been queued for longer than the queue time.<br>
+     * Called by the timer wheel of the server once the queue time of a request has passed
+     */
+    public void expire() {
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            collectExpired(callbacks);
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private void collectExpired(List<Runnable> callbacks) {
+        long now = System.nanoTime();
+        collectExpired(normal, now, callbacks);
+        collectExpired(low, now, callbacks);
+    }
+
+    private void collectExpired(ArrayDeque<Waiter> queue, long now, List<Runnable> callbacks) {
+        Iterator<Waiter> waiters = queue.iterator();
+        while (waiters.hasNext()) {
+            Waiter waiter = waiters.next();
+            if (now - waiter.deadline < 0) continue;
+            waiters.remove();
+            expiredRequests.incrementAndGet();
+            callbacks.add(waiter.onRejected);
+        }
+    }
+
+    /**
+     * Returns the number of open connections
+     *
+     * @return Number of connections
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the number of requests whose handlers are running right now
+     *
+     * @return Number of requests
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests waiting for a free slot
+     *
+     * @return Number of requests
+     */
+    public synchronized int getQueuedCount() {
+        return normal.size() + low.size();
+    }
+
+    /**
+     * Returns how many connections have been shed because too many connections were open
+     *
+     * @return Number of connections
+     */
+    public long getRejectedConnectionCount() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * Returns how many requests have been shed because the queue was full
+     *
+     * @return Number of requests
+     */
+    public long getRejectedRequestCount() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * Returns how many requests have been shed because they waited longer than the queue time
+     *
+     * @return Number of requests
+     */
+    public long getExpiredRequestCount() {
+        return expiredRequests.get();
+    }
+}
@@ -0,0 +1,443 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.structures.RequestParser;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.util.StandardResponses;
+import de.deadmist.deadSimpleHttp.util.TimerWheel;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Closes connections of clients that are too slow, or that hold a connection open without using it.<br>
+ * A connection is always in one phase, each with its own limit from the {@link ServerSettings}:
+ * <ul>
+ * <li>TLS handshake: has to finish within the handshake timeout of the {@link TLSConfig}</li>
+ * <li>Request line and headers: have to arrive completely within the header timeout, counted from the first byte
+ * of the request, or from the start of the connection for the first request. Sending one byte at a time doesn't help</li>
+ * <li>Request body: closed after the body timeout without receiving data. With a minimum body rate the body gets
+ * the body timeout as grace period plus a second for every minimum rate bytes received</li>
+ * <li>Waiting for the next request: closed after the keep-alive timeout</li>
+ * <li>Writing the response: closed after the write timeout without the client receiving data, with a minimum rate
+ * like the body</li>
+ * </ul>
+ * While the handler is running no limit applies to the connection, a handler producing its response slowly is not a
+ * slow client. The response of an asynchronous handler has to complete within the handler timeout instead, see
+ * {@link #limit(CompletableFuture)}.
+ * <p>
+ * Every connection has a {@link Watch} that holds a single timeout on the {@link TimerWheel} of the server.
+ * Progress only updates the watch, the timeout is moved when it expires early, so reading and writing never touch the
+ * wheel. The number of connections closed in each phase is counted.
+ * </p>
+ * <p>
+ * On servers where a waiting connection holds a worker thread, idle connections are closed before their keep-alive
+ * timeout once other connections wait for a worker, see {@link #closeIdle()}.
+ * </p>
+ * Every server has its own instance, see {@link AbstractServer#getConnectionTimeouts()}.
+ *
+ * @author Deadmist
+ */
+public class ConnectionTimeouts {
+    private static final int CLOSED = -1;
+    private static final int PROCESSING = 0;
+    private static final int HANDSHAKE = 1;
+    private static final int HEADERS = 2;
+    private static final int BODY = 3;
+    private static final int IDLE = 4;
+    private static final int WRITING = 5;
+    private static final String[] PHASES = {"processing", "TLS handshake", "reading headers", "reading the body",
+            "waiting for the next request", "writing the response"};
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final ServerSettings settings;
+    private final TimerWheel timers;
+    private final AtomicLong[] closed = new AtomicLong[PHASES.length];
+    //Connections waiting for their next request
+    private final Set<Watch> idle = ConcurrentHashMap.newKeySet();
+    private final AtomicLong handlerTimeouts = new AtomicLong();
+    private volatile BooleanSupplier workersNeeded;
+
+    /**
+     * Creates the timeouts of a server
+     *
+     * @param settings Settings of the server, changes apply to later phases of connections
+     * @param timers   Wheel that runs the timeouts
+     */
+    ConnectionTimeouts(ServerSettings settings, TimerWheel timers) {
+        this.settings = settings;
+        this.timers = timers;
+        for (int i = 0; i < closed.length; i++) {
+            closed[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Creates the watch of a new connection, it starts waiting for the first request
+     *
+     * @param onTimeout Run on the timer thread when the connection times out, has to close it without blocking
+     * @return The watch
+     */
+    public Watch watch(Runnable onTimeout) {
+        return new Watch(onTimeout);
+    }
+
+    /**
+     * Makes connections give up their worker when they become idle while other connections wait for one
+     *
+     * @param workersNeeded Tells whether connections wait for a worker, or null if idle connections don't hold one
+     */
+    void setWorkersNeeded(BooleanSupplier workersNeeded) {
+        this.workersNeeded = workersNeeded;
+    }
+
+    /**
+     * Closes a connection that waits for its next request, so its worker can serve a connection that waits for one.
+     * Clients have to expect persistent connections to be closed between requests
+     *
+     * @return true if a connection was closed, false if none was idle
+     */
+    boolean closeIdle() {
+        for (Watch watch : idle) {
+            if (watch.closeIdle()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Limits how long the response of an asynchronous handler may take, see {@link ServerSettings#setHandlerTimeout(int)}.<br>
+     * Once the handler timeout expires the returned future is completed with a 504 Gateway Timeout that closes the
+     * connection, the handler might still be reading the request body. A response that completes later is discarded
+     *
+     * @param response Future of the handler
+     * @return Future that is completed with the response, or with the 504 if the handler didn't complete it in time
+     */
+    public CompletableFuture<Response> limit(CompletableFuture<Response> response) {
+        if (response.isDone()) return response;
+
+        final CompletableFuture<Response> limited = new CompletableFuture<>();
+        //Whoever claims the future first completes it, the handler or the timeout
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final TimerWheel.Timeout timeout = timers.schedule(() -> {
+            if (!claimed.compareAndSet(false, true)) return;
+            //Counted before completing, completing writes the 504 and closes the connection
+            handlerTimeouts.incrementAndGet();
+            Logger.d("TIMEOUT", "Handler did not complete its response in time");
+            Response timedOut = StandardResponses.create504();
+            timedOut.setHeader("Connection", "close");
+            limited.complete(timedOut);
+        }, settings.getHandlerTimeout());
+        response.whenComplete((result, error) -> {
+            timeout.cancel();
+            if (!claimed.compareAndSet(false, true)) {
+                //Too late, the client already got the 504
+                if (result != null) result.closeBody();
+            } else if (error != null) {
+                limited.completeExceptionally(error);
+            } else {
+                limited.complete(result);
+            }
+        });
+        return limited;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Timeout of a single connection.<br>
+     * The methods are called by the thread that reads and writes the connection, the timeout expires on the timer thread
+     */
+    public class Watch {
+        private final Runnable onTimeout;
+        private int phase = HEADERS;
+        //Start of the phase, last progress and bytes transferred in the phase, in milliseconds
+        private long start = now();
+        private long last = start;
+        private long bytes;
+        private int handshakeTimeout;
+
+        private TimerWheel.Timeout timeout;
+        private long timeoutAt = NONE;
+
+        private Watch(Runnable onTimeout) {
+            this.onTimeout = onTimeout;
+            schedule();
+        }
+
+        /**
+         * The TLS handshake starts
+         *
+         * @param handshakeTimeout Time the handshake may take in milliseconds
+         */
+        public synchronized void handshaking(int handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+            enter(HANDSHAKE);
+        }
+
+        /**
+         * The connection waits for a request
+         *
+         * @param first true for the first request, its headers are timed from now on
+         */
+        public void awaitRequest(boolean first) {
+            synchronized (this) {
+                enter(first ? HEADERS : IDLE);
+            }
+            BooleanSupplier needed = workersNeeded;
+            if (!first && needed != null && needed.getAsBoolean()) closeIdle();
+        }
+
+        /**
+         * Part of a request has been received, its headers are timed from now on if they weren't already
+         */
+        public synchronized void readingHeaders() {
+            if (phase == IDLE || phase == PROCESSING) enter(HEADERS);
+        }
+
+        /**
+         * The headers are complete and the body is received
+         */
+        public synchronized void readingBody() {
+            if (phase != BODY) enter(BODY);
+        }
+
+        /**
+         * The request is complete and the handler runs, no limit applies
+         */
+        public synchronized void processing() {
+            enter(PROCESSING);
+        }
+
+        /**
+         * Data is written, or waits for the client to receive it
+         */
+        public synchronized void writing() {
+            if (phase != WRITING) enter(WRITING);
+        }
+
+        /**
+         * Records received or written bytes, extends the body and write timeouts
+         *
+         * @param count Number of bytes
+         */
+        public synchronized void transferred(long count) {
+            if (count <= 0) return;
+            bytes += count;
+            last = now();
+        }
+
+        /**
+         * The connection is closed, the timeout is cancelled
+         */
+        public synchronized void cancel() {
+            idle.remove(this);
+            phase = CLOSED;
+            if (timeout != null) timeout.cancel();
+            timeout = null;
+        }
+
+        private void enter(int phase) {
+            if (this.phase == CLOSED) return;
+            if (phase == IDLE) {
+                idle.add(this);
+            } else if (this.phase == IDLE) {
+                idle.remove(this);
+            }
+            this.phase = phase;
+            start = now();
+            last = start;
+            bytes = 0;
+            schedule();
+        }
+
+        /**
+         * Makes sure the timeout expires no later than the deadline of the current phase
+         */
+        private void schedule() {
+            long deadline = deadline();
+            if (deadline == NONE || (timeout != null && timeoutAt <= deadline)) return;
+            if (timeout != null) timeout.cancel();
+            timeoutAt = deadline;
+            timeout = timers.schedule(this::expire, deadline - now());
+        }
+
+        private long deadline() {
+            switch (phase) {
+                case HANDSHAKE:
+                    return start + handshakeTimeout;
+                case HEADERS:
+                    return start + settings.getHeaderTimeout();
+                case IDLE:
+                    return start + settings.getKeepAliveTimeout();
+                case BODY:
+                    return deadline(settings.getBodyTimeout(), settings.getMinBodyRate());
+                case WRITING:
+                    return deadline(settings.getWriteTimeout(), settings.getMinWriteRate());
+                default:
+                    return NONE;
+            }
+        }
+
+        private long deadline(int timeout, int minRate) {
+            long deadline = last + timeout;
+            if (minRate > 0) deadline = Math.min(deadline, start + timeout + bytes * 1000 / minRate);
+            return deadline;
+        }
+
+        private void expire() {
+            int expired;
+            synchronized (this) {
+                timeout = null;
+                timeoutAt = NONE;
+                long deadline = deadline();
+                if (deadline == NONE) return;
+                if (now() < deadline) {
+                    //Extended since the timeout was scheduled
+                    schedule();
+                    return;
+                }
+                expired = phase;
+                phase = CLOSED;
+                idle.remove(this);
+            }
+            closed[expired].incrementAndGet();
+            Logger.d("TIMEOUT", "Closing connection, timed out " + PHASES[expired]);
+            onTimeout.run();
+        }
+
+        /**
+         * Closes the connection if it is still waiting for its next request
+         */
+        private boolean closeIdle() {
+            synchronized (this) {
+                if (phase != IDLE) return false;
+                phase = CLOSED;
+                idle.remove(this);
+                if (timeout != null) timeout.cancel();
+                timeout = null;
+            }
+            closed[IDLE].incrementAndGet();
+            Logger.d("TIMEOUT", "Closing idle connection, another connection needs the worker");
+            onTimeout.run();
+            return true;
+        }
+
+        /**
+         * Wraps the stream a blocking connection reads requests from.<br>
+         * The phase follows the parser, received bytes are recorded
+         *
+         * @param in     Stream of the socket
+         * @param parser Parser the stream is read by
+         * @return Stream to read from
+         */
+        public InputStream watchInput(InputStream in, final RequestParser parser) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (parser.isReadingBody()) {
+                        readingBody();
+                    } else if (parser.hasPartialRequest()) {
+                        readingHeaders();
+                    }
+                    int read = super.read(b, off, len);
+                    transferred(read);
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * Wraps the stream a blocking connection writes responses to.<br>
+         * Every write has to finish within the write timeout, large writes are split up so every part gets its own.
+         * After a write the handler continues, no limit applies
+         *
+         * @param out       Stream of the socket
+         * @param chunkSize Maximum number of bytes written at once
+         * @return Stream to write to
+         */
+        public OutputStream watchOutput(OutputStream out, final int chunkSize) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int count = Math.min(len, chunkSize);
+                        writing();
+                        out.write(b, off, count);
+                        transferred(count);
+                        processing();
+                        off += count;
+                        len -= count;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns how many connections have been closed because the TLS handshake took too long
+     *
+     * @return Number of connections
+     */
+    public long getHandshakeTimeouts() {
+        return closed[HANDSHAKE].get();
+    }
+
+    /**
+     * Returns how many connections have been closed because the headers of a request took too long
+     *
+     * @return Number of connections
+     */
+    public long getHeaderTimeouts() {
+        return closed[HEADERS].get();
+    }
+
+    /**
+     * Returns how many connections have been closed because the body of a request stalled or was too slow
+     *
+     * @return Number of connections
+     */
+    public long getBodyTimeouts() {
+        return closed[BODY].get();
+    }
+
+    /**
+     * Returns how many idle connections have been closed after the keep-alive timeout, or before it because another
+     * connection needed their worker
+     *
+     * @return Number of connections
+     */
+    public long getIdleTimeouts() {
+        return closed[IDLE].get();
+    }
+
+    /**
+     * Returns how many connections have been closed because the client didn't receive the response fast enough
+     *
+     * @return Number of connections
+     */
+    public long getWriteTimeouts() {
+        return closed[WRITING].get();
+    }
+
+    /**
+     * Returns how many requests have been answered with a 504 Gateway Timeout because their handler didn't complete the
+     * response in time
+     *
+     * @return Number of requests
+     */
+    public long getHandlerTimeouts() {
+        return handlerTimeouts.get();
+    }
+}
@@ -0,0 +1,157 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single reactor thread of the {@link NIOServer}.<br>
+ * Every event loop owns a selector and does all non-blocking reads and writes for the connections registered with it.
+ * Other threads talk to the loop by queueing tasks with {@link #execute(Runnable)}, which are run on the loop thread.
+ *
+ * @author Deadmist
+ */
+class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final NIOServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    //Shared by every connection of this loop, data is copied out of it before the next read
+    private final ByteBuffer readBuffer = BufferPool.getDefault().acquireDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    EventLoop(NIOServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on a new thread
+     *
+     * @param name Name of the thread
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop and closes every connection registered with it
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a task that is run on the loop thread
+     *
+     * @param task Task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a newly accepted connection with this loop
+     *
+     * @param channel Channel of the connection, still in blocking mode
+     */
+    void register(final SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NIOConnection(server, this, channel, key));
+            } catch (IOException e) {
+                Logger.w("NIO", "Could not register connection", e);
+                server.getAdmissionControl().closeConnection();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    Logger.d("NIO", "Could not close channel", ex);
+                }
+            }
+        });
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NIOConnection connection = (NIOConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    } catch (IOException e) {
+                        Logger.d("NIO", "IOException on connection", e);
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                Logger.e("NIO", "Exception in event loop", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.e("NIO", "Exception in event loop task", e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object connection = key.attachment();
+            if (connection instanceof NIOConnection) {
+                ((NIOConnection) connection).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Logger.w("NIO", "Could not close selector", e);
+        }
+        BufferPool.getDefault().release(readBuffer);
+    }
+}
@@ -4,17 +4,18 @@ import de.deadmist.deLog.Logger;
 import de.deadmist.deadSimpleHttp.handlers.IncomingHandler;
 import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A simple HTTPS server, functionality is provided through {@link de.deadmist.deadSimpleHttp.handlers.RequestHandler RequestHandlers} that
  * are matched to the requested URL.<br>
  * <p>
- * This server communicates over HTTPS, you need to supply it with a certificate and private key in a javakeystore file.
+ * This server communicates over HTTPS, you need to supply it with a certificate and private key in a javakeystore file,
+ * or a {@link TLSConfig} for more control over protocols, cipher suites and session resumption.
  * </p>
  * <p>
  * Per default no handlers are registered on the server and every request will be responded with a 501 Not Implemented error.<br>
@@ -29,14 +30,36 @@ import java.util.HashMap;
  * catch anything not covered by another handler and return a 404 Not Found error instead.
  * </li>
  * </ul>
+ * <p>
+ * The server thread only accepts connections, they are processed on the threads of a {@link WorkerPool}.
+ * The TLS handshake runs on the worker as well. It has to finish within the handshake timeout of the {@link TLSConfig},
+ * the {@link ConnectionTimeouts} close connections whose handshake takes longer, so a slow client never holds up the
+ * accept thread or other clients.
+ * </p>
  *
  * @author Deadmist
  */
-public class HTTPSServer extends Thread {
-    private boolean interrupted = false;
-    private HashMap<String, RequestHandler> handlers;
+public class HTTPSServer extends AbstractServer {
 
-    private SSLServerSocket serverSocket;
+    private final TLSConfig tls;
+
+    /**
+     * Creates a new server instance.<br>
+     * Start the server by calling start()
+     *
+     * @param port       Port to listen on (443 is default for HTTPS)
+     * @param backlog    Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers   List of handlers to handle requests
+     * @param tls        TLS configuration with certificate and private key, can be shared between servers
+     * @param workerPool Pool of worker threads that process the connections, can be shared between servers
+     * @throws IOException Thrown when no socket can be created
+     */
+    public HTTPSServer(int port, int backlog, HashMap<String, RequestHandler> handlers, TLSConfig tls,
+                       WorkerPool workerPool) throws IOException {
+        super("HTTPS", handlers, workerPool);
+        this.tls = tls;
+        serverSocket = tls.createServerSocket(port, backlog);
+    }
 
     /**
      * Creates a new server instance.<br>
@@ -47,22 +70,31 @@ public class HTTPSServer extends Thread {
      * @param handlers         List of handlers to handle requests
      * @param keyStore         Path to the keystore file containing certificate and private key
      * @param keyStorePassword Password for the keystore
+     * @param workerPool       Pool of worker threads that process the connections, can be shared between servers
+     * @throws IOException Thrown when no socket can be created or the keystore can not be read
+     */
+    public HTTPSServer(int port, int backlog, HashMap<String, RequestHandler> handlers, String keyStore, String keyStorePassword,
+                       WorkerPool workerPool) throws IOException {
+        this(port, backlog, handlers, new TLSConfig(keyStore, keyStorePassword), workerPool);
+    }
+
+    /**
+     * Creates a new server instance with a default {@link WorkerPool}.<br>
+     * Start the server by calling start()
+     *
+     * @param port             Port to listen on (443 is default for HTTPS)
+     * @param backlog          Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers         List of handlers to handle requests
+     * @param keyStore         Path to the keystore file containing certificate and private key
+     * @param keyStorePassword Password for the keystore
      * @throws IOException Thrown when no socket can be created
      */
     public HTTPSServer(int port, int backlog, HashMap<String, RequestHandler> handlers, String keyStore, String keyStorePassword) throws IOException {
-        this.handlers = handlers;
-
-        System.setProperty("javax.net.ssl.keyStore", keyStore);
-        System.setProperty("javax.net.ssl.keyStorePassword", keyStorePassword);
-
-        SSLServerSocketFactory socketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-        serverSocket = (SSLServerSocket) socketFactory.createServerSocket(port, backlog);
-        String[] suites = serverSocket.getSupportedCipherSuites();
-        serverSocket.setEnabledCipherSuites(suites);
+        this(port, backlog, handlers, keyStore, keyStorePassword, null);
     }
 
     /**
-     * Creates a new server instance.<br>
+     * Creates a new server instance with a default {@link WorkerPool}.<br>
      * Start the server by calling start()
      *
      * @param port             Port to listen on
@@ -72,60 +104,64 @@ public class HTTPSServer extends Thread {
      * @throws IOException Thrown when no socket can be created
      */
     public HTTPSServer(int port, int backlog, String keyStore, String keyStorePassword) throws IOException {
-        this.handlers = new HashMap<>();
-
-        System.setProperty("javax.net.ssl.keyStore", keyStore);
-        System.setProperty("javax.net.ssl.keyStorePassword", keyStorePassword);
-
-        SSLServerSocketFactory socketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-        serverSocket = (SSLServerSocket) socketFactory.createServerSocket(port, backlog);
-        String[] suites = serverSocket.getSupportedCipherSuites();
-        serverSocket.setEnabledCipherSuites(suites);
+        this(port, backlog, new HashMap<>(), keyStore, keyStorePassword, null);
     }
 
     /**
-     * Adds a new RequestHandler
+     * Returns the TLS configuration of this server, e.g. for reading the handshake metrics
      *
-     * @param pattern Pattern to match URLs against
-     * @param handler Handler to handler requests
+     * @return The configuration
      */
-    public void addHandler(String pattern, RequestHandler handler) {
-        this.handlers.put(pattern, handler);
+    public TLSConfig getTLSConfig() {
+        return tls;
     }
 
     /**
-     * This method is required to be public, but should never be called directly.
-     * Use start() instead
+     * Hands a new connection over to the worker pool, which runs the handshake before reading the first request
+     *
+     * @param socket Socket of the new connection
      */
     @Override
-    public void run() {
-        Logger.i("HTTPS", "Starting server");
-        while (!interrupted) {
-            try {
-                Socket socket = serverSocket.accept();
-                Logger.d("HTTPS", "New connection");
-                IncomingHandler handler = new IncomingHandler(socket, handlers);
-                handler.run();
-            } catch (IOException e) {
-                if (!interrupted) { //Server should not have stopped
-                    Logger.e("HTTPS", "Exception waiting for connections", e);
+    protected void dispatch(final Socket socket) {
+        //The timeout of a single read doesn't stop a client that sends its handshake one byte at a time
+        final ConnectionTimeouts.Watch watch = timeouts.watch(() -> close(socket));
+        watch.handshaking(tls.getHandshakeTimeout());
+        final IncomingHandler handler = new IncomingHandler(socket, router, settings, admission, timeouts, workerPool,
+                watch);
+        try {
+            workerPool.execute(() -> {
+                if (tls.handshake((SSLSocket) socket)) {
+                    handler.run();
+                } else {
+                    watch.cancel();
+                    admission.closeConnection();
+                    close(socket);
                 }
-            }
+            });
+            freeIdleWorker();
+        } catch (RejectedExecutionException e) {
+            Logger.w(tag, "Worker pool saturated, dropping connection from " + socket.getRemoteSocketAddress());
+            watch.cancel();
+            admission.closeConnection();
+            close(socket);
         }
-        Logger.i("HTTPS", "Stopping server");
     }
 
     /**
-     * Stops the server
+     * Closes a connection the server has no capacity for, answering it would need a handshake
+     *
+     * @param socket Socket of the new connection
      */
     @Override
-    public void interrupt() {
-        super.interrupt();
+    protected void shed(Socket socket) {
+        close(socket);
+    }
+
+    private void close(Socket socket) {
         try {
-            serverSocket.close();
+            socket.close();
         } catch (IOException e) {
-            Logger.w("HTTPS", "Couldn't close server socket", e);
+            Logger.w(tag, "Couldn't close socket", e);
         }
-        this.interrupted = true;
     }
 }
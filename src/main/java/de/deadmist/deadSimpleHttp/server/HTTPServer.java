@@ -1,12 +1,10 @@
 package de.deadmist.deadSimpleHttp.server;
 
-import de.deadmist.deLog.Logger;
-import de.deadmist.deadSimpleHttp.handlers.IncomingHandler;
 import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 
 /**
@@ -25,31 +23,48 @@ import java.util.HashMap;
  * catch anything not covered by another handler and return a 404 Not Found error instead.
  * </li>
  * </ul>
+ * <p>
+ * The server thread only accepts connections, they are processed on the threads of a {@link WorkerPool}.
+ * Connections are accepted through a channel, so files can be sent straight from disk to the socket.
+ * </p>
  *
  * @author Deadmist
  */
-public class HTTPServer extends Thread {
-    private boolean interrupted = false;
-    private HashMap<String, RequestHandler> handlers;
-
-    private ServerSocket serverSocket;
+public class HTTPServer extends AbstractServer {
 
     /**
      * Creates a new server instance.<br>
      * Start the server by calling start()
      *
+     * @param port       Port to listen on (80 is default for HTTP)
+     * @param backlog    Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers   List of handlers to handle requests
+     * @param workerPool Pool of worker threads that process the connections, can be shared between servers
+     * @throws IOException Thrown when no socket can be created
+     */
+    public HTTPServer(int port, int backlog, HashMap<String, RequestHandler> handlers, WorkerPool workerPool) throws IOException {
+        super("HTTP", handlers, workerPool);
+        //Sockets of a channel can send files without copying them, see Response.transferBodyTo
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port), backlog);
+        serverSocket = channel.socket();
+    }
+
+    /**
+     * Creates a new server instance with a default {@link WorkerPool}.<br>
+     * Start the server by calling start()
+     *
      * @param port     Port to listen on (80 is default for HTTP)
      * @param backlog  Size of the backlog, the bigger the more connections can be waiting
      * @param handlers List of handlers to handle requests
      * @throws IOException Thrown when no socket can be created
      */
     public HTTPServer(int port, int backlog, HashMap<String, RequestHandler> handlers) throws IOException {
-        this.handlers = handlers;
-        serverSocket = new ServerSocket(port, backlog);
+        this(port, backlog, handlers, null);
     }
 
     /**
-     * Creates a new server instance.<br>
+     * Creates a new server instance with a default {@link WorkerPool}.<br>
      * Start the server by calling start()
      *
      * @param port    Port to listen on
@@ -57,53 +72,6 @@ public class HTTPServer extends Thread {
      * @throws IOException Thrown when no socket can be created
      */
     public HTTPServer(int port, int backlog) throws IOException {
-        this.handlers = new HashMap<>();
-        serverSocket = new ServerSocket(port, backlog);
-    }
-
-    /**
-     * Adds a new RequestHandler
-     *
-     * @param pattern Pattern to match URLs against
-     * @param handler Handler to handler requests
-     */
-    public void addHandler(String pattern, RequestHandler handler) {
-        this.handlers.put(pattern, handler);
-    }
-
-    /**
-     * This method is required to be public, but should never be called directly.
-     * Use start() instead
-     */
-    @Override
-    public void run() {
-        Logger.i("HTTP", "Starting server");
-        while (!interrupted) {
-            try {
-                Socket socket = serverSocket.accept();
-                Logger.d("HTTP", "New connection");
-                IncomingHandler handler = new IncomingHandler(socket, handlers);
-                handler.run();
-            } catch (IOException e) {
-                if (!interrupted) {
-                    Logger.e("HTTP", "Exception while waiting for connection", e);
-                }
-            }
-        }
-        Logger.i("HTTP", "Stopping server");
-    }
-
-    /**
-     * Stops the server
-     */
-    @Override
-    public void interrupt() {
-        super.interrupt();
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            Logger.w("HTTP", "Couldn't close server socket", e);
-        }
-        this.interrupted = true;
+        this(port, backlog, new HashMap<>(), null);
     }
 }
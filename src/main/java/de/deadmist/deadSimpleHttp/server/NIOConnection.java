@@ -0,0 +1,713 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.errors.RequestException;
+import de.deadmist.deadSimpleHttp.handlers.IncomingHandler;
+import de.deadmist.deadSimpleHttp.structures.Request;
+import de.deadmist.deadSimpleHttp.structures.RequestParser;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.structures.ResponseEncoder;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+import de.deadmist.deadSimpleHttp.util.StandardResponses;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * State of a single connection of the {@link NIOServer}.<br>
+ * Received bytes are fed to a {@link RequestParser} on the event loop, once a request is complete it is processed
+ * on the worker pool and the response is written back without blocking the event loop.
+ * Bodies too large for memory are written to their temporary file by a worker, the loop keeps receiving meanwhile
+ * and stops reading once SPILL_WINDOW bytes wait for the disk.
+ * Afterwards the connection either waits for the next request or is closed, see
+ * {@link IncomingHandler#applyKeepAlive(Request, Response, int, ServerSettings)}.
+ * Pipelined requests are processed one after another and their responses are written together.
+ * <p>
+ * Bodies that are a region of a file are transferred straight from the file to the channel by the event loop,
+ * without copying them through the heap.
+ * Streamed response bodies are produced on the worker thread in parts of STREAM_PART_SIZE bytes and handed to the
+ * loop for writing. The parts are borrowed from the {@link BufferPool} and returned once they have been written.
+ * At most STREAM_WINDOW bytes can wait for the socket, after that the worker blocks until the client has received
+ * more data, so a slow client doesn't make the server buffer the whole body.
+ * </p>
+ * <p>
+ * On a HTTPS server the connection reads and writes through a {@link TLSChannel}. Requests are only read once the
+ * handshake is done, it has to finish within the handshake timeout of the {@link TLSConfig}.
+ * </p>
+ * <p>
+ * The connection tells its {@link ConnectionTimeouts.Watch} what it is waiting for. Once a timeout expires the timer
+ * thread hands the connection back to the event loop, which closes it.
+ * </p>
+ * <p>
+ * A complete request is only handed to the worker pool once the {@link AdmissionControl} admits it, the connection
+ * waits without holding a worker until then. Requests that are not admitted are answered with a 503 Service
+ * Unavailable.
+ * </p>
+ * <p>
+ * Every method except {@link #process(Request, int)} and {@link #respond(Request, Response, int)} is called on the
+ * event loop thread.
+ * </p>
+ *
+ * @author Deadmist
+ */
+class NIOConnection {
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+    private static final int STREAM_PART_SIZE = 16 * 1024;
+    private static final int STREAM_WINDOW = 256 * 1024;
+    private static final int SPILL_WINDOW = 256 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final NIOServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    //Encrypts the connection on a HTTPS server, null otherwise
+    private final TLSChannel tls;
+    private final SelectionKey key;
+    private final RequestParser parser;
+    private final ConnectionTimeouts.Watch watch;
+    //Used by the worker processing the current request, or by the event loop when rejecting one
+    private final ResponseEncoder encoder = new ResponseEncoder();
+
+    //Received data that has not been passed to the parser yet, e.g. while the previous request is processed
+    private byte[] data = EMPTY;
+    private int length;
+
+    //Responses waiting to be written, in the order of the requests. Contains ByteBuffers and FileRegions
+    private final ArrayDeque<Object> output = new ArrayDeque<>();
+    //Parts of streamed responses in the output queue, returned to the pool once written
+    private final Set<ByteBuffer> parts = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long queuedBytes;
+
+    //Credits of the response that is currently streamed, released as its bytes are written
+    private Semaphore streamCredits;
+    //Queued bytes in front of the streamed response
+    private long streamAhead;
+
+    private boolean handshaking;
+    //A worker writes received body data to the temporary file, the parser belongs to it until it is done
+    private boolean spilling;
+    private final long connected = System.nanoTime();
+    private boolean processing;
+    private boolean writing;
+    private volatile boolean closed;
+    private boolean keepAlive;
+    private int served;
+
+    NIOConnection(NIOServer server, EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.parser = server.getSettings().createParser();
+        TLSConfig config = server.getTLSConfig();
+        this.tls = config == null ? null : new TLSChannel(channel, config.createEngine(), config.getTaskExecutor());
+        this.handshaking = tls != null;
+        this.watch = server.getConnectionTimeouts().watch(() -> loop.execute(this::timedOut));
+        if (handshaking) watch.handshaking(config.getHandshakeTimeout());
+    }
+
+    private void timedOut() {
+        if (handshaking) server.getTLSConfig().handshakeFailed();
+        close();
+    }
+
+    /**
+     * Continues the TLS handshake, starts reading requests once it is done
+     */
+    private void continueHandshake() {
+        if (closed) return;
+        int status;
+        try {
+            status = tls.handshake(() -> loop.execute(this::continueHandshake));
+        } catch (IOException e) {
+            Logger.d("NIO", "[" + channel.socket().getRemoteSocketAddress() + "] Handshake failed: " + e.getMessage());
+            server.getTLSConfig().handshakeFailed();
+            close();
+            return;
+        }
+        switch (status) {
+            case TLSChannel.HANDSHAKE_NEED_READ:
+                key.interestOps(SelectionKey.OP_READ);
+                break;
+            case TLSChannel.HANDSHAKE_NEED_WRITE:
+                key.interestOps(SelectionKey.OP_WRITE);
+                break;
+            case TLSChannel.HANDSHAKE_RUNNING_TASKS:
+                key.interestOps(0);
+                break;
+            default:
+                handshaking = false;
+                server.getTLSConfig().handshakeCompleted(tls.getEngine().getSession(), connected);
+                watch.awaitRequest(true);
+                key.interestOps(SelectionKey.OP_READ);
+                //The client might have sent its first request together with the end of the handshake
+                if (tls.hasBufferedInput()) {
+                    try {
+                        onReadable();
+                    } catch (IOException e) {
+                        Logger.d("NIO", "IOException on connection", e);
+                        close();
+                    }
+                }
+        }
+    }
+
+    /**
+     * Reads everything available from the channel and starts processing once a request is complete
+     *
+     * @throws IOException If reading from the channel fails
+     */
+    void onReadable() throws IOException {
+        if (handshaking) {
+            continueHandshake();
+            return;
+        }
+        ByteBuffer buffer = loop.getReadBuffer();
+        int read;
+        do {
+            buffer.clear();
+            read = tls != null ? tls.read(buffer) : channel.read(buffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            buffer.flip();
+            watch.transferred(read);
+            append(buffer);
+            //Decrypted data does not make the socket readable again, it has to be read now
+        } while (tls != null && read > 0 && tls.hasBufferedInput());
+        //Don't receive the body faster than it can be written to the disk
+        if (spilling && length >= SPILL_WINDOW) key.interestOps(0);
+        tryDispatch();
+    }
+
+    /**
+     * Continues writing responses that did not fit into the socket buffer
+     *
+     * @throws IOException If writing to the channel fails
+     */
+    void onWritable() throws IOException {
+        if (handshaking) {
+            continueHandshake();
+            return;
+        }
+        flush();
+    }
+
+    private void append(ByteBuffer buffer) {
+        int needed = length + buffer.remaining();
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, Math.max(needed, Math.max(1024, data.length * 2)));
+        }
+        buffer.get(data, length, buffer.remaining());
+        length = needed;
+    }
+
+    /**
+     * Parses the received data and starts processing the next request if it is complete
+     *
+     * @return true if a request was dispatched or rejected
+     */
+    private boolean tryDispatch() {
+        if (processing || writing || spilling || closed || length == 0) return false;
+
+        ByteBuffer received = ByteBuffer.wrap(data, 0, length);
+        final Request request;
+        try {
+            request = parser.parseInMemory(received);
+        } catch (RequestException e) {
+            reject(e.getMessage());
+            return true;
+        } catch (IOException e) {
+            Logger.w("NIO", "Could not store request body", e);
+            close();
+            return true;
+        }
+        //Keep what the parser did not consume, it belongs to the next request
+        System.arraycopy(data, received.position(), data, 0, received.remaining());
+        length = received.remaining();
+        if (request == null) {
+            if (parser.isReadingBody()) {
+                watch.readingBody();
+            } else if (parser.hasPartialRequest()) {
+                watch.readingHeaders();
+            }
+            if (parser.isSpillingBody() && length > 0) spill();
+            return false;
+        }
+        dispatch(request);
+        return true;
+    }
+
+    /**
+     * Hands the received data to a worker, which writes the body to its temporary file
+     */
+    private void spill() {
+        //The worker owns the data from now on, data received meanwhile is collected in a new array
+        final byte[] chunk = data;
+        final int count = length;
+        data = EMPTY;
+        length = 0;
+        spilling = true;
+        try {
+            server.getWorkerPool().execute(() -> {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+                Request request = null;
+                boolean failed = false;
+                try {
+                    request = parser.parse(buffer);
+                } catch (IOException | RequestException e) {
+                    Logger.w("NIO", "Could not store request body", e);
+                    failed = true;
+                }
+                final Request complete = request;
+                final boolean stored = !failed;
+                loop.execute(() -> spilled(complete, stored, buffer));
+            });
+        } catch (RejectedExecutionException e) {
+            Logger.w("NIO", "Worker pool saturated, dropping request body");
+            spilling = false;
+            close();
+        }
+    }
+
+    /**
+     * Continues after a worker has written received body data, runs on the event loop
+     *
+     * @param request  The request if its body is complete, otherwise null
+     * @param stored   false if the body could not be written
+     * @param leftover Data after the end of the body, belongs to the next request
+     */
+    private void spilled(Request request, boolean stored, ByteBuffer leftover) {
+        spilling = false;
+        if (closed) {
+            //The connection was closed while the worker used the parser, this deletes the partial body
+            parser.reset();
+            if (request != null) request.closeBody();
+            return;
+        }
+        if (!stored) {
+            close();
+            return;
+        }
+        if (leftover.hasRemaining()) {
+            //Goes in front of the data received in the meantime
+            byte[] merged = new byte[Math.max(1024, leftover.remaining() + length)];
+            int before = leftover.remaining();
+            leftover.get(merged, 0, before);
+            System.arraycopy(data, 0, merged, before, length);
+            data = merged;
+            length += before;
+        }
+        if (request != null) {
+            dispatch(request);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        tryDispatch();
+    }
+
+    /**
+     * Starts processing a complete request once the {@link AdmissionControl} admits it
+     *
+     * @param request The request
+     */
+    private void dispatch(final Request request) {
+        watch.processing();
+        processing = true;
+        key.interestOps(0);
+        final int count = ++served;
+        final AdmissionControl admission = server.getAdmissionControl();
+        admission.admit(server.getSettings().getPriority(request.getFile()), () -> {
+            try {
+                server.getWorkerPool().execute(() -> process(request, count));
+            } catch (RejectedExecutionException e) {
+                admission.release();
+                loop.execute(() -> shed(request));
+            }
+        }, () -> loop.execute(() -> shed(request)));
+    }
+
+    /**
+     * Processes a request, runs on a worker thread.<br>
+     * The response of an {@link de.deadmist.deadSimpleHttp.handlers.AsyncRequestHandler AsyncRequestHandler} is
+     * sent once it completes, the worker is free in the meantime.
+     *
+     * @param request Complete request
+     * @param served  Number of requests on this connection, including this one
+     */
+    private void process(final Request request, final int served) {
+        Logger.d("NIO", "[" + channel.socket().getRemoteSocketAddress() + "] Requested file: " + request.getFile());
+
+        CompletableFuture<Response> future = server.getConnectionTimeouts()
+                .limit(IncomingHandler.processAsync(request, server.getRouter()));
+        if (future.isDone()) {
+            respond(request, future.join(), served);
+            return;
+        }
+        //Completed by a thread of the handler, the response might be streamed so it is sent from a worker
+        future.thenAccept(response -> {
+            try {
+                server.getWorkerPool().execute(() -> respond(request, response, served));
+            } catch (RejectedExecutionException e) {
+                respond(request, response, served);
+            }
+        });
+    }
+
+    /**
+     * Sends the response to a request
+     *
+     * @param request  The request
+     * @param response Response to the request
+     * @param served   Number of requests on this connection, including this one
+     */
+    private void respond(Request request, Response response, int served) {
+        try {
+            IncomingHandler.applyCompression(request, response, server.getSettings());
+            IncomingHandler.applyTransferEncoding(request, response);
+            final boolean keepAlive = IncomingHandler.applyKeepAlive(request, response, served, server.getSettings());
+
+            byte[] head = encoder.encodeHeadBytes(response);
+            //Head and body are queued separately and sent with a gathering write, the body is never copied
+            Object body = null;
+            boolean chunked = response.getHeader("Transfer-Encoding") != null;
+            if (request.getMethod().equals("HEAD")) {
+                response.closeBody();
+            } else if (response.getBodyFile() != null && !chunked) {
+                body = new FileRegion(response.getBodyFile(), response.getBodyPosition(), response.getContentLength());
+            } else if (response.getBodyBuffer() != null && !chunked) {
+                //Written from the buffer as it is, a cached file is never copied
+                body = response.getBodyBuffer().duplicate();
+            } else if (response.isStreaming()) {
+                try (OutputStream out = new StreamOutput(new Semaphore(STREAM_WINDOW))) {
+                    out.write(head);
+                    response.writeBody(out);
+                }
+                head = EMPTY;
+            } else if (response.getBody().length > 0) {
+                body = ByteBuffer.wrap(response.getBody());
+            }
+
+            final byte[] queuedHead = head;
+            final Object queuedBody = body;
+            loop.execute(() -> queueResponse(queuedHead, queuedBody, keepAlive));
+        } catch (IOException e) {
+            Logger.d("NIO", "Could not stream response", e);
+            loop.execute(this::close);
+        } catch (RuntimeException e) {
+            //Nothing has been queued, without closing the connection would wait for the response forever
+            Logger.e("NIO", "Exception while sending response", e);
+            loop.execute(this::close);
+        } finally {
+            request.closeBody();
+            server.getAdmissionControl().release();
+        }
+    }
+
+    /**
+     * Queues a part of a streamed response for sending
+     *
+     * @param part    Part of the response
+     * @param credits Credits of the streamed response, released once the part is written
+     */
+    private void queuePart(ByteBuffer part, Semaphore credits) {
+        if (closed) {
+            BufferPool.getDefault().release(part);
+            return;
+        }
+        if (streamCredits != credits) {
+            //First part of the response, everything queued before it has to be written first
+            streamCredits = credits;
+            streamAhead = 0;
+            for (Object item : output) {
+                streamAhead += remaining(item);
+            }
+        }
+        output.add(part);
+        parts.add(part);
+        queuedBytes += part.remaining();
+        try {
+            flush();
+        } catch (IOException e) {
+            Logger.d("NIO", "IOException writing to channel", e);
+            close();
+        }
+    }
+
+    /**
+     * Answers a request the server has no capacity for with a 503 Service Unavailable and closes the connection
+     *
+     * @param request The request
+     */
+    private void shed(Request request) {
+        Logger.d("NIO", "[" + channel.socket().getRemoteSocketAddress() + "] Server busy, shedding request");
+        request.closeBody();
+        Response response = StandardResponses.create503(server.getSettings().getRetryAfter());
+        response.setHeader("Connection", "close");
+        queueResponse(encoder.encodeHeadBytes(response), response.getBodyBuffer().duplicate(), false);
+    }
+
+    private void reject(String reason) {
+        processing = true;
+        Response response = StandardResponses.create400(reason);
+        response.setHeader("Connection", "close");
+        queueResponse(encoder.encodeHeadBytes(response), ByteBuffer.wrap(response.getBody()), false);
+    }
+
+    /**
+     * Queues a response for sending.<br>
+     * If the client has already pipelined the next request, that request is processed first and both responses
+     * are written together, up to MAX_BATCH_SIZE bytes.
+     *
+     * @param bytes     Encoded head of the response
+     * @param body      Body of the response, a {@link ByteBuffer} or {@link FileRegion}, or null if there is none
+     * @param keepAlive Whether the connection stays open after this response
+     */
+    private void queueResponse(byte[] bytes, Object body, boolean keepAlive) {
+        if (closed) {
+            if (body instanceof FileRegion) ((FileRegion) body).close();
+            return;
+        }
+        output.add(ByteBuffer.wrap(bytes));
+        queuedBytes += bytes.length;
+        if (body != null) {
+            output.add(body);
+            queuedBytes += remaining(body);
+        }
+        this.keepAlive = keepAlive;
+        processing = false;
+        streamCredits = null;
+
+        if (keepAlive && queuedBytes < MAX_BATCH_SIZE && tryDispatch()) return;
+        try {
+            flush();
+        } catch (IOException e) {
+            Logger.d("NIO", "IOException writing to channel", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes all queued responses, continues when the channel becomes writable again.<br>
+     * Consecutive buffers are written with a single gathering write, file regions are transferred by the operating system.
+     *
+     * @throws IOException If writing to the channel fails
+     */
+    private void flush() throws IOException {
+        while (!output.isEmpty()) {
+            long written;
+            if (output.peek() instanceof FileRegion) {
+                FileRegion region = (FileRegion) output.peek();
+                //Through TLS the file is copied and encrypted, it can't go straight to the socket
+                written = region.file.transferTo(region.position, region.remaining(), tls != null ? tls : channel);
+                if (written == 0 && region.position >= region.file.size()) {
+                    throw new EOFException("File is shorter than the response");
+                }
+                region.position += written;
+            } else {
+                written = tls != null ? tls.write(leadingBuffers()) : channel.write(leadingBuffers());
+            }
+            if (streamCredits != null) releaseCredits(written);
+            watch.transferred(written);
+
+            while (!output.isEmpty() && remaining(output.peek()) == 0) {
+                Object done = output.poll();
+                if (done instanceof FileRegion) {
+                    ((FileRegion) done).close();
+                } else if (parts.remove(done)) {
+                    BufferPool.getDefault().release((ByteBuffer) done);
+                }
+            }
+            //Stop once the socket buffer is full
+            if (!output.isEmpty() && remaining(output.peek()) > 0 && written == 0) break;
+        }
+        if (!output.isEmpty() || (tls != null && !tls.flush())) {
+            watch.writing();
+            writing = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        writing = false;
+        queuedBytes = 0;
+
+        if (processing) {
+            //The worker is still streaming the response, wait for the next part
+            watch.processing();
+            key.interestOps(0);
+            return;
+        }
+
+        if (!keepAlive) {
+            close();
+            return;
+        }
+        //Wait for the next request, the client might have sent it already
+        watch.awaitRequest(false);
+        key.interestOps(SelectionKey.OP_READ);
+        tryDispatch();
+    }
+
+    /**
+     * Returns the buffers at the start of the output queue, up to the first file region
+     *
+     * @return Buffers for a gathering write
+     */
+    private ByteBuffer[] leadingBuffers() {
+        int count = 0;
+        for (Object item : output) {
+            if (!(item instanceof ByteBuffer)) break;
+            count++;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int i = 0;
+        for (Object item : output) {
+            if (i == count) break;
+            buffers[i++] = (ByteBuffer) item;
+        }
+        return buffers;
+    }
+
+    private static long remaining(Object item) {
+        return item instanceof FileRegion ? ((FileRegion) item).remaining() : ((ByteBuffer) item).remaining();
+    }
+
+    private void releaseCredits(long written) {
+        long streamed = written - streamAhead;
+        streamAhead = Math.max(0, streamAhead - written);
+        if (streamed > 0) streamCredits.release((int) streamed);
+    }
+
+    /**
+     * Closes the connection, can be called multiple times
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        watch.cancel();
+        server.getAdmissionControl().closeConnection();
+        //A worker writing the body still uses the parser, it is reset once the worker is done
+        if (!spilling) parser.reset();
+        for (Object item : output) {
+            if (item instanceof FileRegion) ((FileRegion) item).close();
+        }
+        output.clear();
+        for (ByteBuffer part : parts) {
+            BufferPool.getDefault().release(part);
+        }
+        parts.clear();
+        //Wakes up a worker waiting to stream more data, it notices the connection is closed
+        if (streamCredits != null) streamCredits.release(STREAM_WINDOW);
+        key.cancel();
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Logger.d("NIO", "Could not close channel", e);
+        }
+    }
+
+    /**
+     * Hands the bytes written by a worker to the event loop in parts, blocks while too much data waits for the socket
+     */
+    private class StreamOutput extends OutputStream {
+        private final Semaphore credits;
+        private ByteBuffer part = BufferPool.getDefault().acquire(STREAM_PART_SIZE);
+        private int count;
+
+        StreamOutput(Semaphore credits) {
+            this.credits = credits;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == part.capacity()) flush();
+            part.array()[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == part.capacity()) flush();
+                int copy = Math.min(len, part.capacity() - count);
+                System.arraycopy(b, off, part.array(), count, copy);
+                count += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) return;
+            if (closed) throw new IOException("Connection closed");
+            try {
+                credits.acquire(count);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the client");
+            }
+            if (closed) throw new IOException("Connection closed");
+
+            //The loop owns the buffer from now on
+            final ByteBuffer buffer = part;
+            buffer.limit(count);
+            part = BufferPool.getDefault().acquire(STREAM_PART_SIZE);
+            count = 0;
+            loop.execute(() -> queuePart(buffer, credits));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                BufferPool.getDefault().release(part);
+            }
+        }
+    }
+
+    /**
+     * Region of a file that is sent as a response body
+     */
+    private static class FileRegion {
+        final FileChannel file;
+        final long end;
+        long position;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Logger.d("NIO", "Could not close file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+
+/**
+ * A HTTP server built on non-blocking NIO channels, functionality is provided through
+ * {@link de.deadmist.deadSimpleHttp.handlers.RequestHandler RequestHandlers} exactly like with the {@link HTTPServer}.<br>
+ * <p>
+ * Instead of tying up a thread for every connection the server runs a fixed number of event loops, per default one per core.
+ * Every event loop does non-blocking reads and writes for its connections and collects requests as they arrive,
+ * so idle or slow connections only cost a bit of memory and no thread.
+ * Complete requests are processed by the handlers on a {@link WorkerPool}, because handlers may block.
+ * </p>
+ * <p>
+ * With a {@link TLSConfig} the server speaks HTTPS. The TLS handshake and encryption run on the event loops as well,
+ * without blocking, so HTTPS connections scale like plain ones. Files are encrypted through a small buffer then.
+ * </p>
+ * <p>
+ * Use this server if you expect a lot of concurrent, mostly idle or slow connections.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class NIOServer extends AbstractServer {
+    private final EventLoop[] eventLoops;
+    private final TLSConfig tls;
+    private int nextLoop = 0;
+
+    /**
+     * Creates a new server instance.<br>
+     * Start the server by calling start()
+     *
+     * @param port       Port to listen on (80 is default for HTTP)
+     * @param backlog    Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers   List of handlers to handle requests
+     * @param eventLoops Number of event loop threads
+     * @param workerPool Pool of worker threads that run the handlers, can be shared between servers
+     * @param tls        TLS configuration for HTTPS, or null for plain HTTP
+     * @throws IOException Thrown when no socket can be created
+     */
+    public NIOServer(int port, int backlog, HashMap<String, RequestHandler> handlers, int eventLoops, WorkerPool workerPool,
+                     TLSConfig tls) throws IOException {
+        super(tls == null ? "NIO" : "NIO-TLS", handlers, workerPool);
+        if (eventLoops < 1) throw new IllegalArgumentException("At least one event loop is required");
+        this.tls = tls;
+        //Idle connections only wait on the event loop, they never hold a worker
+        timeouts.setWorkersNeeded(null);
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.bind(new InetSocketAddress(port), backlog);
+        serverSocket = channel.socket();
+
+        this.eventLoops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.eventLoops[i] = new EventLoop(this);
+        }
+    }
+
+    /**
+     * Creates a new server instance.<br>
+     * Start the server by calling start()
+     *
+     * @param port       Port to listen on (80 is default for HTTP)
+     * @param backlog    Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers   List of handlers to handle requests
+     * @param eventLoops Number of event loop threads
+     * @param workerPool Pool of worker threads that run the handlers, can be shared between servers
+     * @throws IOException Thrown when no socket can be created
+     */
+    public NIOServer(int port, int backlog, HashMap<String, RequestHandler> handlers, int eventLoops, WorkerPool workerPool) throws IOException {
+        this(port, backlog, handlers, eventLoops, workerPool, null);
+    }
+
+    /**
+     * Creates a new HTTPS server instance with one event loop per core and a default {@link WorkerPool}.<br>
+     * Start the server by calling start()
+     *
+     * @param port     Port to listen on (443 is default for HTTPS)
+     * @param backlog  Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers List of handlers to handle requests
+     * @param tls      TLS configuration with certificate and private key, can be shared between servers
+     * @throws IOException Thrown when no socket can be created
+     */
+    public NIOServer(int port, int backlog, HashMap<String, RequestHandler> handlers, TLSConfig tls) throws IOException {
+        this(port, backlog, handlers, Runtime.getRuntime().availableProcessors(), null, tls);
+    }
+
+    /**
+     * Creates a new server instance with one event loop per core and a default {@link WorkerPool}.<br>
+     * Start the server by calling start()
+     *
+     * @param port     Port to listen on (80 is default for HTTP)
+     * @param backlog  Size of the backlog, the bigger the more connections can be waiting
+     * @param handlers List of handlers to handle requests
+     * @throws IOException Thrown when no socket can be created
+     */
+    public NIOServer(int port, int backlog, HashMap<String, RequestHandler> handlers) throws IOException {
+        this(port, backlog, handlers, Runtime.getRuntime().availableProcessors(), null, null);
+    }
+
+    /**
+     * Creates a new server instance with one event loop per core and a default {@link WorkerPool}.<br>
+     * Start the server by calling start()
+     *
+     * @param port    Port to listen on
+     * @param backlog Size of the backlog, the bigger the more connections can be waiting
+     * @throws IOException Thrown when no socket can be created
+     */
+    public NIOServer(int port, int backlog) throws IOException {
+        this(port, backlog, new HashMap<>());
+    }
+
+    /**
+     * Returns the TLS configuration of this server, e.g. for reading the handshake metrics
+     *
+     * @return The configuration, or null if the server speaks plain HTTP
+     */
+    public TLSConfig getTLSConfig() {
+        return tls;
+    }
+
+    /**
+     * This method is required to be public, but should never be called directly.
+     * Use start() instead
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i].start(tag + "-loop-" + i);
+        }
+        super.run();
+        for (EventLoop loop : eventLoops) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Hands a new connection to the next event loop
+     *
+     * @param socket Socket of the new connection
+     */
+    @Override
+    protected void dispatch(Socket socket) {
+        EventLoop loop = eventLoops[nextLoop];
+        nextLoop = (nextLoop + 1) % eventLoops.length;
+        loop.register(socket.getChannel());
+    }
+
+    /**
+     * Answers a connection the server has no capacity for, HTTPS connections are closed without an answer because
+     * that would need a handshake
+     *
+     * @param socket Socket of the new connection
+     */
+    @Override
+    protected void shed(Socket socket) {
+        if (tls == null) {
+            super.shed(socket);
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.w(tag, "Couldn't close shed socket", e);
+        }
+    }
+}
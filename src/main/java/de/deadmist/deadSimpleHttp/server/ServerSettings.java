@@ -0,0 +1,490 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deadSimpleHttp.structures.RequestParser;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Settings that control how a server handles its connections.<br>
+ * Every server has its own instance, see {@link AbstractServer#getSettings()}.
+ * Configure the settings before starting the server.
+ *
+ * @author Deadmist
+ */
+public class ServerSettings {
+    private boolean keepAlive = true;
+    private int keepAliveTimeout = 5000;
+    private int maxKeepAliveRequests = 100;
+    private int headerTimeout = 20000;
+    private int bodyTimeout = 20000;
+    private int minBodyRate = 500;
+    private int writeTimeout = 30000;
+    private int minWriteRate = 0;
+    private int handlerTimeout = 30000;
+    private int maxRequestLineLength = RequestParser.DEFAULT_MAX_REQUEST_LINE_LENGTH;
+    private int maxHeaderSize = RequestParser.DEFAULT_MAX_HEADER_SIZE;
+    private long maxBodySize = RequestParser.DEFAULT_MAX_BODY_SIZE;
+    private int bodySpillThreshold = RequestParser.DEFAULT_BODY_SPILL_THRESHOLD;
+    private Path bodySpillDirectory;
+    private int compressionThreshold = -1;
+    private int maxConnections = -1;
+    private int maxInFlightRequests = -1;
+    private int maxQueuedRequests = 256;
+    private int maxQueueTime = 1000;
+    private int retryAfter = 1;
+    //Replaced as a whole when a priority is added, so requests never see a partial update
+    private volatile Map<String, PriorityRule> priorities = new LinkedHashMap<>();
+
+    /**
+     * Pattern of a priority class, compiled once
+     */
+    private static class PriorityRule {
+        final Pattern pattern;
+        final AdmissionControl.Priority priority;
+
+        PriorityRule(Pattern pattern, AdmissionControl.Priority priority) {
+            this.pattern = pattern;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Returns whether connections are kept open for further requests
+     *
+     * @return true if persistent connections are enabled
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Enables or disables persistent connections (default enabled).<br>
+     * If disabled every connection is closed after one response
+     *
+     * @param keepAlive true to keep connections open for further requests
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns how long an idle connection is kept open while waiting for the next request
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets how long an idle connection is kept open while waiting for the next request (default 5000)
+     *
+     * @param keepAliveTimeout Timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        if (keepAliveTimeout < 1) throw new IllegalArgumentException("Keep-alive timeout must be positive");
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Returns the maximum number of requests served on one connection
+     *
+     * @return Maximum number of requests per connection
+     */
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests served on one connection before it is closed (default 100)
+     *
+     * @param maxKeepAliveRequests Maximum number of requests per connection
+     */
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        if (maxKeepAliveRequests < 1) throw new IllegalArgumentException("At least one request per connection is required");
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    /**
+     * Returns how long the request line and headers of a request may take
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    /**
+     * Sets how long the request line and headers of a request may take (default 20000).<br>
+     * Counted from the first byte of the request, or from the start of the connection for its first request.
+     * Clients that send their headers slower are disconnected, see {@link ConnectionTimeouts}
+     *
+     * @param headerTimeout Timeout in milliseconds
+     */
+    public void setHeaderTimeout(int headerTimeout) {
+        if (headerTimeout < 1) throw new IllegalArgumentException("Header timeout must be positive");
+        this.headerTimeout = headerTimeout;
+    }
+
+    /**
+     * Returns how long receiving a request body may stall
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    /**
+     * Sets how long receiving a request body may stall before the connection is closed (default 20000)
+     *
+     * @param bodyTimeout Timeout in milliseconds
+     */
+    public void setBodyTimeout(int bodyTimeout) {
+        if (bodyTimeout < 1) throw new IllegalArgumentException("Body timeout must be positive");
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    /**
+     * Returns the minimum rate at which request bodies have to arrive
+     *
+     * @return Rate in bytes per second, 0 if there is none
+     */
+    public int getMinBodyRate() {
+        return minBodyRate;
+    }
+
+    /**
+     * Sets the minimum rate at which request bodies have to arrive (default 500).<br>
+     * After the body timeout has passed the body has to have arrived at this rate on average
+     *
+     * @param minBodyRate Rate in bytes per second, 0 for no minimum
+     */
+    public void setMinBodyRate(int minBodyRate) {
+        if (minBodyRate < 0) throw new IllegalArgumentException("Rate must not be negative");
+        this.minBodyRate = minBodyRate;
+    }
+
+    /**
+     * Returns how long writing a response may stall
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Sets how long writing a response may stall because the client doesn't receive it (default 30000).<br>
+     * The blocking servers only notice progress once a write of up to 64 KiB has been taken by the socket,
+     * keep the timeout well above the time slow clients need for that
+     *
+     * @param writeTimeout Timeout in milliseconds
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        if (writeTimeout < 1) throw new IllegalArgumentException("Write timeout must be positive");
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Returns the minimum rate at which clients have to receive responses
+     *
+     * @return Rate in bytes per second, 0 if there is none
+     */
+    public int getMinWriteRate() {
+        return minWriteRate;
+    }
+
+    /**
+     * Sets the minimum rate at which clients have to receive responses (default none).<br>
+     * Only the time the response waits for the client counts, not the time the handler takes to produce it
+     *
+     * @param minWriteRate Rate in bytes per second, 0 for no minimum
+     */
+    public void setMinWriteRate(int minWriteRate) {
+        if (minWriteRate < 0) throw new IllegalArgumentException("Rate must not be negative");
+        this.minWriteRate = minWriteRate;
+    }
+
+    /**
+     * Returns how long an asynchronous handler may take to complete its response
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getHandlerTimeout() {
+        return handlerTimeout;
+    }
+
+    /**
+     * Sets how long an {@link de.deadmist.deadSimpleHttp.handlers.AsyncRequestHandler AsyncRequestHandler} may take
+     * to complete its response (default 30000).<br>
+     * Afterwards the client gets a 504 Gateway Timeout and the request gives back its slot, a late response is
+     * discarded. Synchronous handlers run on the worker and can't be stopped, they are not limited
+     *
+     * @param handlerTimeout Timeout in milliseconds
+     */
+    public void setHandlerTimeout(int handlerTimeout) {
+        if (handlerTimeout < 1) throw new IllegalArgumentException("Handler timeout must be positive");
+        this.handlerTimeout = handlerTimeout;
+    }
+
+    /**
+     * Returns the maximum length of the request line (method, URL and version)
+     *
+     * @return Maximum length in bytes
+     */
+    public int getMaxRequestLineLength() {
+        return maxRequestLineLength;
+    }
+
+    /**
+     * Sets the maximum length of the request line (default 8 KiB), longer requests are rejected
+     *
+     * @param maxRequestLineLength Maximum length in bytes
+     */
+    public void setMaxRequestLineLength(int maxRequestLineLength) {
+        if (maxRequestLineLength < 16) throw new IllegalArgumentException("Request line limit too small");
+        this.maxRequestLineLength = maxRequestLineLength;
+    }
+
+    /**
+     * Returns the maximum size of all request headers together
+     *
+     * @return Maximum size in bytes
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * Sets the maximum size of all request headers together (default 64 KiB), larger requests are rejected
+     *
+     * @param maxHeaderSize Maximum size in bytes
+     */
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        if (maxHeaderSize < 1) throw new IllegalArgumentException("Header limit must be positive");
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Returns the maximum size of a request body
+     *
+     * @return Maximum size in bytes
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Sets the maximum size of a request body (default 16 MiB), requests with a larger Content-Length are rejected
+     *
+     * @param maxBodySize Maximum size in bytes
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        if (maxBodySize < 0) throw new IllegalArgumentException("Body limit must not be negative");
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Returns the size above which request bodies are written to a temporary file instead of memory
+     *
+     * @return Threshold in bytes
+     */
+    public int getBodySpillThreshold() {
+        return bodySpillThreshold;
+    }
+
+    /**
+     * Sets the size above which request bodies are written to a temporary file instead of memory (default 1 MiB)
+     *
+     * @param bodySpillThreshold Threshold in bytes, 0 to write every body to a file
+     */
+    public void setBodySpillThreshold(int bodySpillThreshold) {
+        if (bodySpillThreshold < 0) throw new IllegalArgumentException("Spill threshold must not be negative");
+        this.bodySpillThreshold = bodySpillThreshold;
+    }
+
+    /**
+     * Returns the directory for temporary files of large request bodies
+     *
+     * @return The directory, or null for the default temporary directory
+     */
+    public Path getBodySpillDirectory() {
+        return bodySpillDirectory;
+    }
+
+    /**
+     * Sets the directory for temporary files of large request bodies
+     *
+     * @param bodySpillDirectory The directory, or null for the default temporary directory
+     */
+    public void setBodySpillDirectory(Path bodySpillDirectory) {
+        this.bodySpillDirectory = bodySpillDirectory;
+    }
+
+    /**
+     * Returns the minimum body size for compressing responses
+     *
+     * @return Threshold in bytes, or -1 if responses are not compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Compresses response bodies of at least the given size with gzip, if the client accepts it (default disabled).<br>
+     * Only bodies given as a byte array with a text-like Content-Type (text, JSON, XML, scripts) are compressed,
+     * responses that already have a Content-Encoding are sent as they are.
+     *
+     * @param compressionThreshold Threshold in bytes, or -1 to disable compression
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < -1) throw new IllegalArgumentException("Compression threshold must not be negative");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns the maximum number of open connections
+     *
+     * @return Maximum number of connections, or -1 if unlimited
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of open connections (default unlimited).<br>
+     * Further connections are answered with a 503 Service Unavailable and closed right away, HTTPS connections are
+     * closed without an answer because that would need a handshake. See {@link AdmissionControl}
+     *
+     * @param maxConnections Maximum number of connections, or -1 for no limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < -1 || maxConnections == 0) throw new IllegalArgumentException("Connection limit must be positive");
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Returns the maximum number of requests whose handlers run at the same time
+     *
+     * @return Maximum number of requests, or -1 if unlimited
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests whose handlers run at the same time (default unlimited).<br>
+     * Further requests wait in a queue, see {@link #setMaxQueuedRequests(int)}. Requests of high priority are not
+     * limited, requests of low priority only use half of the limit, see {@link #setPriority(String, AdmissionControl.Priority)}
+     *
+     * @param maxInFlightRequests Maximum number of requests, or -1 for no limit
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests < -1 || maxInFlightRequests == 0) throw new IllegalArgumentException("Request limit must be positive");
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * Returns how many requests may wait for a free slot
+     *
+     * @return Maximum number of waiting requests
+     */
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Sets how many requests may wait for a free slot when the limit of requests in flight is reached (default 256).<br>
+     * Requests that find the queue full are answered with a 503 Service Unavailable right away
+     *
+     * @param maxQueuedRequests Maximum number of waiting requests, 0 to shed every request over the limit
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 0) throw new IllegalArgumentException("Queue limit must not be negative");
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Returns how long a request may wait for a free slot
+     *
+     * @return Queue time in milliseconds
+     */
+    public int getMaxQueueTime() {
+        return maxQueueTime;
+    }
+
+    /**
+     * Sets how long a request may wait for a free slot (default 1000).<br>
+     * Requests that waited longer are answered with a 503 Service Unavailable
+     *
+     * @param maxQueueTime Queue time in milliseconds
+     */
+    public void setMaxQueueTime(int maxQueueTime) {
+        if (maxQueueTime < 1) throw new IllegalArgumentException("Queue time must be positive");
+        this.maxQueueTime = maxQueueTime;
+    }
+
+    /**
+     * Returns after how many seconds shed clients are asked to try again
+     *
+     * @return Delay in seconds
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Sets after how many seconds shed clients are asked to try again, sent as Retry-After header (default 1)
+     *
+     * @param retryAfter Delay in seconds
+     */
+    public void setRetryAfter(int retryAfter) {
+        if (retryAfter < 0) throw new IllegalArgumentException("Retry-After must not be negative");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Sets the priority of the requests for URLs matching a pattern, can be called while the server is running.<br>
+     * Patterns are matched against the requested file like the patterns of handlers, the first pattern that was
+     * added and matches decides. Requests matching no pattern have normal priority
+     *
+     * @param pattern  Pattern to match URLs against
+     * @param priority Priority of the matching requests, or null to remove the pattern
+     * @throws java.util.regex.PatternSyntaxException If the pattern is not a valid regex
+     */
+    public synchronized void setPriority(String pattern, AdmissionControl.Priority priority) {
+        Map<String, PriorityRule> updated = new LinkedHashMap<>(priorities);
+        if (priority == null) {
+            updated.remove(pattern);
+        } else {
+            updated.put(pattern, new PriorityRule(Pattern.compile(pattern), priority));
+        }
+        priorities = updated;
+    }
+
+    /**
+     * Returns the priority of a request
+     *
+     * @param file Requested file
+     * @return Priority of the first matching pattern, or normal priority
+     */
+    public AdmissionControl.Priority getPriority(String file) {
+        for (PriorityRule rule : priorities.values()) {
+            if (rule.pattern.matcher(file).find()) return rule.priority;
+        }
+        return AdmissionControl.Priority.NORMAL;
+    }
+
+    /**
+     * Creates a request parser with the limits of these settings
+     *
+     * @return New parser, for a single connection
+     */
+    public RequestParser createParser() {
+        return new RequestParser(maxRequestLineLength, maxHeaderSize, maxBodySize, bodySpillThreshold, bodySpillDirectory);
+    }
+}
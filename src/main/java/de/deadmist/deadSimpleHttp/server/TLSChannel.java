@@ -0,0 +1,356 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking TLS on top of a {@link SocketChannel}, used by the {@link NIOConnection}s of a {@link NIOServer}.<br>
+ * Data is encrypted and decrypted by an {@link SSLEngine} into buffers borrowed from the {@link BufferPool}.
+ * Like the socket itself reads and writes never block, they return 0 if the socket has no data or no room.
+ * <p>
+ * The handshake is driven by {@link #handshake(Runnable)} before any data is read or written. The expensive parts of
+ * the handshake (key exchange, certificate signatures) are run as delegated tasks on the task executor of the
+ * {@link TLSConfig}, never on the event loop. Messages after the handshake, e.g. a key update, are rare and handled
+ * while reading.
+ * </p>
+ * Every method except the delegated tasks is called on the event loop thread.
+ *
+ * @author Deadmist
+ */
+class TLSChannel implements ByteChannel, GatheringByteChannel {
+    static final int HANDSHAKE_DONE = 0;
+    static final int HANDSHAKE_NEED_READ = 1;
+    static final int HANDSHAKE_NEED_WRITE = 2;
+    static final int HANDSHAKE_RUNNING_TASKS = 3;
+
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Executor taskExecutor;
+
+    //Received encrypted data, in write mode
+    private ByteBuffer netIn;
+    //Encrypted data waiting for the socket, in read mode
+    private ByteBuffer netOut;
+    //Decrypted data that has not been read yet, in read mode
+    private ByteBuffer appIn;
+    //The data in netIn is not a complete record
+    private boolean underflow;
+    private boolean closed;
+
+    /**
+     * Creates a channel and starts the handshake
+     *
+     * @param channel      Connected channel in non-blocking mode
+     * @param engine       Engine in server mode
+     * @param taskExecutor Runs the delegated tasks of the handshake
+     * @throws SSLException If the handshake can not be started
+     */
+    TLSChannel(SocketChannel channel, SSLEngine engine, Executor taskExecutor) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+
+        BufferPool pool = BufferPool.getDefault();
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = pool.acquireDirect(packetSize);
+        netOut = pool.acquireDirect(packetSize);
+        netOut.flip();
+        appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * Continues the handshake as far as possible without blocking
+     *
+     * @param onTasksDone Called on the task executor once delegated tasks are done, the handshake has to be
+     *                    continued afterwards
+     * @return HANDSHAKE_DONE, or what the handshake is waiting for
+     * @throws IOException If the handshake fails or the client closes the connection
+     */
+    int handshake(Runnable onTasksDone) throws IOException {
+        while (true) {
+            if (!flush()) return HANDSHAKE_NEED_WRITE;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks(onTasksDone);
+                    return HANDSHAKE_RUNNING_TASKS;
+                case NEED_WRAP:
+                    wrap(EMPTY, 0, 1);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrap()) {
+                        int read = channel.read(netIn);
+                        if (read == -1) throw new EOFException("Connection closed during handshake");
+                        if (read == 0) return HANDSHAKE_NEED_READ;
+                    }
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return HANDSHAKE_DONE;
+                default:
+                    //NEED_UNWRAP_AGAIN is only used for DTLS
+                    unwrap();
+            }
+        }
+    }
+
+    private void runTasks(final Runnable onTasksDone) {
+        Runnable tasks = () -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            onTasksDone.run();
+        };
+        try {
+            taskExecutor.execute(tasks);
+        } catch (RejectedExecutionException e) {
+            Logger.w("TLS", "Task executor saturated, running handshake task on the event loop");
+            tasks.run();
+        }
+    }
+
+    /**
+     * Returns the engine of this channel, e.g. for the negotiated session
+     *
+     * @return The engine
+     */
+    SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Checks if decrypted data or complete records are buffered.<br>
+     * The socket does not become readable for those, so read until this returns false
+     *
+     * @return true if {@link #read(ByteBuffer)} returns data without reading from the socket
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !underflow);
+    }
+
+    /**
+     * Reads decrypted data, reads from the socket at most once
+     *
+     * @param dst Buffer to read into
+     * @return Number of bytes read, 0 if no complete record is available, -1 if the connection was closed
+     * @throws IOException If reading or decrypting fails
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        boolean readSocket = false;
+        while (!appIn.hasRemaining()) {
+            if (engine.isInboundDone()) return -1;
+            if (netIn.position() > 0 && unwrap()) {
+                afterUnwrap();
+                continue;
+            }
+            if (readSocket) return 0;
+            readSocket = true;
+            if (channel.read(netIn) == -1) {
+                //Nothing sent the close_notify, the connection is still closed
+                return -1;
+            }
+        }
+
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer part = appIn.duplicate();
+        part.limit(part.position() + count);
+        dst.put(part);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    /**
+     * Answers messages the client sends after the handshake
+     *
+     * @throws IOException If the answer can not be created
+     */
+    private void afterUnwrap() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else {
+                if (!flush()) return;
+                wrap(EMPTY, 0, 1);
+            }
+            status = engine.getHandshakeStatus();
+        }
+        flush();
+    }
+
+    /**
+     * Decrypts the next record from netIn into appIn
+     *
+     * @return true if a record was consumed, false if more data is needed
+     * @throws IOException If decrypting fails
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                underflow = true;
+                if (netIn.position() == netIn.capacity()) {
+                    //The record is larger than the buffer
+                    netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                appIn.compact();
+                appIn = grow(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize(), false);
+                appIn.flip();
+                underflow = false;
+                return true;
+            case CLOSED:
+                underflow = false;
+                return result.bytesConsumed() > 0;
+            default:
+                underflow = false;
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * Encrypts data into netOut, which has to be empty
+     *
+     * @return Result of the engine
+     * @throws IOException If encrypting fails
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the content of a buffer into a larger one, in write mode, or read mode if readMode is true
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity, boolean readMode) {
+        ByteBuffer larger = buffer.isDirect()
+                ? BufferPool.getDefault().acquireDirect(Math.max(capacity, buffer.capacity() + 1))
+                : BufferPool.getDefault().acquire(Math.max(capacity, buffer.capacity() + 1));
+        if (!readMode) buffer.flip();
+        larger.put(buffer);
+        if (readMode) larger.flip();
+        BufferPool.getDefault().release(buffer);
+        return larger;
+    }
+
+    /**
+     * Writes encrypted data that is waiting for the socket
+     *
+     * @return true if nothing is waiting anymore
+     * @throws IOException If writing fails
+     */
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts and writes data until the socket is full.<br>
+     * Data counts as written once it is encrypted, call {@link #flush()} until it returns true to make sure it has
+     * left the channel.
+     *
+     * @param srcs   Buffers to write
+     * @param offset First buffer
+     * @param length Number of buffers
+     * @return Number of bytes taken from the buffers
+     * @throws IOException If encrypting or writing fails
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        while (flush() && hasRemaining(srcs, offset, length)) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("TLS connection closed");
+            written += result.bytesConsumed();
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends the close_notify if the socket has room for it, closes the socket and returns the buffers to the pool
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                wrap(EMPTY, 0, 1);
+                flush();
+            }
+        } catch (IOException e) {
+            //The connection is closed anyway
+        } finally {
+            BufferPool pool = BufferPool.getDefault();
+            pool.release(netIn);
+            pool.release(netOut);
+            pool.release(appIn);
+            channel.close();
+        }
+    }
+}
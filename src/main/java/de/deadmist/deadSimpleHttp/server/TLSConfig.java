@@ -0,0 +1,402 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS configuration of a {@link HTTPSServer} or a {@link NIOServer}, built on its own {@link SSLContext} instead of the global
+ * javax.net.ssl system properties, so several servers with different certificates can run in one process.
+ * <p>
+ * Only fast and secure cipher suites are enabled: the AEAD suites of TLS 1.3 and the ECDHE suites of TLS 1.2 with
+ * AES-GCM or ChaCha20-Poly1305, in the order of the server. Suites or protocols the JVM does not support are left out.
+ * Clients reconnecting within the session timeout resume their session (through the session cache or a session
+ * ticket) instead of doing a full handshake.
+ * </p>
+ * <p>
+ * The NIOServer runs the expensive steps of a handshake on a separate task executor, so they don't stall its event
+ * loops. Per default all configurations share a pool with one thread per processor, see {@link #setTaskExecutor(Executor)}.
+ * </p>
+ * <p>
+ * The configuration keeps metrics of the handshakes of every server using it, like the average handshake time and
+ * how many handshakes resumed a session.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class TLSConfig {
+
+    private static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] DEFAULT_CIPHER_SUITES = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"
+    };
+
+    private static final AtomicInteger taskThreadCount = new AtomicInteger();
+    private static volatile ExecutorService defaultTaskExecutor;
+
+    private final SSLContext context;
+    private volatile Executor taskExecutor;
+    private volatile String[] protocols;
+    private volatile String[] cipherSuites;
+    private volatile int handshakeTimeout = 10000;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+    /**
+     * Creates a configuration from a keystore file containing certificate and private key
+     *
+     * @param keyStore         Path to the keystore, JKS or PKCS12
+     * @param keyStorePassword Password of the keystore and the key
+     * @throws IOException If the keystore can not be read or the TLS context can not be created
+     */
+    public TLSConfig(String keyStore, String keyStorePassword) throws IOException {
+        this(createContext(keyStore, keyStorePassword));
+    }
+
+    /**
+     * Creates a configuration for an initialized context, e.g. with a custom KeyManager
+     *
+     * @param context Initialized context
+     */
+    public TLSConfig(SSLContext context) {
+        this.context = context;
+        SSLParameters supported = context.getSupportedSSLParameters();
+        this.protocols = filter(DEFAULT_PROTOCOLS, supported.getProtocols());
+        this.cipherSuites = filter(DEFAULT_CIPHER_SUITES, supported.getCipherSuites());
+        if (cipherSuites.length == 0) {
+            Logger.w("TLS", "None of the default cipher suites is supported, using the defaults of the JVM");
+            cipherSuites = context.getDefaultSSLParameters().getCipherSuites();
+        }
+        if (protocols.length == 0) protocols = context.getDefaultSSLParameters().getProtocols();
+        setSessionCacheSize(20000);
+        setSessionTimeout(24 * 60 * 60);
+    }
+
+    private static SSLContext createContext(String keyStore, String keyStorePassword) throws IOException {
+        char[] password = keyStorePassword.toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(keyStore))) {
+            //Since Java 9 the default type reads both JKS and PKCS12 files
+            KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+            store.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(store, password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not create TLS context from " + keyStore, e);
+        }
+    }
+
+    private static String[] filter(String[] wanted, String[] supported) {
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> result = new ArrayList<>();
+        for (String name : wanted) {
+            if (supportedList.contains(name)) result.add(name);
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Creates a listening socket that uses this configuration
+     *
+     * @param port    Port to listen on
+     * @param backlog Size of the backlog
+     * @return The socket
+     * @throws IOException If the socket can not be created
+     */
+    SSLServerSocket createServerSocket(int port, int backlog) throws IOException {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port, backlog);
+        socket.setSSLParameters(createParameters());
+        return socket;
+    }
+
+    /**
+     * Creates an engine for a server side connection that uses this configuration
+     *
+     * @return The engine
+     */
+    SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(createParameters());
+        return engine;
+    }
+
+    private SSLParameters createParameters() {
+        SSLParameters parameters = new SSLParameters(cipherSuites, protocols);
+        //The list is ordered by preference, don't let clients pick a slower suite
+        parameters.setUseCipherSuitesOrder(true);
+        return parameters;
+    }
+
+    /**
+     * Runs the handshake of a new connection, called on a worker thread before the first request is read.<br>
+     * Every read is limited to the handshake timeout, so clients that stop sending in the middle of it fail right
+     * away. The handshake as a whole is limited by the {@link ConnectionTimeouts.Watch} of the connection, which
+     * closes the socket once the handshake timeout has passed.
+     *
+     * @param socket Socket of the new connection
+     * @return true if the handshake succeeded, false if it failed or timed out
+     */
+    boolean handshake(SSLSocket socket) {
+        long start = System.nanoTime();
+        try {
+            socket.setSoTimeout(handshakeTimeout);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+        } catch (SocketTimeoutException e) {
+            handshakeFailed();
+            Logger.d("TLS", "[" + socket.getRemoteSocketAddress() + "] Handshake timed out");
+            return false;
+        } catch (IOException e) {
+            handshakeFailed();
+            Logger.d("TLS", "[" + socket.getRemoteSocketAddress() + "] Handshake failed: " + e.getMessage());
+            return false;
+        }
+        handshakeCompleted(socket.getSession(), start);
+        return true;
+    }
+
+    /**
+     * Records a completed handshake in the metrics
+     *
+     * @param session Session negotiated by the handshake
+     * @param start   Start of the handshake, from {@link System#nanoTime()}
+     */
+    void handshakeCompleted(SSLSession session, long start) {
+        long nanos = System.nanoTime() - start;
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        //A resumed session was created by an earlier handshake
+        if (session.getCreationTime() < System.currentTimeMillis() - nanos / 1000000 - 1) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a failed or timed out handshake in the metrics
+     */
+    void handshakeFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Returns the executor that runs the delegated tasks of handshakes for the NIOServer
+     *
+     * @return The executor
+     */
+    public Executor getTaskExecutor() {
+        Executor executor = taskExecutor;
+        return executor != null ? executor : getDefaultTaskExecutor();
+    }
+
+    /**
+     * Sets the executor that runs the delegated tasks of handshakes for the NIOServer, e.g. a {@link WorkerPool}
+     *
+     * @param taskExecutor The executor, null to use the shared default pool
+     */
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    private static Executor getDefaultTaskExecutor() {
+        if (defaultTaskExecutor == null) {
+            synchronized (TLSConfig.class) {
+                if (defaultTaskExecutor == null) {
+                    defaultTaskExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                        Thread thread = new Thread(r, "TLS-task-" + taskThreadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return defaultTaskExecutor;
+    }
+
+    /**
+     * Returns the enabled protocols
+     *
+     * @return e.g. "TLSv1.3", "TLSv1.2"
+     */
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * Sets the enabled protocols, applies to connections accepted afterwards
+     *
+     * @param protocols e.g. "TLSv1.3"
+     */
+    public void setProtocols(String... protocols) {
+        this.protocols = protocols.clone();
+    }
+
+    /**
+     * Returns the enabled cipher suites, ordered by preference
+     *
+     * @return The cipher suites
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites.clone();
+    }
+
+    /**
+     * Sets the enabled cipher suites, ordered by preference. Applies to connections accepted afterwards
+     *
+     * @param cipherSuites The cipher suites, the first suite the client supports is used
+     */
+    public void setCipherSuites(String... cipherSuites) {
+        this.cipherSuites = cipherSuites.clone();
+    }
+
+    /**
+     * Returns how many sessions are kept for resumption
+     *
+     * @return Number of sessions, 0 means no limit
+     */
+    public int getSessionCacheSize() {
+        return context.getServerSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * Sets how many sessions are kept for resumption (default 20000)
+     *
+     * @param sessionCacheSize Number of sessions, 0 means no limit
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        if (sessionCacheSize < 0) throw new IllegalArgumentException("Session cache size must not be negative");
+        context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+    }
+
+    /**
+     * Returns how long a session can be resumed
+     *
+     * @return Timeout in seconds
+     */
+    public int getSessionTimeout() {
+        return context.getServerSessionContext().getSessionTimeout();
+    }
+
+    /**
+     * Sets how long a session can be resumed (default 24 hours).<br>
+     * This is also the lifetime of the session tickets sent to TLS 1.3 clients
+     *
+     * @param sessionTimeout Timeout in seconds
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        if (sessionTimeout < 1) throw new IllegalArgumentException("Session timeout must be positive");
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Returns how long a handshake may take
+     *
+     * @return Timeout in milliseconds
+     */
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Sets how long a handshake may take before the connection is closed (default 10000)
+     *
+     * @param handshakeTimeout Timeout in milliseconds
+     */
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        if (handshakeTimeout < 1) throw new IllegalArgumentException("Handshake timeout must be positive");
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Returns the context the connections are created with
+     *
+     * @return The context
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns how many handshakes completed
+     *
+     * @return Number of handshakes, including resumed sessions
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns how many handshakes resumed an earlier session
+     *
+     * @return Number of handshakes
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * Returns how many handshakes failed or timed out
+     *
+     * @return Number of handshakes
+     */
+    public long getFailedHandshakeCount() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the share of completed handshakes that resumed an earlier session
+     *
+     * @return Rate between 0 and 1
+     */
+    public double getResumptionRate() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : (double) resumed.get() / count;
+    }
+
+    /**
+     * Returns the average time a completed handshake took
+     *
+     * @return Time in milliseconds
+     */
+    public double getAverageHandshakeMillis() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : handshakeNanos.get() / 1e6 / count;
+    }
+}
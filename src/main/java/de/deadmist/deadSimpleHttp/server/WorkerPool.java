@@ -0,0 +1,297 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of worker threads that process connections handed over by a server.<br>
+ * The accept thread of a server only accepts new sockets and passes them to the pool,
+ * requests are then read, processed and answered on one of the worker threads.
+ * <p>
+ * The pool keeps its own bounded queue of waiting connections. When every thread is busy and the queue is full
+ * new connections are rejected instead of piling up in memory.
+ * </p>
+ * <p>
+ * A pool can be shared between several servers, in that case it is not shut down when one of the servers stops.
+ * </p>
+ * <p>
+ * On Java 21 and newer a pool can also run every connection on its own virtual thread, see {@link #newVirtualThreadPool()}.
+ * This allows holding a huge number of slow connections without tying up one platform thread for each of them.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class WorkerPool implements Executor {
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    //Only used in virtual thread mode, the executor is null then
+    private final ExecutorService virtualExecutor;
+    private final Semaphore connectionLimit;
+    private final AtomicInteger virtualActive = new AtomicInteger();
+    private final AtomicInteger virtualLargest = new AtomicInteger();
+    private final AtomicLong virtualCompleted = new AtomicLong();
+
+    /**
+     * Creates a pool with one thread per available processor and a queue of 1024 waiting connections
+     */
+    public WorkerPool() {
+        this(Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    /**
+     * Creates a pool with a fixed number of threads
+     *
+     * @param threads   Number of worker threads
+     * @param queueSize Number of connections that can wait for a free worker
+     */
+    public WorkerPool(int threads, int queueSize) {
+        this(threads, threads, queueSize, 60000);
+    }
+
+    /**
+     * Creates a pool that grows from coreThreads up to maxThreads once the queue is full
+     *
+     * @param coreThreads     Number of threads that are always kept alive
+     * @param maxThreads      Maximum number of threads
+     * @param queueSize       Number of connections that can wait for a free worker
+     * @param keepAliveMillis Time in milliseconds an idle thread above coreThreads is kept alive
+     */
+    public WorkerPool(int coreThreads, int maxThreads, int queueSize, long keepAliveMillis) {
+        if (coreThreads < 1 || maxThreads < coreThreads) {
+            throw new IllegalArgumentException("Invalid thread counts: core " + coreThreads + ", max " + maxThreads);
+        }
+        if (queueSize < 1) throw new IllegalArgumentException("Queue size must be positive");
+
+        final int poolNumber = poolCount.incrementAndGet();
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "deadSimpleHttp-" + poolNumber + "-worker-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        this.executor = new ThreadPoolExecutor(coreThreads, maxThreads, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+        this.virtualExecutor = null;
+        this.connectionLimit = null;
+    }
+
+    private WorkerPool(ExecutorService virtualExecutor, int maxConnections) {
+        this.executor = null;
+        this.virtualExecutor = virtualExecutor;
+        this.connectionLimit = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+    }
+
+    /**
+     * Creates a pool that starts a new virtual thread for every connection.<br>
+     * Requires Java 21 or newer at runtime.
+     *
+     * @return Pool running every task on its own virtual thread, without limit
+     * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+     */
+    public static WorkerPool newVirtualThreadPool() {
+        return newVirtualThreadPool(0);
+    }
+
+    /**
+     * Creates a pool that starts a new virtual thread for every connection.<br>
+     * Requires Java 21 or newer at runtime.
+     *
+     * @param maxConnections Maximum number of connections processed at the same time, further connections are rejected.
+     *                       0 for no limit
+     * @return Pool running every task on its own virtual thread
+     * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+     */
+    public static WorkerPool newVirtualThreadPool(int maxConnections) {
+        if (maxConnections < 0) throw new IllegalArgumentException("Connection limit must not be negative");
+        return new WorkerPool(createVirtualExecutor(), maxConnections);
+    }
+
+    /**
+     * Checks if the running JVM supports virtual threads
+     *
+     * @return true if {@link #newVirtualThreadPool()} can be used
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    //The project is compiled for Java 8, so the executor has to be looked up at runtime
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException("Could not create virtual thread executor", e.getCause());
+        }
+    }
+
+    /**
+     * Returns whether this pool runs tasks on virtual threads
+     *
+     * @return true if every task gets its own virtual thread
+     */
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    /**
+     * Runs the task on a worker thread
+     *
+     * @param task Task to run
+     * @throws RejectedExecutionException If all workers are busy and the queue is full, or the pool is shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (virtualExecutor != null) {
+            executeVirtual(task);
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private void executeVirtual(final Runnable task) {
+        if (connectionLimit != null && !connectionLimit.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Connection limit reached");
+        }
+        try {
+            virtualExecutor.execute(() -> {
+                int active = virtualActive.incrementAndGet();
+                virtualLargest.accumulateAndGet(active, Math::max);
+                try {
+                    task.run();
+                } finally {
+                    virtualActive.decrementAndGet();
+                    virtualCompleted.incrementAndGet();
+                    if (connectionLimit != null) connectionLimit.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (connectionLimit != null) connectionLimit.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting new tasks, tasks that are already queued are still processed
+     */
+    public void shutdown() {
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        } else {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns whether the pool has been shut down
+     *
+     * @return true if no new tasks are accepted
+     */
+    public boolean isShutdown() {
+        return virtualExecutor != null ? virtualExecutor.isShutdown() : executor.isShutdown();
+    }
+
+    /**
+     * Returns the current number of threads in the pool
+     *
+     * @return Number of threads
+     */
+    public int getPoolSize() {
+        if (virtualExecutor != null) return virtualActive.get();
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Returns the largest number of threads that have been in the pool at the same time
+     *
+     * @return Largest number of threads
+     */
+    public int getLargestPoolSize() {
+        if (virtualExecutor != null) return virtualLargest.get();
+        return executor.getLargestPoolSize();
+    }
+
+    /**
+     * Returns the number of threads that are currently processing a connection
+     *
+     * @return Number of busy threads
+     */
+    public int getActiveCount() {
+        if (virtualExecutor != null) return virtualActive.get();
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of connections waiting for a free worker, always 0 for virtual threads
+     *
+     * @return Number of waiting connections
+     */
+    public int getQueueSize() {
+        if (virtualExecutor != null) return 0;
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of tasks that have been completed
+     *
+     * @return Number of completed tasks
+     */
+    public long getCompletedCount() {
+        if (virtualExecutor != null) return virtualCompleted.get();
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Returns the number of tasks that were rejected because the pool was saturated or shut down
+     *
+     * @return Number of rejected tasks
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerPool{" +
+                "virtual=" + isVirtual() +
+                ", poolSize=" + getPoolSize() +
+                ", active=" + getActiveCount() +
+                ", queued=" + getQueueSize() +
+                ", completed=" + getCompletedCount() +
+                ", rejected=" + getRejectedCount() +
+                '}';
+    }
+}
@@ -0,0 +1,23 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Generates the body of a {@link Response} while it is being sent.<br>
+ * The body is written straight to the connection (through a fixed size buffer), so content of any size
+ * can be generated without holding it in memory. Call {@link OutputStream#flush()} to send what has been written
+ * so far, e.g. before a slow computation.
+ *
+ * @author Deadmist
+ */
+public interface BodyWriter {
+
+    /**
+     * Writes the body
+     *
+     * @param out Stream to write the body to, must not be closed
+     * @throws IOException If writing fails, e.g. because the client closed the connection
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
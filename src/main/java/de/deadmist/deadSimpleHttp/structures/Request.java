@@ -1,12 +1,14 @@
 package de.deadmist.deadSimpleHttp.structures;
 
 import de.deadmist.deadSimpleHttp.errors.RequestException;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 
 /**
@@ -15,47 +17,61 @@ import java.util.HashMap;
  * @author Deadmist
  */
 public class Request {
-    private final String[] methods = new String[]{"GET", "POST", "HEAD", "PUT", "DELETE", "TRACE", "OPTIONS", "CONNECT"};
-    private String method, url, queryString, file, httpVersion, body;
+    private String method, url, queryString, file, httpVersion;
     private HashMap<String, String> headers;
+    private RequestBody body;
 
     /**
-     * Reads from an input stream and parses the data as a http request
+     * Reads from an input stream and parses the data as a http request<br>
+     * The stream is read in blocks, data following the request is discarded.
+     * Use a {@link RequestParser} to read several requests from the same stream.
      *
      * @param in Stream to read from
      * @throws IOException      Something went wrong reading the stream
      * @throws RequestException The data could not be parsed as a valid http request
      */
     public Request(InputStream in) throws IOException, RequestException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        this(parse(in));
+    }
 
-        String firstline = reader.readLine();
-        if (firstline == null) throw new IOException("No data received");
-        this.method = firstline.split(" ")[0].toUpperCase();
-        if (!Arrays.asList(methods).contains(this.method)) throw new RequestException("Method not supported");
+    private static Request parse(InputStream in) throws IOException, RequestException {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(8 * 1024);
+        try {
+            buffer.flip();
+            return new RequestParser().parse(in, buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private Request(Request parsed) {
+        this(parsed.method, parsed.url, parsed.httpVersion, parsed.headers, parsed.body);
+    }
+
+    /**
+     * Creates a request from its parsed parts, see {@link RequestParser}
+     *
+     * @param method      Request method, in all uppercase
+     * @param url         Requested URL as sent by the client
+     * @param httpVersion HTTP version without the "HTTP/" prefix
+     * @param headers     Received headers
+     * @param body        Request body or null if the request has none
+     */
+    Request(String method, String url, String httpVersion, HashMap<String, String> headers, RequestBody body) {
+        this.method = method;
+        this.url = url;
+        this.httpVersion = httpVersion;
+        this.headers = headers;
+        this.body = body;
 
         //Extract requested file path
-        url = firstline.split(" ")[1];
         file = url.replace("%20", " ");
-        this.queryString = file.split("\\?").length == 2 ? file.split("\\?")[1] : ""; //Assign the query string or "" if no query string exists
-        file = file.split("\\?")[0]; //Remove the query string
+        int query = file.indexOf('?');
+        this.queryString = query == -1 ? "" : file.substring(query + 1);
+        if (query != -1) file = file.substring(0, query); //Remove the query string
 
         if (file.equals("/")) file = "index.html";
-
-        this.httpVersion = firstline.split(" ")[2];
-        this.httpVersion = this.httpVersion.split("/")[1];
-
-        //Read the rest of the http headers
-        this.headers = parseHeaders(reader);
-
-        String tmp = "";
-        if (headers.get("Content-Length") != null) {
-            for (int i = 0; i < Integer.parseInt(headers.get("Content-Length")); i++) {
-                tmp += (char) reader.read();
-            }
-            this.body = tmp;
-        }
-
     }
 
     /**
@@ -67,6 +83,31 @@ public class Request {
         return headers;
     }
 
+    /**
+     * Returns the value of a header, the name is not case sensitive
+     *
+     * @param name Name of the header (e.g. "Content-Length")
+     * @return Value of the header or null if it was not sent
+     */
+    public String getHeader(String name) {
+        String value = headers.get(name);
+        if (value != null) return value;
+        for (String header : headers.keySet()) {
+            if (header.equalsIgnoreCase(name)) return headers.get(header);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the HTTP version of the request<br>
+     * e.g. 1.1
+     *
+     * @return HTTP version without the "HTTP/" prefix
+     */
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
     /**
      * Returns the HTTP request method<br>
      * e.g. GET, HEAD
@@ -74,7 +115,7 @@ public class Request {
      * @return HTTP request method, in all uppercase
      */
     public String getMethod() {
-        return method.toUpperCase();
+        return method;
     }
 
     /**
@@ -113,28 +154,73 @@ public class Request {
         return this.headers;
     }
 
-    private HashMap<String, String> parseHeaders(BufferedReader reader) throws IOException {
-        HashMap<String, String> header = new HashMap<>();
-
-        String line;
-        while (!(line = reader.readLine()).equals("")) {
-            String[] head = line.split(":");
-            header.put(head[0].trim(), head[1].trim());
+    /**
+     * Returns the request body decoded as UTF-8<br>
+     * e.g. POST form data. The body is only decoded when this is called, large uploads should be read with
+     * {@link #getBodyStream()} instead.
+     *
+     * @return Request body, or null if the request has no body or it could not be read
+     */
+    public String getBody() {
+        if (body == null) return null;
+        try {
+            return body.getString();
+        } catch (IOException e) {
+            return null;
         }
-
-        return header;
     }
 
     /**
-     * Returns the request body<br>
-     * e.g. POST form data
+     * Returns the request body, which can be read as a stream or channel
      *
-     * @return Request body
+     * @return Request body or null if the request has no body
      */
-    public String getBody() {
+    public RequestBody getRequestBody() {
         return body;
     }
 
+    /**
+     * Opens a stream over the request body
+     *
+     * @return Stream ending after the last byte of the body, empty if the request has no body
+     * @throws IOException If a body stored in a temporary file can not be opened
+     */
+    public InputStream getBodyStream() throws IOException {
+        return body == null ? new ByteArrayInputStream(new byte[0]) : body.getInputStream();
+    }
+
+    /**
+     * Opens a channel over the request body
+     *
+     * @return Channel ending after the last byte of the body, empty if the request has no body
+     * @throws IOException If a body stored in a temporary file can not be opened
+     */
+    public ReadableByteChannel getBodyChannel() throws IOException {
+        return body == null ? Channels.newChannel(new ByteArrayInputStream(new byte[0])) : body.getChannel();
+    }
+
+    /**
+     * Returns the length of the request body
+     *
+     * @return Length in bytes, or -1 if the request has no body
+     */
+    public long getContentLength() {
+        return body == null ? -1 : body.length();
+    }
+
+    /**
+     * Releases the body, deleting its temporary file if there is one.<br>
+     * Called by the server once the response has been created
+     */
+    public void closeBody() {
+        if (body == null) return;
+        try {
+            body.close();
+        } catch (IOException e) {
+            //Nothing left to do, the file is in the temporary directory
+        }
+    }
+
     @Override
     public String toString() {
         return "Request{" +
@@ -144,7 +230,7 @@ public class Request {
                 ", file='" + file + '\'' +
                 ", httpVersion='" + httpVersion + '\'' +
                 ", headers=" + headers + '\'' +
-                ", body='" + body + '\'' +
+                ", body=" + body +
                 '}';
 
     }
@@ -0,0 +1,142 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The body of a {@link Request}, exactly as many bytes as announced by the Content-Length header.<br>
+ * Small bodies are kept in memory, bodies above the spill threshold of the {@link RequestParser} are written to a
+ * temporary file while they are received, so large uploads don't have to fit into the heap.
+ * <p>
+ * The body can be read as often as needed. The server closes the body once the response has been created,
+ * which deletes the temporary file.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class RequestBody implements Closeable {
+    private final byte[] data;
+    private final Path file;
+    private final long length;
+    private String text;
+
+    /**
+     * Creates a body held in memory
+     *
+     * @param data The body
+     */
+    RequestBody(byte[] data) {
+        this.data = data;
+        this.file = null;
+        this.length = data.length;
+    }
+
+    /**
+     * Creates a body stored in a temporary file
+     *
+     * @param file   File containing the body, deleted when the body is closed
+     * @param length Length of the body
+     */
+    RequestBody(Path file, long length) {
+        this.data = null;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Returns the length of the body
+     *
+     * @return Length in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Checks if the body is held in memory
+     *
+     * @return false if the body has been written to a temporary file
+     */
+    public boolean isInMemory() {
+        return data != null;
+    }
+
+    /**
+     * Returns the temporary file holding the body<br>
+     * The file is deleted when the body is closed, copy or move it to keep the upload
+     *
+     * @return The file, or null if the body is held in memory
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream over the body, every call starts at the beginning
+     *
+     * @return Stream that ends after the last byte of the body
+     * @throws IOException If the temporary file can not be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        if (data != null) return new ByteArrayInputStream(data);
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Opens a channel over the body, every call starts at the beginning
+     *
+     * @return Channel that ends after the last byte of the body, a {@link FileChannel} for bodies in a temporary file
+     * @throws IOException If the temporary file can not be opened
+     */
+    public ReadableByteChannel getChannel() throws IOException {
+        if (data != null) return Channels.newChannel(new ByteArrayInputStream(data));
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns the body as bytes<br>
+     * Bodies stored in a temporary file are read completely into memory
+     *
+     * @return The body
+     * @throws IOException If the temporary file can not be read
+     */
+    public byte[] getBytes() throws IOException {
+        if (data != null) return data;
+        return Files.readAllBytes(file);
+    }
+
+    /**
+     * Returns the body decoded as UTF-8, the result is cached
+     *
+     * @return The body as a string
+     * @throws IOException If the temporary file can not be read
+     */
+    public String getString() throws IOException {
+        if (text == null) text = new String(getBytes(), StandardCharsets.UTF_8);
+        return text;
+    }
+
+    /**
+     * Deletes the temporary file, if there is one
+     *
+     * @throws IOException If the file could not be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) Files.deleteIfExists(file);
+    }
+
+    @Override
+    public String toString() {
+        return length + (data != null ? " bytes" : " bytes in " + file);
+    }
+}
@@ -0,0 +1,443 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import de.deadmist.deadSimpleHttp.errors.RequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Parses HTTP requests directly from received bytes.<br>
+ * The parser is a state machine that can be fed any amount of data at a time, e.g. whatever a non-blocking read
+ * returned. Bytes are consumed up to the end of the current request, so data of pipelined requests stays in the
+ * buffer for the next call. One parser is used for every request on a connection, its line buffer is reused.
+ * <p>
+ * Request line, headers and body are limited in size, data exceeding a limit is rejected with a {@link RequestException}.
+ * Methods, HTTP versions and common header names are matched against constants instead of creating new strings.
+ * </p>
+ * <p>
+ * Bodies up to the spill threshold are collected in memory, larger bodies are written to a temporary file as they
+ * arrive, see {@link RequestBody}. Threads that must not block on the disk parse with {@link #parseInMemory(ByteBuffer)}
+ * and leave writing the file to another thread.
+ * </p>
+ * <p>
+ * A parser is not thread safe, use one per connection.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class RequestParser {
+    public static final int DEFAULT_MAX_REQUEST_LINE_LENGTH = 8 * 1024;
+    public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_BODY_SPILL_THRESHOLD = 1024 * 1024;
+
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "TRACE", "OPTIONS", "CONNECT"};
+    private static final String[] VERSIONS = {"1.1", "1.0"};
+    private static final String[] COMMON_HEADERS = {"Host", "Connection", "Content-Length", "Content-Type",
+            "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Accept-Charset", "Cache-Control",
+            "Cookie", "Referer", "Origin", "Pragma", "Range", "If-Range", "If-Modified-Since", "If-None-Match",
+            "Authorization", "Upgrade-Insecure-Requests", "DNT", "Keep-Alive", "Transfer-Encoding", "Expect",
+            "host", "connection", "content-length", "content-type", "user-agent", "accept", "accept-encoding"};
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+
+    private final int maxRequestLineLength;
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final int spillThreshold;
+    private final Path spillDirectory;
+
+    private int state = REQUEST_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headerSize;
+
+    private String method, url, httpVersion;
+    private HashMap<String, String> headers;
+    //Names of the received headers, looked up without case so repeated headers are merged into the first one
+    private final TreeMap<String, String> headerNames = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private long contentLength = -1;
+    private long bodyRead;
+    private byte[] body;
+    private Path spillFile;
+    private FileChannel spill;
+
+    /**
+     * Creates a parser with the default limits
+     */
+    public RequestParser() {
+        this(DEFAULT_MAX_REQUEST_LINE_LENGTH, DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * Creates a parser that keeps bodies up to the default spill threshold in memory
+     *
+     * @param maxRequestLineLength Maximum length of the request line in bytes
+     * @param maxHeaderSize        Maximum size of all header lines together in bytes
+     * @param maxBodySize          Maximum size of the request body in bytes
+     */
+    public RequestParser(int maxRequestLineLength, int maxHeaderSize, long maxBodySize) {
+        this(maxRequestLineLength, maxHeaderSize, maxBodySize, DEFAULT_BODY_SPILL_THRESHOLD, null);
+    }
+
+    /**
+     * Creates a parser
+     *
+     * @param maxRequestLineLength Maximum length of the request line in bytes
+     * @param maxHeaderSize        Maximum size of all header lines together in bytes
+     * @param maxBodySize          Maximum size of the request body in bytes
+     * @param spillThreshold       Bodies larger than this are written to a temporary file instead of memory
+     * @param spillDirectory       Directory for the temporary files, null for the default temporary directory
+     */
+    public RequestParser(int maxRequestLineLength, int maxHeaderSize, long maxBodySize,
+                         int spillThreshold, Path spillDirectory) {
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a request is complete or the buffer is empty
+     *
+     * @param buffer Received data, in read mode. Bytes after the end of a request are not consumed
+     * @return The request, or null if more data is needed
+     * @throws IOException      The body could not be written to a temporary file
+     * @throws RequestException The data is not a valid http request or exceeds a limit,
+     *                          the connection can not be used any further
+     */
+    public Request parse(ByteBuffer buffer) throws IOException, RequestException {
+        return parse(buffer, true);
+    }
+
+    /**
+     * Consumes bytes like {@link #parse(ByteBuffer)}, but never writes to the disk.<br>
+     * Once the body of the current request has to be written to a temporary file, see {@link #isSpillingBody()},
+     * the parser stops and leaves the body in the buffer. Pass it to {@link #parse(ByteBuffer)} on a thread that
+     * may block, e.g. a worker instead of an event loop.
+     *
+     * @param buffer Received data, in read mode. Bytes after the end of a request are not consumed
+     * @return The request, or null if more data is needed or the body has to be written to a temporary file
+     * @throws IOException      The body could not be written to a temporary file
+     * @throws RequestException The data is not a valid http request or exceeds a limit,
+     *                          the connection can not be used any further
+     */
+    public Request parseInMemory(ByteBuffer buffer) throws IOException, RequestException {
+        return parse(buffer, false);
+    }
+
+    private Request parse(ByteBuffer buffer, boolean spillAllowed) throws IOException, RequestException {
+        while (buffer.hasRemaining()) {
+            if (state == BODY) {
+                if (body == null && !spillAllowed) return null;
+                readBody(buffer);
+                if (bodyRead == contentLength) return complete();
+                continue;
+            }
+
+            if (!readLine(buffer)) return null;
+
+            if (state == REQUEST_LINE) {
+                //Empty lines before the request line are allowed
+                if (lineLength > 0) {
+                    parseRequestLine();
+                    headers = new HashMap<>();
+                    headerNames.clear();
+                    state = HEADERS;
+                }
+            } else if (lineLength > 0) {
+                parseHeader();
+            } else if (contentLength > 0) {
+                startBody();
+                state = BODY;
+            } else {
+                return complete();
+            }
+            lineLength = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Reads from a stream until a request is complete
+     *
+     * @param in     Stream to read from
+     * @param buffer Heap buffer, in read mode, holding data that was received but not consumed yet.
+     *               Use the same buffer for every request on the stream so no pipelined data is lost
+     * @return The request
+     * @throws IOException      Reading from the stream failed or the stream ended before a request was complete
+     * @throws RequestException The data is not a valid http request or exceeds a limit
+     */
+    public Request parse(InputStream in, ByteBuffer buffer) throws IOException, RequestException {
+        while (true) {
+            Request request = parse(buffer);
+            if (request != null) return request;
+
+            //Everything in the buffer has been consumed
+            buffer.clear();
+            int read = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            if (read == -1) {
+                throw new IOException(hasPartialRequest() ? "Connection closed during request" : "No data received");
+            }
+            buffer.limit(read);
+        }
+    }
+
+    /**
+     * Checks if part of a request has been received
+     *
+     * @return true if the parser is in the middle of a request
+     */
+    public boolean hasPartialRequest() {
+        return state != REQUEST_LINE || lineLength > 0;
+    }
+
+    /**
+     * Checks if the headers of the current request are complete and its body is received
+     *
+     * @return true if the parser waits for body data
+     */
+    public boolean isReadingBody() {
+        return state == BODY;
+    }
+
+    /**
+     * Checks if the body of the current request is received and written to a temporary file
+     *
+     * @return true if the parser waits for body data that is too large for memory
+     */
+    public boolean isSpillingBody() {
+        return state == BODY && body == null;
+    }
+
+    /**
+     * Discards the partially parsed request, including a partially received body
+     */
+    public void reset() {
+        if (spill != null) {
+            try {
+                spill.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                //The request is discarded anyway, at worst a temporary file is left behind
+            }
+        }
+        spill = null;
+        spillFile = null;
+        state = REQUEST_LINE;
+        lineLength = 0;
+        headerSize = 0;
+        method = null;
+        url = null;
+        httpVersion = null;
+        headers = null;
+        headerNames.clear();
+        contentLength = -1;
+        body = null;
+        bodyRead = 0;
+    }
+
+    /**
+     * Copies bytes into the line buffer until the end of the line
+     *
+     * @param buffer Received data
+     * @return true if the line is complete, false if the buffer ran out first
+     * @throws RequestException The line exceeds the limit
+     */
+    private boolean readLine(ByteBuffer buffer) throws RequestException {
+        //+1 for the CR, the limits apply to the content of the line
+        int limit = state == REQUEST_LINE ? maxRequestLineLength + 1 : maxHeaderSize - headerSize + 1;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (state == HEADERS) headerSize += lineLength + 1;
+                if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+                return true;
+            }
+            if (lineLength >= limit) {
+                throw new RequestException(state == REQUEST_LINE ? "Request line too long" : "Request header too large");
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, limit));
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    private void parseRequestLine() throws RequestException {
+        int firstSpace = indexOf((byte) ' ', 0);
+        int lastSpace = lastIndexOf((byte) ' ');
+        if (firstSpace <= 0 || lastSpace == firstSpace) throw new RequestException("Malformed request line");
+
+        method = constant(METHODS, 0, firstSpace, true);
+        if (method == null) throw new RequestException("Method not supported");
+
+        int versionStart = lastSpace + 1;
+        if (!startsWith("HTTP/", versionStart)) throw new RequestException("Malformed request line");
+        versionStart += 5;
+        httpVersion = constant(VERSIONS, versionStart, lineLength, false);
+        if (httpVersion == null) {
+            httpVersion = new String(line, versionStart, lineLength - versionStart, StandardCharsets.ISO_8859_1);
+        }
+
+        int urlStart = firstSpace + 1;
+        int urlEnd = lastSpace;
+        while (urlStart < urlEnd && line[urlStart] == ' ') urlStart++;
+        while (urlEnd > urlStart && line[urlEnd - 1] == ' ') urlEnd--;
+        if (urlStart == urlEnd) throw new RequestException("Malformed request line");
+        url = new String(line, urlStart, urlEnd - urlStart, StandardCharsets.UTF_8);
+    }
+
+    private void parseHeader() throws RequestException {
+        if (line[0] == ' ' || line[0] == '\t') throw new RequestException("Folded header lines are not supported");
+
+        //Only the first colon separates name and value, values may contain colons (e.g. Host: localhost:8080)
+        int colon = indexOf((byte) ':', 0);
+        if (colon <= 0 || line[colon - 1] == ' ' || line[colon - 1] == '\t') {
+            throw new RequestException("Malformed header");
+        }
+
+        int valueStart = colon + 1;
+        int valueEnd = lineLength;
+        while (valueStart < valueEnd && (line[valueStart] == ' ' || line[valueStart] == '\t')) valueStart++;
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) valueEnd--;
+
+        String name = constant(COMMON_HEADERS, 0, colon, false);
+        if (name == null) name = new String(line, 0, colon, StandardCharsets.ISO_8859_1);
+
+        if (name.equalsIgnoreCase("Content-Length")) {
+            long length = parseContentLength(valueStart, valueEnd);
+            if (contentLength != -1 && contentLength != length) throw new RequestException("Conflicting Content-Length");
+            contentLength = length;
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            throw new RequestException("Transfer-Encoding is not supported");
+        }
+
+        String value = new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        String first = headerNames.get(name);
+        if (first == null || name.equalsIgnoreCase("Content-Length")) {
+            if (first == null) headerNames.put(name, name);
+            headers.put(first == null ? name : first, value);
+        } else {
+            //Repeated headers are joined into a list, cookies are separated by semicolons instead of commas
+            headers.put(first, headers.get(first) + (name.equalsIgnoreCase("Cookie") ? "; " : ", ") + value);
+        }
+    }
+
+    private long parseContentLength(int start, int end) throws RequestException {
+        if (start == end) throw new RequestException("Invalid Content-Length");
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9') throw new RequestException("Invalid Content-Length");
+            length = length * 10 + (line[i] - '0');
+            if (length > maxBodySize) throw new RequestException("Request body too large");
+        }
+        return length;
+    }
+
+    private void startBody() {
+        //Larger bodies are written to a temporary file, which is created once the first part is received
+        if (contentLength <= spillThreshold) body = new byte[(int) contentLength];
+    }
+
+    private void openSpill() throws IOException {
+        spillFile = spillDirectory == null
+                ? Files.createTempFile("deadSimpleHttp-", ".body")
+                : Files.createTempFile(spillDirectory, "deadSimpleHttp-", ".body");
+        spill = FileChannel.open(spillFile, StandardOpenOption.WRITE);
+    }
+
+    private void readBody(ByteBuffer buffer) throws IOException {
+        int count = (int) Math.min(buffer.remaining(), contentLength - bodyRead);
+        if (body != null) {
+            buffer.get(body, (int) bodyRead, count);
+        } else {
+            if (spill == null) openSpill();
+            //Write straight from the receive buffer, without copying
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + count);
+            while (part.hasRemaining()) spill.write(part);
+            buffer.position(part.position());
+        }
+        bodyRead += count;
+    }
+
+    private Request complete() throws IOException {
+        RequestBody requestBody = null;
+        if (contentLength == 0) {
+            requestBody = new RequestBody(new byte[0]);
+        } else if (body != null) {
+            requestBody = new RequestBody(body);
+        } else if (spill != null) {
+            spill.close();
+            requestBody = new RequestBody(spillFile, contentLength);
+            //The file belongs to the request now
+            spill = null;
+            spillFile = null;
+        }
+
+        Request request = new Request(method, url, httpVersion, headers, requestBody);
+        reset();
+        return request;
+    }
+
+    /**
+     * Finds the constant equal to a part of the line, to avoid creating a new string
+     *
+     * @param constants  Candidates
+     * @param start      Start of the part, inclusive
+     * @param end        End of the part, exclusive
+     * @param ignoreCase Whether ASCII letters are compared ignoring their case
+     * @return The matching constant or null
+     */
+    private String constant(String[] constants, int start, int end, boolean ignoreCase) {
+        int length = end - start;
+        for (String constant : constants) {
+            if (constant.length() != length) continue;
+            int i = 0;
+            while (i < length) {
+                int c = line[start + i];
+                if (ignoreCase && c >= 'a' && c <= 'z') c -= 'a' - 'A';
+                if (c != constant.charAt(i)) break;
+                i++;
+            }
+            if (i == length) return constant;
+        }
+        return null;
+    }
+
+    private boolean startsWith(String prefix, int start) {
+        if (lineLength - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(byte b, int start) {
+        for (int i = start; i < lineLength; i++) {
+            if (line[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(byte b) {
+        for (int i = lineLength - 1; i >= 0; i--) {
+            if (line[i] == b) return i;
+        }
+        return -1;
+    }
+}
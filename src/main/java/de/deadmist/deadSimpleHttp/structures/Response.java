@@ -1,23 +1,56 @@
 package de.deadmist.deadSimpleHttp.structures;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import de.deadmist.deadSimpleHttp.util.BufferPool;
+import de.deadmist.deadSimpleHttp.util.ChunkedOutputStream;
+import de.deadmist.deadSimpleHttp.util.HttpDates;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Map;
 
 /**
  * Represents a HTTP response that can be send to a client<br>
  * Every response has the date and server headers set automatically.
+ * The connection header is set by the server depending on whether the connection is kept open.
+ * <p>
+ * The body is either a byte array or a streaming source (an {@link InputStream}, a {@link ReadableByteChannel} or a
+ * {@link BodyWriter}), which is copied to the connection through a buffer borrowed from the
+ * {@link de.deadmist.deadSimpleHttp.util.BufferPool BufferPool} while the response is sent.
+ * A region of a {@link FileChannel} is sent without copying it through the heap if the connection allows it,
+ * see {@link #transferBodyTo(WritableByteChannel)}. A {@link ByteBuffer} body, e.g. a cached file in a direct buffer,
+ * is written to the connection as it is.
+ * If the length of a streamed body is unknown it is sent with "Transfer-Encoding: chunked" to HTTP/1.1 clients,
+ * HTTP/1.0 clients get the body until the connection is closed.
+ * </p>
  *
  * @author Deadmist
  */
 public class Response {
 
     private static String serverName = "deadSimpleHTTP";
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
 
     private String status, httpVersion;
-    private byte[] body;
+    private byte[] body = new byte[0];
+    private InputStream bodyStream;
+    private ReadableByteChannel bodyChannel;
+    private BodyWriter bodyWriter;
+    private FileChannel bodyFile;
+    private long bodyPosition;
+    private ByteBuffer bodyBuffer;
+    private long contentLength;
     private HashMap<String, String> headers;
 
     /**
@@ -26,16 +59,9 @@ public class Response {
      */
     public Response() {
         this.headers = new HashMap<>();
-        Date d = new Date();
-        SimpleDateFormat format = new SimpleDateFormat(
-                "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        //Set data header
-        setHeader("Date", format.format(d));
 
-        //Set connection header to close on provided
-        setHeader("Connection", "close");
+        //Set date header, formatted once per second for all responses
+        setHeader("Date", HttpDates.now());
 
         //Set server header
         setHeader("Server", serverName);
@@ -50,7 +76,7 @@ public class Response {
         this();
         this.status = "200 OK";
         setHttpVersion(1.1f);
-        this.body = binaryBody;
+        setBody(binaryBody);
     }
 
     /**
@@ -62,7 +88,7 @@ public class Response {
         this();
         this.status = "200 OK";
         setHttpVersion(1.1f);
-        this.body = body.getBytes();
+        setBody(body.getBytes());
     }
 
     /**
@@ -75,7 +101,7 @@ public class Response {
         this();
         setHttpVersion(1.1f);
         this.status = status;
-        this.body = body.getBytes();
+        setBody(body.getBytes());
     }
 
     /**
@@ -86,9 +112,10 @@ public class Response {
      * @param httpVersion sets the http version (1.0 or 1.1)
      */
     public Response(String status, String body, float httpVersion) {
+        this();
         this.status = status;
         setHttpVersion(httpVersion);
-        this.body = body.getBytes();
+        setBody(body.getBytes());
     }
 
     /**
@@ -103,23 +130,24 @@ public class Response {
 
     /**
      * Gets this response as a byte array<br>
-     * Use this for sending data to a client, otherwise binary data (images etc.) will get corrupted
+     * Use this for sending data to a client, otherwise binary data (images etc.) will get corrupted.
+     * A streamed body is read completely into memory, see {@link #writeBody(OutputStream)} to avoid that
      *
      * @return Byte representation of the response
+     * @throws UncheckedIOException If a streamed body can not be read
      */
     public byte[] getBytes() {
-        String tmp = this.httpVersion + " " + this.status + "\r\n";
-        for (String header : headers.keySet()) {
-            tmp += header + ": " + headers.get(header) + "\r\n";
+        byte[] head = getHeadBytes();
+        if (isStreaming()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                out.write(head);
+                writeBody(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
         }
-        //Add length header if not set
-        if (getHeader("Content-Length") == null) {
-            setHeader("Content-Length", String.valueOf(body.length));
-        }
-
-        tmp += "\r\n";
-
-        byte[] head = tmp.getBytes();
         byte[] total = new byte[head.length + body.length];
 
         System.arraycopy(head, 0, total, 0, head.length);
@@ -129,6 +157,219 @@ public class Response {
 
     }
 
+    /**
+     * Gets the status line and headers of this response as a byte array, terminated by the empty line.<br>
+     * Use this to answer HEAD requests, which must not contain a body
+     *
+     * @return Byte representation of the status line and headers
+     */
+    public byte[] getHeadBytes() {
+        return new ResponseEncoder().encodeHeadBytes(this);
+    }
+
+    /**
+     * Adds the length header if it is not set and the length is known, called before the head is encoded
+     */
+    void prepareHead() {
+        if (getHeader("Content-Length") == null && getHeader("Transfer-Encoding") == null && contentLength >= 0
+                && mayHaveBody()) {
+            setHeader("Content-Length", String.valueOf(contentLength));
+        }
+    }
+
+    /**
+     * Writes the body to a stream, streamed bodies are copied through a fixed size buffer and closed afterwards.<br>
+     * If the Transfer-Encoding header is "chunked" the body is written in chunks.
+     *
+     * @param out Stream to write to, is not closed
+     * @throws IOException If reading the body or writing to the stream fails
+     */
+    public void writeBody(OutputStream out) throws IOException {
+        if (!"chunked".equalsIgnoreCase(getHeader("Transfer-Encoding"))) {
+            writeContent(out);
+            return;
+        }
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        //Collects small writes of a BodyWriter into chunks of a sensible size
+        OutputStream buffered = new BufferedOutputStream(chunks, COPY_BUFFER_SIZE);
+        writeContent(buffered);
+        buffered.flush();
+        chunks.finish();
+    }
+
+    /**
+     * Writes the body to a channel.<br>
+     * A file region is transferred by the operating system straight from the file to the channel where possible
+     * (e.g. sendfile for sockets), without being copied into the heap. Other bodies are written like with
+     * {@link #writeBody(OutputStream)}.
+     *
+     * @param target Channel to write to, in blocking mode, is not closed
+     * @throws IOException If reading the body or writing to the channel fails
+     */
+    public void transferBodyTo(WritableByteChannel target) throws IOException {
+        if (bodyBuffer != null && getHeader("Transfer-Encoding") == null) {
+            ByteBuffer buffer = bodyBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return;
+        }
+        if (bodyFile == null || getHeader("Transfer-Encoding") != null) {
+            OutputStream out = Channels.newOutputStream(target);
+            writeBody(out);
+            out.flush();
+            return;
+        }
+        try (FileChannel file = bodyFile) {
+            long position = bodyPosition;
+            long end = bodyPosition + contentLength;
+            while (position < end) {
+                long transferred = file.transferTo(position, end - position, target);
+                if (transferred == 0 && position >= file.size()) throw new EOFException("File is shorter than the response");
+                position += transferred;
+            }
+        }
+    }
+
+    private void writeContent(OutputStream out) throws IOException {
+        if (bodyBuffer != null && bodyBuffer.hasArray()) {
+            out.write(bodyBuffer.array(), bodyBuffer.arrayOffset() + bodyBuffer.position(), bodyBuffer.remaining());
+            return;
+        }
+        if (bodyWriter != null) {
+            bodyWriter.writeTo(out);
+            return;
+        }
+        if (bodyFile == null && bodyBuffer == null && bodyStream == null && bodyChannel == null) {
+            out.write(body);
+            return;
+        }
+
+        //Streamed bodies are copied through a buffer borrowed from the pool
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(COPY_BUFFER_SIZE);
+        try {
+            copyContent(out, buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private void copyContent(OutputStream out, ByteBuffer buffer) throws IOException {
+        byte[] copy = buffer.array();
+        if (bodyFile != null) {
+            try (FileChannel file = bodyFile) {
+                long position = bodyPosition;
+                long end = bodyPosition + contentLength;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = file.read(buffer, position);
+                    if (read == -1) throw new EOFException("File is shorter than the response");
+                    out.write(copy, 0, read);
+                    position += read;
+                }
+            }
+        } else if (bodyBuffer != null) {
+            ByteBuffer content = bodyBuffer.duplicate();
+            while (content.hasRemaining()) {
+                int length = Math.min(copy.length, content.remaining());
+                content.get(copy, 0, length);
+                out.write(copy, 0, length);
+            }
+        } else if (bodyStream != null) {
+            try (InputStream in = bodyStream) {
+                int read;
+                while ((read = in.read(copy)) != -1) {
+                    out.write(copy, 0, read);
+                }
+            }
+        } else {
+            try (ReadableByteChannel channel = bodyChannel) {
+                while (channel.read(buffer) != -1) {
+                    out.write(copy, 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a streamed body without sending it, e.g. when answering a HEAD request
+     */
+    public void closeBody() {
+        Closeable source = bodyStream != null ? bodyStream : bodyChannel != null ? bodyChannel : bodyFile;
+        if (source == null) return;
+        try {
+            source.close();
+        } catch (IOException e) {
+            //Nothing was sent from it, there is nothing left to do
+        }
+    }
+
+    /**
+     * Returns the body of this response
+     *
+     * @return The body, or null if the body is streamed
+     */
+    public byte[] getBody() {
+        return isStreaming() ? null : body;
+    }
+
+    /**
+     * Checks if the body is streamed from an InputStream, channel, buffer or {@link BodyWriter}
+     *
+     * @return true if the body is streamed
+     */
+    public boolean isStreaming() {
+        return bodyStream != null || bodyChannel != null || bodyWriter != null || bodyFile != null || bodyBuffer != null;
+    }
+
+    /**
+     * Returns the buffer the body is sent from
+     *
+     * @return The buffer, or null if the body is not a buffer
+     */
+    public ByteBuffer getBodyBuffer() {
+        return bodyBuffer;
+    }
+
+    /**
+     * Checks if the status allows a body, 1xx, 204 No Content and 304 Not Modified responses never have one
+     *
+     * @return false if the response must not contain a body or body length headers
+     */
+    public boolean mayHaveBody() {
+        return status == null || !(status.startsWith("1") || status.startsWith("204") || status.startsWith("304"));
+    }
+
+    /**
+     * Returns the file the body is sent from
+     *
+     * @return The file, or null if the body is not a file region
+     */
+    public FileChannel getBodyFile() {
+        return bodyFile;
+    }
+
+    /**
+     * Returns the position in the file the body starts at, see {@link #getBodyFile()}
+     *
+     * @return Position in bytes
+     */
+    public long getBodyPosition() {
+        return bodyPosition;
+    }
+
+    /**
+     * Returns the length of the body
+     *
+     * @return Length in bytes, or -1 if the length of a streamed body is unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
     /**
      * Returns a string representation of the HTTP response including header and body<br>
      * <p>
@@ -139,20 +380,30 @@ public class Response {
      * @return String representation of this response
      */
     public String toString() {
+        prepareHead();
         String m = this.httpVersion + " " + this.status + "\r\n";
         for (String header : headers.keySet()) {
             m += header + ": " + headers.get(header) + "\r\n";
         }
-        if (getHeader("Content-Length") == null) {
-            setHeader("Content-Length", String.valueOf(body.length));
-        }
 
         m += "\r\n";
-        m += new String(body);
+        m += isStreaming() ? "[streamed body]" : new String(body);
 
         return m;
     }
 
+    String getStatus() {
+        return status;
+    }
+
+    String getHttpVersion() {
+        return httpVersion;
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
     /**
      * Set status code and message (e.g. "404 Not Found")
      *
@@ -177,7 +428,83 @@ public class Response {
      * @param body the body
      */
     public void setBody(byte[] body) {
-        this.body = body;
+        setBodySource(body, null, null, null, body.length);
+    }
+
+    /**
+     * Streams the body from an InputStream, the stream is closed once the body has been sent
+     *
+     * @param stream Stream containing the body
+     * @param length Number of bytes in the stream, or -1 if unknown
+     */
+    public void setBody(InputStream stream, long length) {
+        setBodySource(null, stream, null, null, length);
+    }
+
+    /**
+     * Streams the body from a channel, the channel is closed once the body has been sent
+     *
+     * @param channel Channel containing the body
+     * @param length  Number of bytes in the channel, or -1 if unknown
+     */
+    public void setBody(ReadableByteChannel channel, long length) {
+        setBodySource(null, null, channel, null, length);
+    }
+
+    /**
+     * Sends a region of a file as the body, the file is closed once the body has been sent.<br>
+     * The region is transferred straight from the file to the connection where possible.
+     *
+     * @param file     File containing the body
+     * @param position Position of the first byte of the body in the file
+     * @param count    Length of the body
+     */
+    public void setBody(FileChannel file, long position, long count) {
+        setBodySource(null, null, null, null, count);
+        this.bodyFile = file;
+        this.bodyPosition = position;
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer as the body.<br>
+     * The buffer is not modified, so a shared read only buffer can be sent by many responses at once.
+     *
+     * @param buffer Buffer containing the body
+     */
+    public void setBody(ByteBuffer buffer) {
+        setBodySource(null, null, null, null, buffer.remaining());
+        this.bodyBuffer = buffer;
+    }
+
+    /**
+     * Generates the body while the response is sent, the length is unknown so the body is sent in chunks
+     *
+     * @param writer Writes the body
+     */
+    public void setBody(BodyWriter writer) {
+        setBody(writer, -1);
+    }
+
+    /**
+     * Generates the body while the response is sent
+     *
+     * @param writer Writes the body
+     * @param length Number of bytes the writer writes, or -1 if unknown
+     */
+    public void setBody(BodyWriter writer, long length) {
+        setBodySource(null, null, null, writer, length);
+    }
+
+    private void setBodySource(byte[] body, InputStream stream, ReadableByteChannel channel, BodyWriter writer,
+                               long length) {
+        this.body = body == null ? new byte[0] : body;
+        this.bodyStream = stream;
+        this.bodyChannel = channel;
+        this.bodyWriter = writer;
+        this.bodyFile = null;
+        this.bodyPosition = 0;
+        this.bodyBuffer = null;
+        this.contentLength = length < 0 ? -1 : length;
     }
 
     /**
@@ -190,7 +517,13 @@ public class Response {
         this.headers.put(header, value);
     }
 
-    private String getHeader(String header) {
+    /**
+     * Returns the value of a header
+     *
+     * @param header Header to get (e.g. "Content-Length")
+     * @return Value of the header field or null if it is not set
+     */
+    public String getHeader(String header) {
         return this.headers.get(header);
     }
 }
@@ -0,0 +1,122 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the status line and headers of a {@link Response}.<br>
+ * The head is written into a buffer that is reused for every response, common header names are encoded only once,
+ * so encoding a response allocates next to nothing. The body is not copied, servers send it after the head,
+ * e.g. with a gathering write.
+ * <p>
+ * An encoder is not thread safe, servers use one per connection.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class ResponseEncoder {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] SEPARATOR = {':', ' '};
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+    static {
+        String[] names = {"Date", "Server", "Content-Type", "Content-Length", "Connection", "Keep-Alive",
+                "Transfer-Encoding", "ETag", "Last-Modified", "Accept-Ranges", "Content-Range", "Content-Encoding",
+                "Vary", "Location", "Cache-Control", "Retry-After", "WWW-Authenticate"};
+        for (String name : names) {
+            HEADER_NAMES.put(name, (name + ": ").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private byte[] buffer;
+    private int length;
+
+    /**
+     * Creates an encoder
+     */
+    public ResponseEncoder() {
+        this.buffer = new byte[1024];
+    }
+
+    /**
+     * Encodes the status line and headers of a response, terminated by the empty line.<br>
+     * The Content-Length header is added if it is not set and the length of the body is known.
+     *
+     * @param response The response
+     * @return Buffer containing the head, only valid until the next call of this encoder
+     */
+    public ByteBuffer encodeHead(Response response) {
+        response.prepareHead();
+        length = 0;
+
+        write(response.getHttpVersion());
+        write(' ');
+        write(response.getStatus());
+        write(CRLF);
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            byte[] name = HEADER_NAMES.get(header.getKey());
+            if (name != null) {
+                write(name);
+            } else {
+                write(header.getKey());
+                write(SEPARATOR);
+            }
+            write(header.getValue());
+            write(CRLF);
+        }
+        write(CRLF);
+
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Encodes the status line and headers of a response into a new array, see {@link #encodeHead(Response)}.<br>
+     * Use this if the head has to be kept, e.g. while it waits in a queue
+     *
+     * @param response The response
+     * @return The head
+     */
+    public byte[] encodeHeadBytes(Response response) {
+        ByteBuffer head = encodeHead(response);
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+        return bytes;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional <= buffer.length) return;
+        byte[] larger = new byte[Math.max(buffer.length * 2, length + additional)];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void write(String text) {
+        if (text == null) text = "null";
+        int count = text.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                //Not plain ASCII, sent as UTF-8
+                length -= i;
+                write(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[length++] = (byte) c;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import de.deadmist.deLog.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of I/O buffers that are reused across connections instead of being allocated for every request.<br>
+ * Buffers come in size classes, powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}, a request for a buffer is
+ * served from the smallest class that fits. Heap buffers and direct buffers are pooled separately. Larger buffers
+ * are allocated when they are needed and dropped when they are released.
+ * <p>
+ * A borrowed buffer has to be released exactly once, after it is no longer used, and must not be used afterwards.
+ * With leak detection enabled, see {@link #setLeakDetection(boolean)}, the pool remembers where every borrowed
+ * buffer was acquired and logs a warning with that location if the buffer is garbage collected without being
+ * released. Releasing a buffer twice is logged as well. Leak detection is meant for debugging, it makes borrowing
+ * considerably more expensive.
+ * </p>
+ * The pool is thread safe.
+ *
+ * @author Deadmist
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int CLASSES =
+            Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(64);
+
+    private final int maxPooled;
+    private final Tier heap = new Tier();
+    private final Tier direct = new Tier();
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private volatile boolean leakDetection;
+    //Borrowed buffers by identity hash code, only used with leak detection
+    private final Map<Integer, List<Tracker>> borrowed = new HashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * Free buffers of one kind, a queue for each size class
+     */
+    private static class Tier {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ConcurrentLinkedQueue<ByteBuffer>[] free = new ConcurrentLinkedQueue[CLASSES];
+        final AtomicInteger[] counts = new AtomicInteger[CLASSES];
+
+        Tier() {
+            for (int i = 0; i < CLASSES; i++) {
+                free[i] = new ConcurrentLinkedQueue<>();
+                counts[i] = new AtomicInteger();
+            }
+        }
+    }
+
+    /**
+     * Remembers where a borrowed buffer was acquired, enqueued if the buffer is collected without being released
+     */
+    private static class Tracker extends WeakReference<ByteBuffer> {
+        final int id;
+        final Exception acquiredAt;
+
+        Tracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.id = System.identityHashCode(buffer);
+            this.acquiredAt = new Exception("Buffer of " + buffer.capacity() + " bytes acquired here");
+        }
+    }
+
+    /**
+     * Returns the pool shared by the servers, the request parser, responses and the provided handlers
+     *
+     * @return The shared pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a pool
+     *
+     * @param maxPooled Maximum number of free buffers kept for every size class of heap and direct buffers
+     */
+    public BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Borrows a heap buffer
+     *
+     * @param size Minimum capacity
+     * @return Cleared buffer with a capacity of at least size bytes, backed by an array with offset 0
+     */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, false);
+    }
+
+    /**
+     * Borrows a direct buffer
+     *
+     * @param size Minimum capacity
+     * @return Cleared buffer with a capacity of at least size bytes
+     */
+    public ByteBuffer acquireDirect(int size) {
+        return acquire(size, true);
+    }
+
+    private ByteBuffer acquire(int size, boolean isDirect) {
+        int index = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            Tier tier = isDirect ? direct : heap;
+            buffer = tier.free[index].poll();
+            if (buffer != null) tier.counts[index].decrementAndGet();
+        }
+        if (buffer == null) {
+            int capacity = index >= 0 ? MIN_SIZE << index : size;
+            buffer = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocated.incrementAndGet();
+        }
+        acquired.incrementAndGet();
+
+        if (leakDetection) {
+            reportLeaks();
+            Tracker tracker = new Tracker(buffer, collected);
+            synchronized (borrowed) {
+                borrowed.computeIfAbsent(tracker.id, id -> new ArrayList<>(1)).add(tracker);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a borrowed buffer to the pool
+     *
+     * @param buffer Buffer acquired from this pool, must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (leakDetection && !untrack(buffer)) {
+            Logger.w("BUFFERPOOL", "Released a buffer that was not borrowed from the pool or was released before",
+                    new Exception("Released here"));
+            return;
+        }
+        released.incrementAndGet();
+
+        int index = buffer.capacity() <= MAX_SIZE ? sizeClass(buffer.capacity()) : -1;
+        if (index < 0 || buffer.capacity() != MIN_SIZE << index) return;
+        Tier tier = buffer.isDirect() ? direct : heap;
+        if (tier.counts[index].incrementAndGet() > maxPooled) {
+            tier.counts[index].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        tier.free[index].offer(buffer);
+    }
+
+    private static int sizeClass(int size) {
+        if (size > MAX_SIZE) return -1;
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        int id = System.identityHashCode(buffer);
+        synchronized (borrowed) {
+            List<Tracker> trackers = borrowed.get(id);
+            if (trackers == null) return false;
+            for (int i = 0; i < trackers.size(); i++) {
+                Tracker tracker = trackers.get(i);
+                if (tracker.get() == buffer) {
+                    //A cleared reference is never enqueued
+                    tracker.clear();
+                    trackers.remove(i);
+                    if (trackers.isEmpty()) borrowed.remove(id);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            Tracker tracker = (Tracker) reference;
+            synchronized (borrowed) {
+                List<Tracker> trackers = borrowed.get(tracker.id);
+                if (trackers != null && trackers.remove(tracker) && trackers.isEmpty()) borrowed.remove(tracker.id);
+            }
+            leaks.incrementAndGet();
+            Logger.w("BUFFERPOOL", "A buffer was garbage collected without being released", tracker.acquiredAt);
+        }
+    }
+
+    /**
+     * Enables or disables leak detection, enable it before any buffer is borrowed
+     *
+     * @param leakDetection true to track every borrowed buffer
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Checks if leak detection is enabled
+     *
+     * @return true if borrowed buffers are tracked
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Returns how many buffers have been borrowed
+     *
+     * @return Number of buffers
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * Returns how many buffers have been returned
+     *
+     * @return Number of buffers
+     */
+    public long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * Returns how many buffers had to be allocated because no free buffer was available
+     *
+     * @return Number of buffers
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns how many borrowed buffers have been found to be garbage collected without being released,
+     * only counted with leak detection
+     *
+     * @return Number of buffers
+     */
+    public long getLeaks() {
+        if (leakDetection) reportLeaks();
+        return leaks.get();
+    }
+
+    /**
+     * Returns how many buffers are borrowed right now
+     *
+     * @return Number of buffers
+     */
+    public long getInUse() {
+        return acquired.get() - released.get() - leaks.get();
+    }
+
+    /**
+     * Returns how many free buffers the pool holds
+     *
+     * @return Number of heap and direct buffers
+     */
+    public int getPooledCount() {
+        int count = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            count += heap.counts[i].get() + direct.counts[i].get();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the combined capacity of the free buffers the pool holds
+     *
+     * @return Size in bytes
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            bytes += (long) (heap.counts[i].get() + direct.counts[i].get()) * (MIN_SIZE << i);
+        }
+        return bytes;
+    }
+}
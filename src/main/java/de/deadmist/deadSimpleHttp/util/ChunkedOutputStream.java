@@ -0,0 +1,67 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes data in the chunked transfer encoding of HTTP/1.1<br>
+ * Every write becomes one chunk, wrap this stream in a buffered stream to get chunks of a sensible size.
+ * {@link #finish()} writes the last chunk, the underlying stream stays open.
+ *
+ * @author Deadmist
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private boolean finished;
+
+    /**
+     * Creates a chunked stream
+     *
+     * @param out Stream to write the encoded data to
+     */
+    public ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Last chunk has already been written");
+        //An empty chunk would end the body
+        if (len == 0) return;
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes the last chunk, ending the body
+     *
+     * @throws IOException If writing fails
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        out.write(LAST_CHUNK);
+    }
+
+    /**
+     * Finishes the body, the underlying stream is not closed
+     *
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+        flush();
+    }
+}
@@ -0,0 +1,87 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Provides utilities for content codings, e.g. gzip
+ *
+ * @author Deadmist
+ */
+public class Compression {
+
+    /**
+     * Checks if a client accepts a content coding
+     *
+     * @param acceptEncoding Content of the Accept-Encoding header, may be null
+     * @param coding         The coding, e.g. "gzip"
+     * @return true if the coding is listed (or matched by "*") without "q=0"
+     */
+    public static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) return false;
+        boolean wildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        acceptable = Float.parseFloat(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        acceptable = false;
+                    }
+                }
+            }
+            //An explicitly listed coding takes precedence over the wildcard
+            if (name.equalsIgnoreCase(coding)) return acceptable;
+            if (name.equals("*")) wildcard = acceptable;
+        }
+        return wildcard;
+    }
+
+    /**
+     * Checks if content of a type gets noticeably smaller when compressed<br>
+     * Text, scripts, JSON, XML and SVG compress well, images, videos and archives are already compressed
+     *
+     * @param contentType The mimetype, parameters like "; charset=utf-8" are ignored. May be null
+     * @return true if compressing the content is worth it
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.split(";")[0].trim().toLowerCase();
+        if (type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")) return true;
+        switch (type) {
+            case "application/javascript":
+            case "application/x-javascript":
+            case "application/json":
+            case "application/xml":
+            case "application/wasm":
+            case "image/x-icon":
+            case "image/bmp":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compresses data with gzip
+     *
+     * @param data Data to compress
+     * @return The compressed data
+     */
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8 * 1024)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            //Writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
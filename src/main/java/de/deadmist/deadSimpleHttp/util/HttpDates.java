@@ -0,0 +1,77 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats and parses the dates used in HTTP headers, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+ *
+ * @author Deadmist
+ */
+public class HttpDates {
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * The current date, formatted at most once per second
+     */
+    private static class CachedDate {
+        final long second;
+        final String value;
+
+        CachedDate(long second) {
+            this.second = second;
+            this.value = format(second * 1000);
+        }
+    }
+
+    private static volatile CachedDate now = new CachedDate(System.currentTimeMillis() / 1000);
+
+    /**
+     * Returns the current date as a HTTP date, e.g. for the Date header.<br>
+     * The date is only formatted once per second, every other call returns the same string
+     *
+     * @return The formatted date
+     */
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = now;
+        if (date.second != second) {
+            //Two threads might format the new second at once, both results are the same
+            date = new CachedDate(second);
+            now = date;
+        }
+        return date.value;
+    }
+
+    /**
+     * Formats a point in time as a HTTP date, milliseconds are dropped
+     *
+     * @param millis Milliseconds since the epoch
+     * @return The formatted date
+     */
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses a HTTP date<br>
+     * Only the preferred format is accepted, the obsolete RFC 850 and asctime formats are treated as invalid
+     *
+     * @param date The date
+     * @return Milliseconds since the epoch, or -1 if the date is not valid
+     */
+    public static long parse(String date) {
+        if (date == null) return -1;
+        try {
+            return ZonedDateTime.parse(date.trim(), FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import de.deadmist.deLog.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the mimetype of a file from its extension.<br>
+ * The registry is preloaded with the common types of the web and can be extended with {@link #register(String, String)}
+ * or from a file in the format of the Apache/nginx "mime.types" file, see {@link #load(Path)}.
+ * <p>
+ * Files with an unknown extension are probed with {@link Files#probeContentType(Path)} once, the result is remembered
+ * for the path. A file with a known extension is resolved without touching the filesystem.
+ * </p>
+ * The registry is thread safe.
+ *
+ * @author Deadmist
+ */
+public class MimeTypes {
+
+    //Mimetype and the extensions it is used for, like a line of mime.types
+    private static final String[][] DEFAULT_TYPES = {
+            {"text/html", "html", "htm", "shtml"},
+            {"text/css", "css"},
+            {"text/javascript", "js", "mjs"},
+            {"text/plain", "txt", "text", "log", "conf", "ini"},
+            {"text/csv", "csv"},
+            {"text/markdown", "md", "markdown"},
+            {"text/xml", "xml"},
+            {"text/calendar", "ics"},
+            {"text/vtt", "vtt"},
+            {"application/json", "json", "map"},
+            {"application/ld+json", "jsonld"},
+            {"application/manifest+json", "webmanifest"},
+            {"application/xhtml+xml", "xhtml"},
+            {"application/rss+xml", "rss"},
+            {"application/atom+xml", "atom"},
+            {"application/wasm", "wasm"},
+            {"application/pdf", "pdf"},
+            {"application/zip", "zip"},
+            {"application/gzip", "gz", "tgz"},
+            {"application/x-tar", "tar"},
+            {"application/x-7z-compressed", "7z"},
+            {"application/x-bzip2", "bz2"},
+            {"application/x-xz", "xz"},
+            {"application/java-archive", "jar", "war", "ear"},
+            {"application/octet-stream", "bin", "exe", "dll", "iso", "img", "dmg", "deb", "msi"},
+            {"application/msword", "doc"},
+            {"application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx"},
+            {"application/vnd.ms-excel", "xls"},
+            {"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx"},
+            {"application/vnd.ms-powerpoint", "ppt"},
+            {"application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx"},
+            {"application/vnd.oasis.opendocument.text", "odt"},
+            {"application/rtf", "rtf"},
+            {"image/png", "png"},
+            {"image/jpeg", "jpg", "jpeg"},
+            {"image/gif", "gif"},
+            {"image/webp", "webp"},
+            {"image/avif", "avif"},
+            {"image/svg+xml", "svg", "svgz"},
+            {"image/x-icon", "ico"},
+            {"image/bmp", "bmp"},
+            {"image/tiff", "tif", "tiff"},
+            {"font/woff", "woff"},
+            {"font/woff2", "woff2"},
+            {"font/ttf", "ttf"},
+            {"font/otf", "otf"},
+            {"application/vnd.ms-fontobject", "eot"},
+            {"audio/mpeg", "mp3"},
+            {"audio/ogg", "ogg", "oga", "opus"},
+            {"audio/wav", "wav"},
+            {"audio/flac", "flac"},
+            {"audio/aac", "aac"},
+            {"audio/mp4", "m4a"},
+            {"video/mp4", "mp4", "m4v"},
+            {"video/webm", "webm"},
+            {"video/ogg", "ogv"},
+            {"video/quicktime", "mov"},
+            {"video/x-matroska", "mkv"},
+            {"video/x-msvideo", "avi"},
+            {"video/mp2t", "ts"},
+            {"application/vnd.apple.mpegurl", "m3u8"},
+            {"application/dash+xml", "mpd"},
+    };
+
+    //Paths with unknown extensions are remembered up to this number, then forgotten all at once
+    private static final int MAX_PROBED_PATHS = 4096;
+
+    private static final ConcurrentHashMap<String, String> types = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Path, String> probed = new ConcurrentHashMap<>();
+    //Stands in for "no mimetype" in the probed paths, the map does not hold null
+    private static final String UNKNOWN = "";
+
+    static {
+        registerDefaults();
+    }
+
+    private static void registerDefaults() {
+        for (String[] type : DEFAULT_TYPES) {
+            for (int i = 1; i < type.length; i++) {
+                types.put(type[i], type[0]);
+            }
+        }
+    }
+
+    /**
+     * Removes every registered mimetype except the defaults, used by tests that change the registry
+     */
+    static void reset() {
+        types.clear();
+        registerDefaults();
+        probed.clear();
+    }
+
+    /**
+     * Returns the mimetype of a file
+     *
+     * @param file The file
+     * @return The mimetype, or null if it could not be determined
+     */
+    public static String getMimeType(Path file) {
+        Path name = file.getFileName();
+        if (name == null) return null;
+        String type = getMimeType(name.toString());
+        if (type != null) return type;
+
+        //Unknown extension, ask the operating system once
+        type = probed.get(file);
+        if (type == null) {
+            try {
+                type = Files.probeContentType(file);
+            } catch (IOException e) {
+                Logger.e("MIMETYPES", "Error parsing content type from file: " + file.toAbsolutePath(), e);
+            }
+            if (type == null) type = UNKNOWN;
+            if (probed.size() >= MAX_PROBED_PATHS) probed.clear();
+            probed.put(file, type);
+        }
+        return type.equals(UNKNOWN) ? null : type;
+    }
+
+    /**
+     * Returns the registered mimetype for the extension of a file name
+     *
+     * @param fileName Name of the file, e.g. "index.html"
+     * @return The mimetype, or null if the file has no extension or the extension is not registered
+     */
+    public static String getMimeType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) return null;
+        return types.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Registers a mimetype for an extension, replacing the previous mimetype
+     *
+     * @param extension The extension without dot, e.g. "html"
+     * @param type      The mimetype, e.g. "text/html"
+     */
+    public static void register(String extension, String type) {
+        types.put(extension.toLowerCase(Locale.ROOT), type);
+        //A probed file might have this extension
+        probed.clear();
+    }
+
+    /**
+     * Registers the mimetypes of a file in the format of the "mime.types" file of Apache or nginx.<br>
+     * Every line names a mimetype followed by its extensions, e.g. "text/html html htm",
+     * lines starting with # are ignored. nginx' "types {" block syntax and trailing semicolons are accepted as well.
+     *
+     * @param file The file
+     * @throws IOException If the file can not be read
+     */
+    public static void load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            load(in);
+        }
+    }
+
+    /**
+     * Registers the mimetypes read from a stream, see {@link #load(Path)}
+     *
+     * @param in Stream with the content of a mime.types file, is not closed
+     * @throws IOException If the stream can not be read
+     */
+    public static void load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            String[] fields = line.replace(";", " ").replace("{", " ").replace("}", " ").trim().split("\\s+");
+            //The first field is the mimetype, nginx' "types" keyword has no slash
+            if (fields.length < 2 || fields[0].indexOf('/') < 0) continue;
+            for (int i = 1; i < fields.length; i++) {
+                types.put(fields[i].toLowerCase(Locale.ROOT), fields[0]);
+            }
+        }
+        probed.clear();
+    }
+}
@@ -2,13 +2,139 @@ package de.deadmist.deadSimpleHttp.util;
 
 import de.deadmist.deadSimpleHttp.structures.Response;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * This class provides standard responses for different status codes and errors
+ * <p>
+ * The pages are encoded once when the class is loaded and shared by all responses as read only buffers, creating a
+ * response only creates the {@link Response} itself. Pages with a parameter, e.g. the location of a redirect, are put together from
+ * pre-encoded pieces. Parameters are HTML escaped.
+ * </p>
  *
  * @author Deadmist
  */
 public class StandardResponses {
 
+    private static final String CONTENT_TYPE = "text/html; charset=utf-8";
+
+    private static final Template BODY_301 = new Template("301 Moved Permanently",
+            "This resource has been moved permanently to ", " ");
+    private static final Template BODY_302 = new Template("302 Found",
+            "This resource can be found at ", " ");
+    private static final Template BODY_303 = new Template("303 See Other response",
+            "This resource can be found at ", " ");
+    private static final Template BODY_400 = new Template("400 Bad Request",
+            "Additional Reason: ", "");
+    private static final ByteBuffer BODY_401 = page("401 Unauthorized",
+            "Your are not authorized to access this page");
+    private static final ByteBuffer BODY_403 = page("403 Forbidden",
+            "Your are forbidden from accessing this page");
+    private static final ByteBuffer BODY_404 = page("404 Not Found",
+            "The page you were trying to access was not found");
+    private static final ByteBuffer BODY_405 = page("405 Method Not Allowed",
+            "The method you used for accessing this page is not allowed");
+    private static final ByteBuffer BODY_406 = page("406 Not Acceptable",
+            "The requested resource is only capable of generating content not acceptable according to the Accept headers sent in the request");
+    private static final ByteBuffer BODY_416 = page("416 Range Not Satisfiable",
+            "None of the requested ranges lies within the file");
+    private static final ByteBuffer BODY_418 = page("418 I'm a teapot",
+            "You tried brewing coffee, but I'm a teapot. I make tea, only tea and nothing else.");
+    private static final ByteBuffer BODY_500 = page("500 Internal Server Error",
+            "There was an error processing your request.");
+    private static final ByteBuffer BODY_503 = page("503 Service Unavailable",
+            "The server is too busy to process your request, please try again later.");
+    private static final ByteBuffer BODY_504 = page("504 Gateway Timeout",
+            "The server did not finish processing your request in time.");
+
+    /**
+     * A page with one parameter, encoded as the bytes before and after the parameter
+     */
+    private static class Template {
+        final byte[] prefix;
+        final byte[] suffix;
+
+        Template(String title, String before, String after) {
+            this.prefix = ("<html><head><title>" + title + "</title></head>" +
+                    "<body><h2>" + title + "</h2>" +
+                    "<p>" + before).getBytes(StandardCharsets.UTF_8);
+            this.suffix = (after + "</p></body></html>").getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] fill(String parameter) {
+            byte[] middle = escape(parameter).getBytes(StandardCharsets.UTF_8);
+            byte[] page = new byte[prefix.length + middle.length + suffix.length];
+            System.arraycopy(prefix, 0, page, 0, prefix.length);
+            System.arraycopy(middle, 0, page, prefix.length, middle.length);
+            System.arraycopy(suffix, 0, page, prefix.length + middle.length, suffix.length);
+            return page;
+        }
+    }
+
+    private static ByteBuffer page(String title, String message) {
+        byte[] page = ("<html><head><title>" + title + "</title></head>" +
+                "<body><h2>" + title + "</h2>" +
+                "<p>" + message + "</p></body></html>").getBytes(StandardCharsets.UTF_8);
+        //Handlers get the buffer back from the response, they must not be able to change the page for everyone
+        return ByteBuffer.wrap(page).asReadOnlyBuffer();
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&':  replacement = "&amp;"; break;
+                case '<':  replacement = "&lt;"; break;
+                case '>':  replacement = "&gt;"; break;
+                case '"':  replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default:   replacement = null;
+            }
+            if (replacement == null) {
+                if (escaped != null) escaped.append(c);
+            } else {
+                if (escaped == null) escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+                escaped.append(replacement);
+            }
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+
+    /**
+     * Creates a response with a page put together for it
+     *
+     * @param status Status code and message
+     * @param body   The page
+     * @return The response
+     */
+    private static Response create(String status, byte[] body) {
+        Response r = new Response();
+        r.setStatus(status);
+        r.setHttpVersion(1.1f);
+        r.setBody(body);
+        r.setHeader("Content-Type", CONTENT_TYPE);
+        return r;
+    }
+
+    /**
+     * Creates a response with a shared, pre-encoded body
+     *
+     * @param status Status code and message
+     * @param body   The page, a read only buffer that is never consumed
+     * @return The response
+     */
+    private static Response create(String status, ByteBuffer body) {
+        Response r = new Response();
+        r.setStatus(status);
+        r.setHttpVersion(1.1f);
+        r.setBody(body);
+        r.setHeader("Content-Type", CONTENT_TYPE);
+        return r;
+    }
+
     /**
      * Creates a 301 Moved Permanently response directing to the new location
      *
@@ -16,11 +142,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create301(String newLocation) {
-        String body = "<html><head><title>301 Moved Permanently</title></head>" +
-                "<body><h2>301 Moved Permanently</h2>" +
-                "<p>This resource has been moved permanently to " + newLocation + " </p></body></html>";
-
-        Response r = new Response("301 Moved Permanently", body);
+        Response r = create("301 Moved Permanently", BODY_301.fill(newLocation));
         r.setHeader("Location", newLocation);
 
         return r;
@@ -33,11 +155,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create302(String newLocation) {
-        String body = "<html><head><title>302 Found</title></head>" +
-                "<body><h2>302 Found</h2>" +
-                "<p>This resource can be found at " + newLocation + " </p></body></html>";
-
-        Response r = new Response("302 Found", body);
+        Response r = create("302 Found", BODY_302.fill(newLocation));
         r.setHeader("Location", newLocation);
 
         return r;
@@ -50,16 +168,25 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create303(String newLocation) {
-        String body = "<html><head><title>303 See Other response</title></head>" +
-                "<body><h2>303 See Other response</h2>" +
-                "<p>This resource can be found at " + newLocation + " </p></body></html>";
-
-        Response r = new Response("303 See Other response", body);
+        Response r = create("303 See Other response", BODY_303.fill(newLocation));
         r.setHeader("Location", newLocation);
 
         return r;
     }
 
+    /**
+     * Create a 304 Not Modified response, it has no body
+     *
+     * @return Response with the status
+     */
+    public static Response create304() {
+        Response r = new Response();
+        r.setStatus("304 Not Modified");
+        r.setHttpVersion(1.1f);
+
+        return r;
+    }
+
     /**
      * Create a 400 Bad Request
      *
@@ -67,13 +194,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create400(String reason) {
-        String body = "<html><head><title>400 Bad Request</title></head>" +
-                "<body><h2>400 Bad Request</h2>" +
-                "<p>Additional Reason: " + reason + "</p></body></html>";
-
-        Response r = new Response("400 Bad Request", body);
-
-        return r;
+        return create("400 Bad Request", BODY_400.fill(reason));
     }
 
     /**
@@ -83,11 +204,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create401(String challenge) {
-        String body = "<html><head><title>401 Unauthorized</title></head>" +
-                "<body><h2>401 Unauthorized</h2>" +
-                "<p>Your are not authorized to access this page</p></body></html>";
-
-        Response r = new Response("401 Unauthorized", body);
+        Response r = create("401 Unauthorized", BODY_401);
         if (!challenge.isEmpty()) {
             r.setHeader("WWW-Authenticate", challenge);
         }
@@ -102,13 +219,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create403(String reason) {
-        String body = "<html><head><title>403 Forbidden</title></head>" +
-                "<body><h2>403 Forbidden</h2>" +
-                "<p>Your are forbidden from accessing this page</p></body></html>";
-
-        Response r = new Response("403 Forbidden", body);
-
-        return r;
+        return create("403 Forbidden", BODY_403);
     }
 
     /**
@@ -117,13 +228,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create404() {
-        String body = "<html><head><title>404 Not Found</title></head>" +
-                "<body><h2>404 Not Found</h2>" +
-                "<p>The page you were trying to access was not found</p></body></html>";
-
-        Response r = new Response("404 Not Found", body);
-
-        return r;
+        return create("404 Not Found", BODY_404);
     }
 
     /**
@@ -132,13 +237,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create405() {
-        String body = "<html><head><title>405 Method Not Allowed</title></head>" +
-                "<body><h2>405 Method Not Allowed</h2>" +
-                "<p>The method you used for accessing this page is not allowed</p></body></html>";
-
-        Response r = new Response("405 Method Not Allowed", body);
-
-        return r;
+        return create("405 Method Not Allowed", BODY_405);
     }
 
     /**
@@ -147,11 +246,18 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create406() {
-        String body = "<html><head><title>406 Not Acceptable</title></head>" +
-                "<body><h2>406 Not Acceptable</h2>" +
-                "<p>The requested resource is only capable of generating content not acceptable according to the Accept headers sent in the request</p></body></html>";
+        return create("406 Not Acceptable", BODY_406);
+    }
 
-        Response r = new Response("406 Not Acceptable", body);
+    /**
+     * Create a 416 Range Not Satisfiable
+     *
+     * @param length Length of the requested file
+     * @return Response with the status message
+     */
+    public static Response create416(long length) {
+        Response r = create("416 Range Not Satisfiable", BODY_416);
+        r.setHeader("Content-Range", "bytes */" + length);
 
         return r;
     }
@@ -162,13 +268,7 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create418() {
-        String body = "<html><head><title>418 I'm a teapot</title></head>" +
-                "<body><h2>418 I'm a teapot</h2>" +
-                "<p>You tried brewing coffee, but I'm a teapot. I make tea, only tea and nothing else.</p></body></html>";
-
-        Response r = new Response("418 I'm a teapot", body);
-
-        return r;
+        return create("418 I'm a teapot", BODY_418);
     }
 
     /**
@@ -177,14 +277,28 @@ public class StandardResponses {
      * @return Response with the status message
      */
     public static Response create500() {
-        String body = "<html><head><title>500 Internal Server Error</title></head>" +
-                "<body><h2>500 Internal Server Error</h2>" +
-                "<p>There was an error processing your request.</p></body></html>";
+        return create("500 Internal Server Error", BODY_500);
+    }
 
-        Response r = new Response("500 Internal Server Error", body);
+    /**
+     * Create a 503 Service Unavailable
+     *
+     * @param retryAfter Seconds after which the client may try again, sent as Retry-After header
+     * @return Response with the status message
+     */
+    public static Response create503(int retryAfter) {
+        Response r = create("503 Service Unavailable", BODY_503);
+        r.setHeader("Retry-After", Integer.toString(retryAfter));
 
         return r;
     }
 
-
+    /**
+     * Create a 504 Gateway Timeout
+     *
+     * @return Response with the status message
+     */
+    public static Response create504() {
+        return create("504 Gateway Timeout", BODY_504);
+    }
 }
@@ -0,0 +1,215 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import de.deadmist.deLog.Logger;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel for large numbers of timeouts that are mostly cancelled or extended before they expire,
+ * like the timeouts of connections.<br>
+ * Time is divided into ticks of a fixed duration. The wheel has a bucket for every tick of one revolution, a timeout
+ * is put into the bucket of the tick it expires in and remembers how many revolutions are left. Scheduling and
+ * cancelling take constant time no matter how many timeouts are pending, on every tick only one bucket is visited.
+ * Timeouts expire up to one tick late, never early.
+ * <p>
+ * Timeouts can be scheduled and cancelled from any thread. They are run by the thread that advances the wheel,
+ * either the thread started with {@link #start(String)} or a thread calling {@link #advance()} regularly.
+ * Tasks must be short and must not block, they hold up every other timeout.
+ * </p>
+ *
+ * @author Deadmist
+ */
+public class TimerWheel {
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickDuration;
+    private final int mask;
+    private final ArrayList<Timeout>[] buckets;
+    private final long origin = System.nanoTime();
+
+    //Scheduled timeouts that have not been put into a bucket yet
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    //Next tick to process, only used by the advancing thread
+    private long tick;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * A scheduled task
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, the task is not run
+         *
+         * @return true if it was cancelled, false if it has expired or was cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            pending.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Checks if the task has been run
+         *
+         * @return true if the timeout expired
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) return;
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.e("TIMER", "Exception in timeout task", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a wheel
+     *
+     * @param tickDuration  Duration of a tick in milliseconds, the precision of the timeouts
+     * @param ticksPerWheel Number of buckets, rounded up to a power of two. Timeouts longer than one revolution
+     *                      are visited once per revolution until they expire
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickDuration, int ticksPerWheel) {
+        if (tickDuration < 1) throw new IllegalArgumentException("Tick duration must be positive");
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 20) throw new IllegalArgumentException("Invalid number of ticks");
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (size == 0) size = 1;
+        this.tickDuration = tickDuration;
+        this.mask = size - 1;
+        this.buckets = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Schedules a task
+     *
+     * @param task  Task to run once the delay has passed
+     * @param delay Delay in milliseconds
+     * @return The timeout, for cancelling it
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, elapsed() + Math.max(0, delay));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs every task whose timeout has expired since the last call.<br>
+     * Only one thread may advance the wheel
+     */
+    public void advance() {
+        long target = elapsed() / tickDuration;
+        while (tick <= target) {
+            addScheduled();
+            ArrayList<Timeout> bucket = buckets[(int) (tick & mask)];
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                Timeout timeout = bucket.get(i);
+                if (timeout.state.get() != WAITING) continue;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    bucket.set(kept++, timeout);
+                } else {
+                    timeout.expire();
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+            tick++;
+        }
+    }
+
+    /**
+     * Puts the newly scheduled timeouts into their buckets
+     */
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != WAITING) continue;
+            //Round up, a timeout never expires early. Timeouts in the past expire on the current tick
+            long expires = Math.max(tick, (timeout.deadline + tickDuration - 1) / tickDuration);
+            timeout.rounds = (expires - tick) / buckets.length;
+            buckets[(int) (expires & mask)].add(timeout);
+        }
+    }
+
+    private long elapsed() {
+        return (System.nanoTime() - origin) / 1000000;
+    }
+
+    /**
+     * Starts a daemon thread that advances the wheel on every tick
+     *
+     * @param name Name of the thread
+     */
+    public synchronized void start(String name) {
+        if (running) return;
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(tickDuration - elapsed() % tickDuration);
+                } catch (InterruptedException e) {
+                    //Stopped
+                }
+                if (running) advance();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread started with {@link #start(String)}, pending timeouts are not run
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Returns the duration of a tick
+     *
+     * @return Duration in milliseconds
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Returns how many timeouts are waiting to expire
+     *
+     * @return Number of timeouts
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+}
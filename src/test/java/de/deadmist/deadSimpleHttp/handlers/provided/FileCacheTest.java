@@ -0,0 +1,108 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FileCacheTest {
+
+    private Path dir;
+    private FileCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("fileCacheTest");
+    }
+
+    //Files are written before the cache is created, otherwise their creation would invalidate them
+    private void createCache() throws IOException {
+        cache = new FileCache(dir.toString(), 100, 50);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cache != null) cache.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private Path write(String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) ('a' + i % 26);
+        return Files.write(dir.resolve(name), data);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        Path file = write("a.txt", 10);
+        Path large = write("large.txt", 51);
+        createCache();
+
+        FileCache.Entry first = cache.get(file);
+        assertNotNull(first);
+        assertEquals("10", first.contentLength);
+        assertEquals("abcdefghij", StandardCharsets.ISO_8859_1.decode(first.content.duplicate()).toString());
+        assertSame(first, cache.get(file));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        //Missing files and files above the size limit are not cached
+        assertNull(cache.get(dir.resolve("missing.txt")));
+        assertNull(cache.get(large));
+        assertEquals(10, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path a = write("a.txt", 40);
+        Path b = write("b.txt", 40);
+        Path c = write("c.txt", 40);
+        createCache();
+
+        cache.get(a);
+        cache.get(b);
+        //a is now the most recently used file, b gets evicted
+        cache.get(a);
+        cache.get(c);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getFileCount());
+        assertEquals(80, cache.getSize());
+        long hits = cache.getHits();
+        cache.get(a);
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        Path file = write("a.txt", 10);
+        createCache();
+        cache.get(file);
+        Files.write(file, "changed".getBytes(StandardCharsets.ISO_8859_1));
+
+        //The watch service might poll, wait for it to notice the change
+        long timeout = System.currentTimeMillis() + 15000;
+        while (cache.getInvalidations() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+
+        assertEquals("7", cache.get(file).contentLength);
+
+        cache.invalidateAll();
+        assertEquals(0, cache.getFileCount());
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,211 @@
+package de.deadmist.deadSimpleHttp.handlers.provided;
+
+import de.deadmist.deadSimpleHttp.structures.Request;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import de.deadmist.deadSimpleHttp.util.Compression;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileHandlerTest {
+
+    private static Path dir;
+
+    @BeforeClass
+    public static void createFiles() throws IOException {
+        dir = Files.createTempDirectory("fileHandlerTest");
+        Files.write(dir.resolve("data.txt"), "0123456789abcdefghij".getBytes(StandardCharsets.ISO_8859_1));
+
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; i < 100; i++) css.append(".rule").append(i).append(" { color: red; }\n");
+        Files.write(dir.resolve("style.css"), css.toString().getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(dir.resolve("app.js"), css.toString().getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(dir.resolve("app.js.gz"), Compression.gzip(css.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @AfterClass
+    public static void deleteFiles() throws IOException {
+        for (String file : new String[]{"data.txt", "style.css", "app.js", "app.js.gz"}) {
+            Files.delete(dir.resolve(file));
+        }
+        Files.delete(dir);
+    }
+
+    static Response get(FileHandler handler, String file, String... headers) throws Exception {
+        StringBuilder request = new StringBuilder("GET " + file + " HTTP/1.1\r\n");
+        for (String header : headers) request.append(header).append("\r\n");
+        request.append("\r\n");
+        return handler.processRequest(new Request(
+                new ByteArrayInputStream(request.toString().getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    static String body(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeBody(out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+        Response response = get(handler, "/data.txt", "Range: bytes=5-9");
+
+        assertTrue(new String(response.getHeadBytes()).startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertEquals("bytes 5-9/20", response.getHeader("Content-Range"));
+        assertEquals("5", response.getHeader("Content-Length"));
+        assertNull(response.getBodyBuffer());
+        assertEquals("56789", body(response));
+
+        //Header names are not case sensitive
+        Response lowerCase = get(handler, "/data.txt", "range: bytes=5-9");
+        assertEquals("bytes 5-9/20", lowerCase.getHeader("Content-Range"));
+        assertEquals("56789", body(lowerCase));
+    }
+
+    @Test
+    public void testRangeForms() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+
+        Response suffix = get(handler, "/data.txt", "Range: bytes=-3");
+        assertEquals("bytes 17-19/20", suffix.getHeader("Content-Range"));
+        assertEquals("hij", body(suffix));
+
+        Response beyondEnd = get(handler, "/data.txt", "Range: bytes=15-99999999999999999999999");
+        assertEquals("fghij", body(beyondEnd));
+
+        Response unsatisfiable = get(handler, "/data.txt", "Range: bytes=20-30");
+        assertTrue(new String(unsatisfiable.getHeadBytes()).startsWith("HTTP/1.1 416"));
+        assertEquals("bytes */20", unsatisfiable.getHeader("Content-Range"));
+
+        //Invalid headers are ignored
+        Response invalid = get(handler, "/data.txt", "Range: bytes=5-2");
+        assertTrue(new String(invalid.getHeadBytes()).startsWith("HTTP/1.1 200"));
+        assertEquals("0123456789abcdefghij", body(invalid));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+        Response response = get(handler, "/data.txt", "Range: bytes=-2, 0-1, 1-3, 10-10");
+
+        String contentType = response.getHeader("Content-Type");
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        String body = body(response);
+        assertEquals(String.valueOf(body.length()), response.getHeader("Content-Length"));
+        //Overlapping ranges are merged, the parts are sorted
+        assertEquals("\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-3/20\r\n\r\n0123" +
+                "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 10-10/20\r\n\r\na" +
+                "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 18-19/20\r\n\r\nij" +
+                "\r\n--" + boundary + "--\r\n", body);
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+        Response full = get(handler, "/data.txt");
+        String etag = full.getHeader("ETag");
+        String lastModified = full.getHeader("Last-Modified");
+        assertNotNull(etag);
+        assertNotNull(lastModified);
+        full.closeBody();
+
+        Response notModified = get(handler, "/data.txt", "If-None-Match: \"other\", " + etag);
+        String head = new String(notModified.getHeadBytes());
+        assertTrue(head.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertFalse(head.contains("Content-Length"));
+        assertEquals(etag, notModified.getHeader("ETag"));
+
+        assertTrue(new String(get(handler, "/data.txt", "If-Modified-Since: " + lastModified).getHeadBytes())
+                .startsWith("HTTP/1.1 304"));
+        //If-None-Match takes precedence
+        assertEquals("0123456789abcdefghij", body(get(handler, "/data.txt", "If-None-Match: \"other\"",
+                "If-Modified-Since: " + lastModified)));
+        assertEquals("0123456789abcdefghij", body(get(handler, "/data.txt",
+                "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT")));
+
+        //A range is only sent if the file did not change
+        assertEquals("56789", body(get(handler, "/data.txt", "Range: bytes=5-9", "If-Range: " + etag)));
+        assertEquals("0123456789abcdefghij", body(get(handler, "/data.txt", "Range: bytes=5-9",
+                "If-Range: \"other\"")));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+        CompressionCache compression = new CompressionCache(1024 * 1024);
+        handler.setCompression(compression);
+
+        //Precompressed sibling
+        Response precompressed = get(handler, "/app.js", "Accept-Encoding: gzip, deflate");
+        assertEquals("gzip", precompressed.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", precompressed.getHeader("Vary"));
+        assertEquals(String.valueOf(Files.size(dir.resolve("app.js.gz"))), precompressed.getHeader("Content-Length"));
+        assertTrue(precompressed.getHeader("Content-Type").contains("javascript"));
+        precompressed.closeBody();
+
+        //Compressed on the fly, only once
+        Response compressed = get(handler, "/style.css", "Accept-Encoding: br;q=0, gzip");
+        assertEquals("gzip", compressed.getHeader("Content-Encoding"));
+        assertEquals(new String(Files.readAllBytes(dir.resolve("style.css")), StandardCharsets.ISO_8859_1),
+                new String(gunzip(compressed.getBody()), StandardCharsets.ISO_8859_1));
+        String etag = compressed.getHeader("ETag");
+        assertTrue(etag.endsWith("-gzip\""));
+        get(handler, "/style.css", "Accept-Encoding: gzip");
+        assertEquals(1, compression.getMisses());
+        assertEquals(1, compression.getHits());
+        assertTrue(new String(get(handler, "/style.css", "Accept-Encoding: gzip", "If-None-Match: " + etag)
+                .getHeadBytes()).startsWith("HTTP/1.1 304"));
+
+        //Clients not accepting gzip and ranges get the file uncompressed
+        Response plain = get(handler, "/style.css", "Accept-Encoding: gzip;q=0");
+        assertNull(plain.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", plain.getHeader("Vary"));
+        plain.closeBody();
+        Response range = get(handler, "/style.css", "Accept-Encoding: gzip", "Range: bytes=0-5");
+        assertNull(range.getHeader("Content-Encoding"));
+        assertEquals(".rule0", body(range));
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        FileHandler handler = new FileHandler(dir.toString());
+        handler.setMapThreshold(10);
+
+        Response whole = get(handler, "/data.txt");
+        assertNotNull(whole.getBodyBuffer());
+        assertEquals("0123456789abcdefghij", body(whole));
+
+        Response range = get(handler, "/data.txt", "Range: bytes=12-");
+        assertNotNull(range.getBodyBuffer());
+        assertEquals("bytes 12-19/20", range.getHeader("Content-Range"));
+        assertEquals("cdefghij", body(range));
+        //The mapping is shared, sending a response does not consume it
+        assertEquals("cdefghij", body(get(handler, "/data.txt", "Range: bytes=12-")));
+    }
+}
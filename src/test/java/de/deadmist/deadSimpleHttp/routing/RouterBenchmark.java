@@ -0,0 +1,106 @@
+package de.deadmist.deadSimpleHttp.routing;
+
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+import de.deadmist.deadSimpleHttp.handlers.provided.CatchAllHandler;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the {@link Router} with compiling and matching every pattern on each request, as it used to be done.<br>
+ * The route table contains several hundred exact, prefix and regex routes.
+ * <p>
+ * Not a unit test, run it manually: <code>java RouterBenchmark [routes] [lookups]</code>
+ * </p>
+ */
+public class RouterBenchmark {
+
+    public static void main(String[] args) {
+        int routes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        HashMap<String, RequestHandler> handlers = new HashMap<>();
+        RequestHandler handler = new CatchAllHandler();
+        for (int i = 0; i < routes; i++) {
+            switch (i % 10) {
+                case 0:
+                    handlers.put("^/api/v" + i + "/users/[0-9]+$", handler);
+                    break;
+                case 1:
+                case 2:
+                case 3:
+                    handlers.put("^/static/dir" + i + "/.*", handler);
+                    break;
+                default:
+                    handlers.put("^/page/" + i + "\\.html$", handler);
+            }
+        }
+        handlers.put(".*", handler);
+        handlers.put("^((\\/|[a-zA-Z0-9]+))+\\.[a-zA-Z0-9]+$", handler);
+
+        Random random = new Random(42);
+        String[] files = new String[1024];
+        for (int i = 0; i < files.length; i++) {
+            int n = random.nextInt(routes);
+            switch (random.nextInt(4)) {
+                case 0:
+                    files[i] = "/api/v" + n + "/users/" + random.nextInt(1000);
+                    break;
+                case 1:
+                    files[i] = "/static/dir" + n + "/img/logo.png";
+                    break;
+                case 2:
+                    files[i] = "/page/" + n + ".html";
+                    break;
+                default:
+                    files[i] = "/unknown/" + n;
+            }
+        }
+
+        Router router = new Router(handlers);
+
+        //Warm up both variants before measuring
+        compileEveryTime(handlers, files, lookups / 10);
+        route(router, files, lookups);
+
+        long start = System.nanoTime();
+        int found = compileEveryTime(handlers, files, lookups);
+        long compileNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        found += route(router, files, lookups);
+        long routerNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%d routes, %d lookups (%d found)", handlers.size(), lookups, found));
+        System.out.println(String.format("compile per request: %8.2f us/lookup", compileNanos / 1000.0 / lookups));
+        System.out.println(String.format("router:              %8.2f us/lookup", routerNanos / 1000.0 / lookups));
+    }
+
+    private static int route(Router router, String[] files, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (router.route(files[i % files.length]) != null) found++;
+        }
+        return found;
+    }
+
+    private static int compileEveryTime(HashMap<String, RequestHandler> handlers, String[] files, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            String file = files[i % files.length];
+            int biggestMatch = -1;
+            RequestHandler best = null;
+            for (String pattern : handlers.keySet()) {
+                Matcher m = Pattern.compile(pattern).matcher(file);
+                if (m.find() && m.group(0).length() > biggestMatch) {
+                    biggestMatch = m.group(0).length();
+                    best = handlers.get(pattern);
+                }
+            }
+            if (best != null) found++;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,159 @@
+package de.deadmist.deadSimpleHttp.routing;
+
+import de.deadmist.deadSimpleHttp.handlers.RequestHandler;
+import de.deadmist.deadSimpleHttp.handlers.provided.CatchAllHandler;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RouterTest {
+
+    private static final String[] PATTERNS = {
+            ".*", "^.*$", "^/$", "^/index.html$", "^/static/.*", "^/static/css/.*$", "^/api", "^/api/users$",
+            "\\.png$", "admin", "user.*", "^((\\/|[a-zA-Z0-9]+))+\\.[a-zA-Z0-9]+$", "^/api/users/[0-9]+$",
+            "[a-z]+\\.(css|js)$", "^/static/\\.hidden$", "^/static/dir?/x", "^/static/d+"
+    };
+
+    private static final String[] FILES = {
+            "/", "index.html", "/index.html", "/static/", "/static/css/main.css", "/static/.hidden", "/api",
+            "/api/users", "/api/users/42", "/api/users/x", "/img/logo.png", "/admin/panel", "/users/me",
+            "/a\nb", "/static/js/app.js", "/static/di/x", "/static/dddd", ""
+    };
+
+    @Test
+    public void testLongestMatchWins() {
+        Router router = new Router();
+        RequestHandler files = new CatchAllHandler();
+        RequestHandler catchAll = new CatchAllHandler();
+        router.addRoute("^((\\/|[a-zA-Z0-9]+))+\\.[a-zA-Z0-9]+$", files);
+        router.addRoute("^.*$", catchAll);
+
+        //Both match the whole file, the longer regex wins
+        assertSame(files, router.route("/index.html"));
+        assertSame(catchAll, router.route("/folder/"));
+    }
+
+    @Test
+    public void testIndexedRoutes() {
+        Router router = new Router();
+        RequestHandler exact = new CatchAllHandler();
+        RequestHandler prefix = new CatchAllHandler();
+        RequestHandler regex = new CatchAllHandler();
+        router.addRoute("^/api/users$", exact);
+        router.addRoute("^/api/.*", prefix);
+        router.addRoute("[a-z]+\\.png", regex);
+
+        assertSame(exact, router.route("/api/users"));
+        assertSame(prefix, router.route("/api/other"));
+        assertSame(regex, router.route("/img/logo.png"));
+        assertNull(router.route("/img/logo.gif"));
+    }
+
+    @Test
+    public void testReplaceRoute() {
+        Router router = new Router();
+        RequestHandler first = new CatchAllHandler();
+        RequestHandler second = new CatchAllHandler();
+        router.addRoute(".*", first);
+        router.addRoute(".*", second);
+
+        assertSame(second, router.route("/anything"));
+        assertEquals(1, router.getRoutes().size());
+    }
+
+    @Test
+    public void testRemoveAndReplaceRoute() {
+        Router router = new Router();
+        RequestHandler first = new CatchAllHandler();
+        RequestHandler second = new CatchAllHandler();
+        router.addRoute("^/api/.*", first);
+
+        assertFalse(router.replaceRoute("^/other/.*", second));
+        assertTrue(router.replaceRoute("^/api/.*", second));
+        assertSame(second, router.route("/api/users"));
+
+        assertTrue(router.removeRoute("^/api/.*"));
+        assertFalse(router.removeRoute("^/api/.*"));
+        assertNull(router.route("/api/users"));
+    }
+
+    @Test
+    public void testSwapWhileRouting() throws InterruptedException {
+        final Router router = new Router();
+        final HashMap<String, RequestHandler> even = new HashMap<>();
+        final HashMap<String, RequestHandler> odd = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            (i % 2 == 0 ? even : odd).put("^/page/" + i + "$", new CatchAllHandler());
+        }
+        even.put(".*", new CatchAllHandler());
+        odd.put(".*", new CatchAllHandler());
+        router.setRoutes(even);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                //Both sets of routes contain a catch all route, so there always has to be a handler
+                if (router.route("/page/" + misses.get() % 100) == null) misses.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 200; i++) {
+            router.setRoutes(i % 2 == 0 ? odd : even);
+            router.addRoute("^/extra/" + i + "$", new CatchAllHandler());
+            router.removeRoute("^/extra/" + i + "$");
+        }
+        running.set(false);
+        reader.join();
+
+        assertEquals(0, misses.get());
+    }
+
+    @Test
+    public void testSameResultAsRegex() {
+        Router router = new Router();
+        for (String pattern : PATTERNS) {
+            router.addRoute(pattern, new NamedHandler(pattern));
+        }
+
+        for (String file : FILES) {
+            RequestHandler handler = router.route(file);
+            String expected = bestPatternByRegex(file);
+            assertEquals("Routing " + file, expected, handler == null ? null : ((NamedHandler) handler).pattern);
+        }
+    }
+
+    private static String bestPatternByRegex(String file) {
+        String best = null;
+        int bestMatch = -1;
+        for (String pattern : PATTERNS) {
+            Matcher m = Pattern.compile(pattern).matcher(file);
+            if (m.find()) {
+                int match = m.group(0).length();
+                if (match > bestMatch || (match == bestMatch && pattern.length() > best.length())) {
+                    best = pattern;
+                    bestMatch = match;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static class NamedHandler extends CatchAllHandler {
+        final String pattern;
+
+        NamedHandler(String pattern) {
+            this.pattern = pattern;
+        }
+    }
+}
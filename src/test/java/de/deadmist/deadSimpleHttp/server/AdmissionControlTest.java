@@ -0,0 +1,80 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void testConnectionLimit() {
+        ServerSettings settings = new ServerSettings();
+        settings.setMaxConnections(2);
+        AdmissionControl admission = new AdmissionControl(settings, null);
+
+        assertTrue(admission.openConnection());
+        assertTrue(admission.openConnection());
+        assertFalse(admission.openConnection());
+        assertEquals(1, admission.getRejectedConnectionCount());
+
+        admission.closeConnection();
+        assertTrue(admission.openConnection());
+        assertEquals(2, admission.getConnectionCount());
+    }
+
+    @Test
+    public void testQueueAndPriorities() {
+        ServerSettings settings = new ServerSettings();
+        settings.setMaxInFlightRequests(2);
+        settings.setMaxQueuedRequests(2);
+        AdmissionControl admission = new AdmissionControl(settings, null);
+        final List<String> events = new ArrayList<>();
+
+        admission.admit(AdmissionControl.Priority.LOW, () -> events.add("low1"), () -> events.add("shed low1"));
+        admission.admit(AdmissionControl.Priority.LOW, () -> events.add("low2"), () -> events.add("shed low2"));
+        admission.admit(AdmissionControl.Priority.NORMAL, () -> events.add("normal1"), () -> events.add("shed normal1"));
+        admission.admit(AdmissionControl.Priority.NORMAL, () -> events.add("normal2"), () -> events.add("shed normal2"));
+        admission.admit(AdmissionControl.Priority.NORMAL, () -> events.add("normal3"), () -> events.add("shed normal3"));
+        admission.admit(AdmissionControl.Priority.HIGH, () -> events.add("high"), () -> events.add("shed high"));
+
+        //Low priority only gets half of the slots, high priority is never queued
+        assertEquals("[low1, normal1, shed normal3, high]", events.toString());
+        assertEquals(3, admission.getInFlightCount());
+        assertEquals(2, admission.getQueuedCount());
+        assertEquals(1, admission.getRejectedRequestCount());
+
+        events.clear();
+        admission.release();
+        admission.release();
+        assertEquals("[normal2]", events.toString());
+
+        events.clear();
+        admission.release();
+        admission.release();
+        assertEquals("[low2]", events.toString());
+        assertEquals(0, admission.getQueuedCount());
+    }
+
+    @Test
+    public void testQueueTime() {
+        ServerSettings settings = new ServerSettings();
+        settings.setMaxInFlightRequests(1);
+        settings.setMaxQueueTime(50);
+        AdmissionControl admission = new AdmissionControl(settings, null);
+
+        assertTrue(admission.acquire(AdmissionControl.Priority.NORMAL));
+        long start = System.nanoTime();
+        assertFalse(admission.acquire(AdmissionControl.Priority.NORMAL));
+        assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+        assertEquals(1, admission.getExpiredRequestCount());
+        assertEquals(0, admission.getQueuedCount());
+
+        admission.release();
+        assertTrue(admission.acquire(AdmissionControl.Priority.NORMAL));
+    }
+}
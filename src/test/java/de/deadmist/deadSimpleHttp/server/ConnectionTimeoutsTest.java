@@ -0,0 +1,95 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deadSimpleHttp.util.TimerWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionTimeoutsTest {
+
+    private TimerWheel wheel;
+    private ServerSettings settings;
+    private ConnectionTimeouts timeouts;
+
+    @Before
+    public void start() {
+        wheel = new TimerWheel(5, 64);
+        wheel.start("test-timer");
+        settings = new ServerSettings();
+        settings.setHeaderTimeout(100);
+        settings.setBodyTimeout(100);
+        settings.setMinBodyRate(0);
+        timeouts = new ConnectionTimeouts(settings, wheel);
+    }
+
+    @After
+    public void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testHeaderTimeout() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        ConnectionTimeouts.Watch watch = timeouts.watch(closed::countDown);
+
+        //Receiving data doesn't extend the time for the headers
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(10);
+            watch.readingHeaders();
+            watch.transferred(1);
+        }
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertEquals(1, timeouts.getHeaderTimeouts());
+    }
+
+    @Test
+    public void testProgressAndProcessing() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        ConnectionTimeouts.Watch watch = timeouts.watch(closed::countDown);
+
+        //A body that keeps arriving is not closed
+        watch.readingBody();
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(30);
+            watch.transferred(100);
+        }
+        //Neither is a slow handler
+        watch.processing();
+        assertFalse(closed.await(300, TimeUnit.MILLISECONDS));
+
+        watch.readingBody();
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertEquals(1, timeouts.getBodyTimeouts());
+        assertEquals(0, timeouts.getHeaderTimeouts());
+    }
+
+    @Test
+    public void testCloseIdle() {
+        final int[] closed = new int[2];
+        ConnectionTimeouts.Watch busy = timeouts.watch(() -> closed[0]++);
+        ConnectionTimeouts.Watch waiting = timeouts.watch(() -> closed[1]++);
+
+        //Only a connection waiting for its next request gives up its worker
+        busy.processing();
+        assertFalse(timeouts.closeIdle());
+        waiting.awaitRequest(false);
+        assertTrue(timeouts.closeIdle());
+        assertFalse(timeouts.closeIdle());
+        assertEquals(0, closed[0]);
+        assertEquals(1, closed[1]);
+
+        //A connection that becomes idle while workers are needed is closed right away
+        settings.setKeepAliveTimeout(60000);
+        timeouts.setWorkersNeeded(() -> true);
+        busy.awaitRequest(false);
+        assertEquals(1, closed[0]);
+        assertEquals(2, timeouts.getIdleTimeouts());
+    }
+}
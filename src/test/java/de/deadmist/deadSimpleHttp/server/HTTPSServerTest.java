@@ -0,0 +1,86 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HTTPSServerTest {
+
+    //Start of a TLS record holding a ClientHello
+    private static final byte[] CLIENT_HELLO = {0x16, 0x03, 0x01, 0x02, 0x00, 0x01, 0x00, 0x01, (byte) 0xfc, 0x03, 0x03};
+
+    static HTTPSServer s;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        Logger.setErrorEnabled(true);
+        Logger.setLogLevel("INFO");
+        s = new HTTPSServer(9996, 20, new HashMap<>(), TestKeyStore.path(), TestKeyStore.PASSWORD);
+        s.addHandler(".*", new FileHandler("www"));
+        s.start();
+    }
+
+    @Test
+    public void testReadingFile() throws Exception {
+        HttpsURLConnection con = (HttpsURLConnection) new URL("https://localhost:9996/index.html").openConnection();
+        con.setSSLSocketFactory(TestKeyStore.clientContext().getSocketFactory());
+        con.setReadTimeout(5000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
+
+        assertEquals("YAY!!!", reader.readLine());
+    }
+
+    @Test
+    public void testSlowHandshake() throws IOException, InterruptedException {
+        int previous = s.getTLSConfig().getHandshakeTimeout();
+        long timedOut = s.getConnectionTimeouts().getHandshakeTimeouts();
+        s.getTLSConfig().setHandshakeTimeout(1000);
+        try (Socket socket = new Socket("localhost", 9996)) {
+            //Every byte arrives well within the timeout of a single read, the handshake as a whole takes too long
+            socket.setSoTimeout(200);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            long start = System.currentTimeMillis();
+            boolean closed = false;
+            for (int i = 0; !closed && System.currentTimeMillis() - start < 5000; i = (i + 1) % CLIENT_HELLO.length) {
+                try {
+                    out.write(CLIENT_HELLO[i]);
+                    out.flush();
+                    closed = in.read() == -1;
+                } catch (SocketTimeoutException e) {
+                    //Still open
+                } catch (IOException e) {
+                    closed = true;
+                }
+            }
+
+            assertTrue("Connection was not closed", closed);
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        } finally {
+            s.getTLSConfig().setHandshakeTimeout(previous);
+        }
+        assertEquals(timedOut + 1, s.getConnectionTimeouts().getHandshakeTimeouts());
+    }
+
+    @AfterClass
+    public static void stopServer() throws InterruptedException {
+        s.interrupt();
+        s.join();
+    }
+}
@@ -0,0 +1,112 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NIOServerTLSTest {
+
+    private static NIOServer s;
+    private static TLSConfig tls;
+    //Shared by all requests, connections are only reused for the same factory
+    private static SSLSocketFactory factory;
+    private static Path dir;
+    private static byte[] download;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Logger.setErrorEnabled(true);
+        Logger.setLogLevel("INFO");
+
+        dir = Files.createTempDirectory("nioServerTLSTest");
+        Files.write(dir.resolve("index.html"), "YAY!!!".getBytes(StandardCharsets.US_ASCII));
+        download = new byte[1024 * 1024];
+        for (int i = 0; i < download.length; i++) download[i] = (byte) (i * 31 + i / 251);
+        Files.write(dir.resolve("download.bin"), download);
+
+        tls = TestKeyStore.serverConfig();
+        s = new NIOServer(9997, 20, new HashMap<>(), tls);
+        s.addHandler(".*", new FileHandler(dir.toString()));
+        s.start();
+
+        factory = TestKeyStore.clientContext().getSocketFactory();
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        HttpsURLConnection con = open("/index.html");
+
+        assertEquals(200, con.getResponseCode());
+        assertEquals("YAY!!!", new String(readAll(con), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        HttpsURLConnection first = open("/index.html");
+        assertEquals("YAY!!!", new String(readAll(first), StandardCharsets.US_ASCII));
+        long handshakes = tls.getHandshakeCount();
+
+        //The second request reuses the connection of the first, without another handshake
+        HttpsURLConnection second = open("/index.html");
+        assertEquals("YAY!!!", new String(readAll(second), StandardCharsets.US_ASCII));
+        assertEquals("keep-alive", second.getHeaderField("Connection"));
+        assertEquals(handshakes, tls.getHandshakeCount());
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        HttpsURLConnection con = open("/download.bin");
+
+        assertEquals(200, con.getResponseCode());
+        assertEquals(String.valueOf(download.length), con.getHeaderField("Content-Length"));
+        assertArrayEquals(download, readAll(con));
+    }
+
+    private static HttpsURLConnection open(String file) throws IOException {
+        HttpsURLConnection con = (HttpsURLConnection) new URL("https://localhost:9997" + file).openConnection();
+        con.setSSLSocketFactory(factory);
+        con.setConnectTimeout(5000);
+        con.setReadTimeout(5000);
+        return con;
+    }
+
+    /**
+     * Reads the body to the end, which makes the connection available for the next request
+     */
+    private static byte[] readAll(HttpsURLConnection con) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = con.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException, InterruptedException {
+        s.interrupt();
+        s.join();
+        Files.delete(dir.resolve("index.html"));
+        Files.delete(dir.resolve("download.bin"));
+        Files.delete(dir);
+    }
+}
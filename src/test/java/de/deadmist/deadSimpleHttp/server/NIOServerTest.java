@@ -0,0 +1,330 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.AsyncRequestHandler;
+import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+import de.deadmist.deadSimpleHttp.structures.Response;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class NIOServerTest {
+
+    private static final byte[] GET_INDEX = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static NIOServer s;
+    static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        Logger.setErrorEnabled(true);
+        Logger.setLogLevel("INFO");
+        s = new NIOServer(9998, 20, new HashMap<>());
+
+        s.addHandler(".*", new FileHandler("www"));
+        s.addHandler("^/stream$", request -> {
+            Response response = new Response();
+            response.setStatus("200 OK");
+            response.setHttpVersion(1.1f);
+            response.setBody(out -> {
+                for (int i = 0; i < 10000; i++) {
+                    out.write("0123456789".getBytes());
+                }
+            });
+            return response;
+        });
+
+        s.addHandler("^/async$", (AsyncRequestHandler) request -> {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            scheduler.schedule(() -> future.complete(new Response("later")), 100, TimeUnit.MILLISECONDS);
+            return future;
+        });
+        s.addHandler("^/async-fail$", (AsyncRequestHandler) request -> {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            scheduler.schedule(() -> future.completeExceptionally(new IllegalStateException("downstream failed")),
+                    50, TimeUnit.MILLISECONDS);
+            return future;
+        });
+
+        s.addHandler("^/never$", (AsyncRequestHandler) request -> new CompletableFuture<>());
+
+        s.addHandler("^/length$", request -> {
+            long length = 0;
+            try (InputStream in = request.getBodyStream()) {
+                while (in.read() != -1) length++;
+            } catch (IOException e) {
+                return null;
+            }
+            return new Response(String.valueOf(length));
+        });
+        s.addHandler("^/null$", request -> null);
+        s.addHandler("^/broken$", request -> {
+            Response response = new Response();
+            response.setStatus("200 OK");
+            response.setHttpVersion(1.1f);
+            response.setBody(out -> {
+                out.write("partial".getBytes());
+                throw new IllegalStateException("writer failed");
+            });
+            return response;
+        });
+
+        s.start();
+    }
+
+    @Test
+    public void testReadingFile() throws IOException {
+        URLConnection con = new URL("http://localhost:9998/index.html").openConnection();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
+
+        String in = reader.readLine();
+
+        assertEquals(in, "YAY!!!");
+    }
+
+    @Test
+    public void testIndexing() throws IOException {
+        URLConnection con = new URL("http://localhost:9998/").openConnection();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
+
+        String in = reader.readLine();
+
+        assertEquals(in, "YAY!!!");
+    }
+
+    @Test
+    public void testStreamedResponse() throws IOException {
+        URLConnection con = new URL("http://localhost:9998/stream").openConnection();
+        InputStream in = con.getInputStream();
+
+        int total = 0;
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+
+        assertEquals("chunked", con.getHeaderField("Transfer-Encoding"));
+        assertEquals(100000, total);
+    }
+
+    @Test
+    public void testAsyncHandler() throws IOException {
+        URLConnection con = new URL("http://localhost:9998/async").openConnection();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
+
+        assertEquals("later", reader.readLine());
+    }
+
+    @Test
+    public void testFailedAsyncHandler() throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:9998/async-fail").openConnection();
+
+        assertEquals(500, con.getResponseCode());
+    }
+
+    @Test
+    public void testHandlerTimeout() throws IOException, InterruptedException {
+        int previous = s.getSettings().getHandlerTimeout();
+        long timedOut = s.getConnectionTimeouts().getHandlerTimeouts();
+        s.getSettings().setHandlerTimeout(200);
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /never HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse response = RawResponse.read(in);
+            assertEquals(504, response.status);
+            assertEquals("close", response.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        } finally {
+            s.getSettings().setHandlerTimeout(previous);
+        }
+        assertEquals(timedOut + 1, s.getConnectionTimeouts().getHandlerTimeouts());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (s.getAdmissionControl().getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, s.getAdmissionControl().getInFlightCount());
+    }
+
+    @Test
+    public void testNullResponse() throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:9998/null").openConnection();
+        con.setReadTimeout(5000);
+
+        assertEquals(500, con.getResponseCode());
+    }
+
+    @Test
+    public void testFailingBodyWriter() throws IOException, InterruptedException {
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /broken HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            //The connection is closed instead of waiting for a response that never comes
+            InputStream in = socket.getInputStream();
+            while (in.read() != -1) ;
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (s.getAdmissionControl().getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, s.getAdmissionControl().getInFlightCount());
+    }
+
+    @Test
+    public void testPersistentConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            out.write(GET_INDEX);
+            RawResponse first = RawResponse.read(in);
+            assertEquals(200, first.status);
+            assertEquals("keep-alive", first.getHeader("Connection"));
+            assertEquals("YAY!!!", first.body);
+
+            //The second request reuses the connection
+            out.write(GET_INDEX);
+            RawResponse second = RawResponse.read(in);
+            assertEquals(200, second.status);
+            assertEquals("YAY!!!", second.body);
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            //All three requests arrive before the first one is answered
+            socket.getOutputStream().write(("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /missing.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse stream = RawResponse.read(in);
+            assertEquals(200, stream.status);
+            assertEquals(100000, stream.body.length());
+            RawResponse index = RawResponse.read(in);
+            assertEquals(200, index.status);
+            assertEquals("YAY!!!", index.body);
+            RawResponse missing = RawResponse.read(in);
+            assertEquals(404, missing.status);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testSpilledBody() throws IOException {
+        int previous = s.getSettings().getBodySpillThreshold();
+        s.getSettings().setBodySpillThreshold(1024);
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            //The body goes to a temporary file, the request after it must not get lost
+            byte[] body = new byte[1000000];
+            out.write("POST /length HTTP/1.1\r\nHost: localhost\r\nContent-Length: 1000000\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body, 0, 500000);
+            out.flush();
+            out.write(body, 500000, 500000);
+            out.write(GET_INDEX);
+
+            assertEquals("1000000", RawResponse.read(in).body);
+            assertEquals("YAY!!!", RawResponse.read(in).body);
+        } finally {
+            s.getSettings().setBodySpillThreshold(previous);
+        }
+    }
+
+    @Test
+    public void testConnectionClose() throws IOException {
+        assertClosedAfter("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void testHttp10Connection() throws IOException {
+        assertClosedAfter("GET /index.html HTTP/1.0\r\n\r\n");
+
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(
+                    "GET /index.html HTTP/1.0\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse response = RawResponse.read(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("keep-alive", response.getHeader("Connection"));
+        }
+    }
+
+    @Test
+    public void testMaxKeepAliveRequests() throws IOException {
+        int previous = s.getSettings().getMaxKeepAliveRequests();
+        s.getSettings().setMaxKeepAliveRequests(2);
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            out.write(GET_INDEX);
+            RawResponse first = RawResponse.read(in);
+            assertEquals("keep-alive", first.getHeader("Connection"));
+            assertEquals("timeout=" + s.getSettings().getKeepAliveTimeout() / 1000 + ", max=1", first.getHeader("Keep-Alive"));
+
+            out.write(GET_INDEX);
+            RawResponse second = RawResponse.read(in);
+            assertEquals(200, second.status);
+            assertEquals("close", second.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        } finally {
+            s.getSettings().setMaxKeepAliveRequests(previous);
+        }
+    }
+
+    /**
+     * Sends a request and checks that the server answers it and closes the connection
+     */
+    private static void assertClosedAfter(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", 9998)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse response = RawResponse.read(in);
+            assertEquals(200, response.status);
+            assertEquals("YAY!!!", response.body);
+            assertEquals("close", response.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @AfterClass
+    public static void stopServer() throws InterruptedException {
+        scheduler.shutdown();
+        s.interrupt();
+        s.join();
+    }
+}
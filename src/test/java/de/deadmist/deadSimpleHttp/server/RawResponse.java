@@ -0,0 +1,94 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A response read straight from a socket, for tests that need to see the connection itself,
+ * e.g. persistent connections and pipelining which URLConnection hides
+ */
+class RawResponse {
+    final int status;
+    //Header names in lower case
+    final HashMap<String, String> headers = new HashMap<>();
+    final String body;
+
+    private RawResponse(int status, String body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    /**
+     * Returns a header, the name is not case sensitive
+     *
+     * @param name Name of the header
+     * @return Value of the header or null if it was not sent
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the next response from the stream, its body is delimited by Content-Length or chunked
+     *
+     * @param in Stream of the socket, must not be read ahead of the response
+     * @return The response
+     * @throws IOException If the stream ends before the response is complete
+     */
+    static RawResponse read(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        String[] parts = statusLine.split(" ", 3);
+        int status = Integer.parseInt(parts[1]);
+
+        HashMap<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (status != 204 && status != 304) {
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                int size;
+                while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                    readFully(in, body, size);
+                    readLine(in);
+                }
+                //Trailer section, always empty
+                readLine(in);
+            } else if (headers.containsKey("content-length")) {
+                readFully(in, body, Integer.parseInt(headers.get("content-length")));
+            }
+        }
+
+        RawResponse response = new RawResponse(status, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        response.headers.putAll(headers);
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException("Connection closed in the middle of a response");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, ByteArrayOutputStream out, int count) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (count > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, count));
+            if (read == -1) throw new EOFException("Connection closed in the middle of a body");
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+}
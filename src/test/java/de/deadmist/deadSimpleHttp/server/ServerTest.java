@@ -1,26 +1,42 @@
 package de.deadmist.deadSimpleHttp.server;
 
 import de.deadmist.deLog.Logger;
+import de.deadmist.deadSimpleHttp.handlers.AsyncRequestHandler;
 import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+import de.deadmist.deadSimpleHttp.structures.Response;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by Deadmist on 27/12/15.
  */
 public class ServerTest {
 
+    private static final byte[] GET_INDEX = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
     static HTTPServer s;
+    //Response of the /held handler and whether it has been requested, replaced by the test using them
+    static volatile CompletableFuture<Response> held;
+    static volatile CountDownLatch heldRequested;
 
     @BeforeClass
     public static void startServer() throws IOException {
@@ -29,6 +45,23 @@ public class ServerTest {
         s = new HTTPServer(9999, 20, new HashMap<>());
 
         s.addHandler(".*", new FileHandler("www"));
+        s.addHandler("^/stream$", request -> {
+            Response response = new Response();
+            response.setStatus("200 OK");
+            response.setHttpVersion(1.1f);
+            response.setBody(out -> {
+                for (int i = 0; i < 10000; i++) {
+                    out.write("0123456789".getBytes());
+                }
+            });
+            return response;
+        });
+
+        s.addHandler("^/held$", (AsyncRequestHandler) request -> {
+            heldRequested.countDown();
+            return held;
+        });
+        s.addHandler("^/never$", (AsyncRequestHandler) request -> new CompletableFuture<>());
 
         s.start();
     }
@@ -53,6 +86,169 @@ public class ServerTest {
         assertEquals(in, "YAY!!!");
     }
 
+    @Test
+    public void testStreamedResponse() throws IOException {
+        URLConnection con = new URL("http://localhost:9999/stream").openConnection();
+        InputStream in = con.getInputStream();
+
+        int total = 0;
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+
+        assertEquals("chunked", con.getHeaderField("Transfer-Encoding"));
+        assertEquals(100000, total);
+    }
+
+    @Test
+    public void testPersistentConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            out.write(GET_INDEX);
+            RawResponse first = RawResponse.read(in);
+            assertEquals(200, first.status);
+            assertEquals("keep-alive", first.getHeader("Connection"));
+            assertEquals("YAY!!!", first.body);
+
+            //The second request reuses the connection
+            out.write(GET_INDEX);
+            RawResponse second = RawResponse.read(in);
+            assertEquals(200, second.status);
+            assertEquals("YAY!!!", second.body);
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            //All three requests arrive before the first one is answered
+            socket.getOutputStream().write(("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /missing.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse stream = RawResponse.read(in);
+            assertEquals(200, stream.status);
+            assertEquals(100000, stream.body.length());
+            RawResponse index = RawResponse.read(in);
+            assertEquals(200, index.status);
+            assertEquals("YAY!!!", index.body);
+            RawResponse missing = RawResponse.read(in);
+            assertEquals(404, missing.status);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testConnectionClose() throws IOException {
+        assertClosedAfter("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void testHttp10Connection() throws IOException {
+        assertClosedAfter("GET /index.html HTTP/1.0\r\n\r\n");
+
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(
+                    "GET /index.html HTTP/1.0\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            RawResponse response = RawResponse.read(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("keep-alive", response.getHeader("Connection"));
+        }
+    }
+
+    @Test
+    public void testMaxKeepAliveRequests() throws IOException {
+        int previous = s.getSettings().getMaxKeepAliveRequests();
+        s.getSettings().setMaxKeepAliveRequests(2);
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            out.write(GET_INDEX);
+            RawResponse first = RawResponse.read(in);
+            assertEquals("keep-alive", first.getHeader("Connection"));
+            assertEquals("timeout=" + s.getSettings().getKeepAliveTimeout() / 1000 + ", max=1", first.getHeader("Keep-Alive"));
+
+            out.write(GET_INDEX);
+            RawResponse second = RawResponse.read(in);
+            assertEquals(200, second.status);
+            assertEquals("close", second.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        } finally {
+            s.getSettings().setMaxKeepAliveRequests(previous);
+        }
+    }
+
+    @Test
+    public void testAsyncHandlerReleasesWorker() throws IOException, InterruptedException {
+        held = new CompletableFuture<>();
+        heldRequested = new CountDownLatch(1);
+        try (Socket waiting = new Socket("localhost", 9999)) {
+            waiting.setSoTimeout(5000);
+            waiting.getOutputStream().write("GET /held HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            assertTrue(heldRequested.await(5, TimeUnit.SECONDS));
+
+            //Served while the first connection waits for its handler, even with a single worker
+            try (Socket other = new Socket("localhost", 9999)) {
+                other.setSoTimeout(5000);
+                other.getOutputStream().write(GET_INDEX);
+                assertEquals("YAY!!!", RawResponse.read(new BufferedInputStream(other.getInputStream())).body);
+            }
+
+            held.complete(new Response("later"));
+            InputStream in = new BufferedInputStream(waiting.getInputStream());
+            assertEquals("later", RawResponse.read(in).body);
+
+            //The connection continues with the next request
+            waiting.getOutputStream().write(GET_INDEX);
+            assertEquals("YAY!!!", RawResponse.read(in).body);
+        }
+    }
+
+    @Test
+    public void testHandlerTimeout() throws IOException {
+        int previous = s.getSettings().getHandlerTimeout();
+        s.getSettings().setHandlerTimeout(200);
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /never HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse response = RawResponse.read(in);
+            assertEquals(504, response.status);
+            assertEquals("close", response.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        } finally {
+            s.getSettings().setHandlerTimeout(previous);
+        }
+    }
+
+    /**
+     * Sends a request and checks that the server answers it and closes the connection
+     */
+    private static void assertClosedAfter(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", 9999)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            RawResponse response = RawResponse.read(in);
+            assertEquals(200, response.status);
+            assertEquals("YAY!!!", response.body);
+            assertEquals("close", response.getHeader("Connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
     @AfterClass
     public static void stopServer() throws InterruptedException {
         s.interrupt();
@@ -0,0 +1,538 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs a {@link TLSChannel} against a client whose engine is driven by the test, so the test decides how the records
+ * of the client are split up or sent together
+ */
+public class TLSChannelTest {
+
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long TIMEOUT = 5000;
+
+    private static TLSConfig config;
+    private static SSLContext clientContext;
+
+    private ServerSocketChannel listener;
+    private Client client;
+    private TLSChannel tls;
+
+    @BeforeClass
+    public static void createContexts() throws Exception {
+        config = TestKeyStore.serverConfig();
+        clientContext = TestKeyStore.clientContext();
+    }
+
+    @Before
+    public void listen() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void close() throws IOException {
+        if (tls != null) tls.close();
+        if (client != null) client.channel.close();
+        listener.close();
+    }
+
+    @Test
+    public void testHandshake() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        client.send();
+        finishHandshake();
+
+        assertFalse(tls.hasBufferedInput());
+        assertEquals(client.engine.getSession().getProtocol(), tls.getEngine().getSession().getProtocol());
+        client.wrap(ByteBuffer.wrap(REQUEST));
+        client.send();
+        assertArrayEquals(REQUEST, read(REQUEST.length));
+
+        byte[] response = pattern(1000);
+        write(response);
+        assertArrayEquals(response, client.receive(response.length));
+    }
+
+    @Test
+    public void testRequestCoalescedWithFinished() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        //The request arrives in the same packet as the last message of the handshake
+        client.wrap(ByteBuffer.wrap(REQUEST));
+        client.send();
+        finishHandshake();
+
+        //The socket won't become readable again, the request has to be found in the buffers
+        assertTrue(tls.hasBufferedInput());
+        ByteBuffer buffer = ByteBuffer.allocate(REQUEST.length);
+        assertEquals(REQUEST.length, tls.read(buffer));
+        assertArrayEquals(REQUEST, buffer.array());
+        assertFalse(tls.hasBufferedInput());
+    }
+
+    @Test
+    public void testPartialRecord() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        client.send();
+        finishHandshake();
+
+        client.wrap(ByteBuffer.wrap(REQUEST));
+        client.send(10);
+        ByteBuffer buffer = ByteBuffer.allocate(REQUEST.length);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, tls.read(buffer));
+            Thread.sleep(5);
+        }
+        //Part of a record can't be decrypted, reading again doesn't help until more arrives
+        assertFalse(tls.hasBufferedInput());
+
+        client.send();
+        assertArrayEquals(REQUEST, read(REQUEST.length));
+    }
+
+    @Test
+    public void testBufferGrowth() throws Exception {
+        //The buffers start at the smallest size of the pool, far too small for full records
+        connect(new SmallBuffersEngine(config.createEngine()));
+        handshake();
+        client.send();
+        finishHandshake();
+
+        byte[] upload = pattern(16 * 1024);
+        client.wrap(ByteBuffer.wrap(upload));
+        client.send();
+        assertArrayEquals(upload, read(upload.length));
+
+        byte[] download = pattern(64 * 1024);
+        write(download);
+        assertArrayEquals(download, client.receive(download.length));
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        client.send();
+        finishHandshake();
+
+        byte[] content = pattern(300 * 1024);
+        Path file = Files.createTempFile("tlsChannelTest", ".bin");
+        try {
+            Files.write(file, content);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long deadline = System.currentTimeMillis() + TIMEOUT;
+                long position = 0;
+                while (position < content.length || !tls.flush()) {
+                    if (System.currentTimeMillis() > deadline) fail("File was not sent in time");
+                    position += channel.transferTo(position, content.length - position, tls);
+                    client.receive();
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertArrayEquals(content, client.receive(content.length));
+    }
+
+    @Test
+    public void testServerCloseNotify() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        client.send();
+        finishHandshake();
+
+        tls.close();
+        assertFalse(tls.isOpen());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!client.engine.isInboundDone()) {
+            if (System.currentTimeMillis() > deadline) fail("No close_notify received");
+            if (client.receive() == -1 && !client.engine.isInboundDone()) fail("Closed without close_notify");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testClientCloseNotify() throws Exception {
+        connect(config.createEngine());
+        handshake();
+        client.send();
+        finishHandshake();
+
+        client.engine.closeOutbound();
+        client.wrap(ByteBuffer.allocate(0));
+        client.send();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        while (tls.read(buffer) != -1) {
+            if (System.currentTimeMillis() > deadline) fail("Connection was not closed");
+            Thread.sleep(1);
+        }
+        assertTrue(tls.getEngine().isInboundDone());
+    }
+
+    private void connect(SSLEngine engine) throws IOException {
+        client = new Client(SocketChannel.open(listener.getLocalAddress()));
+        SocketChannel accepted = listener.accept();
+        accepted.configureBlocking(false);
+        tls = new TLSChannel(accepted, engine, Runnable::run);
+    }
+
+    /**
+     * Runs the handshake until the client is done, its last messages are not sent yet
+     */
+    private void handshake() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            tls.handshake(() -> {
+            });
+            if (client.handshake()) return;
+            if (System.currentTimeMillis() > deadline) fail("Handshake did not finish in time");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Runs the handshake of the server until it is done
+     */
+    private void finishHandshake() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (tls.handshake(() -> {
+        }) != TLSChannel.HANDSHAKE_DONE) {
+            if (System.currentTimeMillis() > deadline) fail("Handshake did not finish in time");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Reads from the server side until count bytes arrived
+     */
+    private byte[] read(int count) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (buffer.hasRemaining()) {
+            if (tls.read(buffer) == -1) throw new EOFException("Connection closed");
+            if (System.currentTimeMillis() > deadline) fail("Data did not arrive in time");
+            if (!tls.hasBufferedInput()) Thread.sleep(1);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Writes from the server side while the client receives
+     */
+    private void write(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (buffer.hasRemaining() || !tls.flush()) {
+            if (System.currentTimeMillis() > deadline) fail("Data was not sent in time");
+            tls.write(buffer);
+            client.receive();
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (i * 31 + i / 251);
+        return data;
+    }
+
+    /**
+     * Client with an engine driven over a non-blocking socket, encrypted data is only sent when the test says so
+     */
+    private static class Client {
+        final SocketChannel channel;
+        final SSLEngine engine;
+        //Received encrypted data, in write mode
+        private final ByteBuffer netIn;
+        //Decrypted data, in write mode
+        private final ByteBuffer appIn = ByteBuffer.allocate(1024 * 1024);
+        //Encrypted data that has not been sent
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        Client(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            engine = clientContext.createSSLEngine("localhost", ((InetSocketAddress) channel.getRemoteAddress()).getPort());
+            engine.setUseClientMode(true);
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            engine.beginHandshake();
+        }
+
+        /**
+         * Continues the handshake, messages are only sent while waiting for the server
+         *
+         * @return true once the handshake is done
+         */
+        boolean handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        wrap(ByteBuffer.allocate(0));
+                        break;
+                    case NEED_UNWRAP:
+                        send();
+                        if (!unwrap() && channel.read(netIn) <= 0) return false;
+                        break;
+                    default:
+                        return true;
+                }
+            }
+        }
+
+        /**
+         * Encrypts data into records that wait to be sent
+         */
+        void wrap(ByteBuffer src) throws SSLException {
+            ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            do {
+                out.clear();
+                engine.wrap(src, out);
+                pending.write(out.array(), 0, out.position());
+            } while (src.hasRemaining());
+        }
+
+        /**
+         * Sends the first count bytes of the records waiting to be sent
+         */
+        void send(int count) throws IOException {
+            byte[] data = pending.toByteArray();
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            pending.reset();
+            pending.write(data, count, data.length - count);
+        }
+
+        void send() throws IOException {
+            send(pending.size());
+        }
+
+        /**
+         * Reads what has arrived and decrypts all complete records
+         *
+         * @return Number of bytes read from the socket, -1 if it was closed
+         */
+        int receive() throws IOException {
+            int read = channel.read(netIn);
+            while (unwrap()) {
+                runTasks();
+            }
+            return read;
+        }
+
+        /**
+         * Receives until count bytes have been decrypted
+         *
+         * @return The decrypted bytes
+         */
+        byte[] receive(int count) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (appIn.position() < count) {
+                if (receive() == -1) throw new EOFException("Connection closed");
+                if (System.currentTimeMillis() > deadline) fail("Data did not arrive in time");
+                Thread.sleep(1);
+            }
+            return Arrays.copyOf(appIn.array(), appIn.position());
+        }
+
+        private boolean unwrap() throws SSLException {
+            netIn.flip();
+            try {
+                return engine.unwrap(netIn, appIn).bytesConsumed() > 0;
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Engine whose session asks for tiny buffers, so every buffer of the channel has to grow
+     */
+    private static class SmallBuffersEngine extends SSLEngine {
+        private final SSLEngine engine;
+        private final SSLSession session;
+
+        SmallBuffersEngine(final SSLEngine engine) {
+            this.engine = engine;
+            this.session = (SSLSession) Proxy.newProxyInstance(SSLSession.class.getClassLoader(),
+                    new Class<?>[]{SSLSession.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("getPacketBufferSize")
+                                || method.getName().equals("getApplicationBufferSize")) {
+                            return 1;
+                        }
+                        try {
+                            return method.invoke(engine.getSession(), args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return session;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            return engine.wrap(srcs, offset, length, dst);
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+            return engine.unwrap(src, dsts, offset, length);
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return engine.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            engine.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return engine.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            engine.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return engine.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return engine.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return engine.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            engine.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return engine.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return engine.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            engine.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            engine.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return engine.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            engine.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return engine.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            engine.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return engine.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            engine.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return engine.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            engine.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return engine.getEnableSessionCreation();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TLSConfigTest {
+
+    private static TLSConfig create() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        return new TLSConfig(context);
+    }
+
+    @Test
+    public void testCuratedDefaults() throws GeneralSecurityException {
+        TLSConfig tls = create();
+
+        assertTrue(tls.getCipherSuites().length > 0);
+        for (String suite : tls.getCipherSuites()) {
+            assertTrue(suite, suite.contains("_GCM_") || suite.contains("CHACHA20"));
+        }
+        for (String protocol : tls.getProtocols()) {
+            assertTrue(protocol, protocol.equals("TLSv1.3") || protocol.equals("TLSv1.2"));
+        }
+        assertFalse(Arrays.asList(tls.getProtocols()).contains("TLSv1"));
+    }
+
+    @Test
+    public void testSessionSettings() throws GeneralSecurityException {
+        TLSConfig tls = create();
+        tls.setSessionCacheSize(500);
+        tls.setSessionTimeout(600);
+
+        assertEquals(500, tls.getSessionCacheSize());
+        assertEquals(600, tls.getSessionTimeout());
+        assertEquals(600, tls.getContext().getServerSessionContext().getSessionTimeout());
+        assertEquals(0, tls.getResumptionRate(), 0);
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        for (String protocol : new String[]{"TLSv1.2", "TLSv1.3"}) {
+            TLSConfig tls = TestKeyStore.serverConfig();
+            HTTPSServer server = new HTTPSServer(9995, 20, new HashMap<>(), tls, null);
+            assertResumed(server, tls, 9995, protocol);
+
+            tls = TestKeyStore.serverConfig();
+            NIOServer nioServer = new NIOServer(9994, 20, new HashMap<>(), tls);
+            assertResumed(nioServer, tls, 9994, protocol);
+        }
+    }
+
+    /**
+     * Reconnects with the same client context, which offers the session of the first connection again
+     */
+    private static void assertResumed(AbstractServer server, TLSConfig tls, int port, String protocol) throws Exception {
+        server.addHandler(".*", new FileHandler("www"));
+        server.start();
+        try {
+            SSLContext client = TestKeyStore.clientContext();
+            for (int i = 0; i < 4; i++) {
+                try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port)) {
+                    socket.setSoTimeout(5000);
+                    socket.setEnabledProtocols(new String[]{protocol});
+                    //Reading the whole response also receives the session ticket of TLSv1.3
+                    socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                    readAll(socket.getInputStream());
+                    assertEquals(protocol, socket.getSession().getProtocol());
+                }
+            }
+        } finally {
+            server.interrupt();
+            server.join();
+        }
+        assertEquals(protocol, 4, tls.getHandshakeCount());
+        assertTrue(protocol + " sessions were not resumed", tls.getResumedCount() > 0);
+        assertTrue(tls.getResumptionRate() > 0);
+    }
+
+    private static void readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) ;
+    }
+}
@@ -0,0 +1,62 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * The keystore of the TLS tests, localhost.p12 holds a self-signed certificate for localhost and 127.0.0.1.
+ * Clients trust only that certificate
+ */
+class TestKeyStore {
+    static final String PASSWORD = "changeit";
+
+    /**
+     * Returns the path of the keystore
+     *
+     * @return Path of the keystore in the test resources
+     */
+    static String path() {
+        try {
+            return Paths.get(TestKeyStore.class.getResource("/localhost.p12").toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the configuration of a server with the certificate
+     *
+     * @return TLS configuration
+     * @throws IOException If the keystore can not be read
+     */
+    static TLSConfig serverConfig() throws IOException {
+        return new TLSConfig(path(), PASSWORD);
+    }
+
+    /**
+     * Creates the context of a client that trusts the certificate
+     *
+     * @return Initialized context
+     * @throws IOException              If the keystore can not be read
+     * @throws GeneralSecurityException If the context can not be created
+     */
+    static SSLContext clientContext() throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(path()))) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+}
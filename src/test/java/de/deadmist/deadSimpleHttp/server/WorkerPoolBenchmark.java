@@ -0,0 +1,146 @@
+package de.deadmist.deadSimpleHttp.server;
+
+import de.deadmist.deadSimpleHttp.handlers.provided.FileHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Compares the platform thread pool with the virtual thread mode when serving many slow clients.<br>
+ * Every client connects, waits before sending its request and then reads the whole response.
+ * The clients run on a single non-blocking thread, so all of them are connected at the same time and the number of
+ * client threads never limits the load.
+ * <p>
+ * Not a unit test, run it manually from the project root:
+ * <code>java WorkerPoolBenchmark [clients] [delayMillis]</code>
+ * </p>
+ */
+public class WorkerPoolBenchmark {
+
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int delay = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        run("platform", new WorkerPool(), 9990, clients, delay);
+
+        if (WorkerPool.isVirtualThreadSupported()) {
+            run("virtual", WorkerPool.newVirtualThreadPool(), 9991, clients, delay);
+        } else {
+            System.out.println("virtual: not supported by this JVM (" + System.getProperty("java.version") + ")");
+        }
+    }
+
+    private static void run(String name, WorkerPool pool, int port, int clients, int delay) throws Exception {
+        HTTPServer server = new HTTPServer(port, clients, new HashMap<>(), pool);
+        server.addHandler(".*", new FileHandler("www"));
+        server.start();
+
+        long start = System.nanoTime();
+        int failed = runClients(port, clients, delay);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println(String.format("%-8s %d clients, %d ms delay: %d ms total, %.1f req/s, %d failed, largest pool %d",
+                name, clients, delay, millis, clients * 1000.0 / millis, failed, pool.getLargestPoolSize()));
+
+        server.interrupt();
+        server.join();
+        pool.shutdown();
+    }
+
+    /**
+     * A slow client, waits before sending its request
+     */
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.wrap(REQUEST);
+        long sendAt;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Runs all clients on the calling thread until every one of them has read its response
+     *
+     * @return Number of clients that failed
+     */
+    private static int runClients(int port, int clients, int delay) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        //Connected clients waiting to send their request, in the order they are due
+        ArrayDeque<Client> waiting = new ArrayDeque<>();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int remaining = clients;
+        int failed = 0;
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                try {
+                    if (channel.connect(address)) {
+                        channel.register(selector, 0, client);
+                        client.sendAt = System.nanoTime() + delay * 1000000L;
+                        waiting.add(client);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    }
+                } catch (IOException e) {
+                    channel.close();
+                    failed++;
+                    remaining--;
+                }
+            }
+
+            while (remaining > 0) {
+                long now = System.nanoTime();
+                while (!waiting.isEmpty() && waiting.peek().sendAt - now <= 0) {
+                    waiting.poll().channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+                }
+                selector.select(waiting.isEmpty() ? 0 : Math.max(1, (waiting.peek().sendAt - now) / 1000000));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            client.channel.finishConnect();
+                            //Simulate a slow client that takes a while before sending its request
+                            key.interestOps(0);
+                            client.sendAt = System.nanoTime() + delay * 1000000L;
+                            waiting.add(client);
+                        } else if (key.isWritable()) {
+                            client.channel.write(client.request);
+                            if (!client.request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                        } else if (key.isReadable()) {
+                            buffer.clear();
+                            //Read until the server closes the connection
+                            if (client.channel.read(buffer) == -1) {
+                                client.channel.close();
+                                remaining--;
+                            }
+                        }
+                    } catch (IOException e) {
+                        client.channel.close();
+                        failed++;
+                        remaining--;
+                    }
+                }
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,155 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import de.deadmist.deadSimpleHttp.errors.RequestException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestParserTest {
+
+    private static ByteBuffer bytes(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testParseRequest() throws Exception {
+        Request request = new RequestParser().parse(bytes("get /docs/page.html?a=1:2 HTTP/1.1\r\n" +
+                "Host: localhost:8080\r\n" +
+                "X-Time:  12:30:00 \r\n" +
+                "\r\n"));
+
+        assertEquals("GET", request.getMethod());
+        assertEquals("/docs/page.html", request.getFile());
+        assertEquals("/docs/page.html?a=1:2", request.getUrl());
+        assertEquals("1.1", request.getHttpVersion());
+        assertEquals("localhost:8080", request.getHeader("host"));
+        assertEquals("12:30:00", request.getHeader("X-Time"));
+        assertNull(request.getBody());
+    }
+
+    @Test
+    public void testRepeatedHeaders() throws Exception {
+        Request request = new RequestParser().parse(bytes("GET / HTTP/1.1\r\n" +
+                "Accept: text/html\r\n" +
+                "accept: */*\r\n" +
+                "Cookie: a=1\r\n" +
+                "cookie: b=2\r\n" +
+                "\r\n"));
+
+        assertEquals("text/html, */*", request.getHeader("Accept"));
+        assertEquals("a=1; b=2", request.getHeader("Cookie"));
+        assertEquals(2, request.getHeaders().size());
+    }
+
+    @Test
+    public void testPartialReads() throws Exception {
+        byte[] data = ("POST /echo HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello").getBytes(StandardCharsets.ISO_8859_1);
+        RequestParser parser = new RequestParser();
+        for (int i = 0; i < data.length - 1; i++) {
+            assertNull(parser.parse(ByteBuffer.wrap(data, i, 1)));
+            assertTrue(parser.hasPartialRequest());
+        }
+        Request request = parser.parse(ByteBuffer.wrap(data, data.length - 1, 1));
+
+        assertEquals("hello", request.getBody());
+        assertFalse(parser.hasPartialRequest());
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        ByteBuffer buffer = bytes("GET /a HTTP/1.1\r\n\r\nPOST /b HTTP/1.0\r\nContent-Length: 2\r\n\r\nokGET /c HTTP/1.1\n\n");
+        RequestParser parser = new RequestParser();
+
+        assertEquals("/a", parser.parse(buffer).getFile());
+        Request second = parser.parse(buffer);
+        assertEquals("/b", second.getFile());
+        assertEquals("ok", second.getBody());
+        assertEquals("1.0", second.getHttpVersion());
+        assertEquals("/c", parser.parse(buffer).getFile());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testParseStream() throws Exception {
+        Request request = new Request(new ByteArrayInputStream(
+                "GET / HTTP/1.1\r\nAccept: */*\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+
+        assertEquals("index.html", request.getFile());
+        assertEquals("*/*", request.getHeaders().get("Accept"));
+    }
+
+    @Test
+    public void testSpillBodyToDisk() throws Exception {
+        RequestParser parser = new RequestParser(1024, 1024, 1024, 4, null);
+        assertNull(parser.parse(bytes("PUT /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\n\u00ff\u0000abc")));
+        Request request = parser.parse(bytes("defgh"));
+
+        RequestBody body = request.getRequestBody();
+        assertFalse(body.isInMemory());
+        assertEquals(10, request.getContentLength());
+        assertArrayEquals("\u00ff\u0000abcdefgh".getBytes(StandardCharsets.ISO_8859_1), body.getBytes());
+
+        ByteBuffer read = ByteBuffer.allocate(16);
+        try (ReadableByteChannel channel = request.getBodyChannel()) {
+            while (channel.read(read) != -1) ;
+        }
+        assertEquals(10, read.position());
+
+        Path file = body.getFile();
+        assertTrue(Files.exists(file));
+        request.closeBody();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testParseInMemory() throws Exception {
+        RequestParser parser = new RequestParser(1024, 1024, 1024, 4, null);
+        ByteBuffer buffer = bytes("PUT /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789GET / HTTP/1.1\r\n\r\n");
+
+        //The parser stops before the body, which has to be written to disk
+        assertNull(parser.parseInMemory(buffer));
+        assertTrue(parser.isSpillingBody());
+        assertEquals(28, buffer.remaining());
+
+        Request request = parser.parse(buffer);
+        assertEquals("0123456789", request.getBody());
+        assertFalse(request.getRequestBody().isInMemory());
+        request.closeBody();
+        assertEquals("/", parser.parseInMemory(buffer).getUrl());
+    }
+
+    @Test
+    public void testLimits() {
+        assertRejected(new RequestParser(16, 1024, 1024), "GET /a/very/long/path HTTP/1.1\r\n\r\n");
+        assertRejected(new RequestParser(1024, 16, 1024), "GET / HTTP/1.1\r\nX-Large: 0123456789\r\n\r\n");
+        assertRejected(new RequestParser(1024, 1024, 4), "POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        assertRejected(new RequestParser(), "BREW /pot HTTP/1.1\r\n\r\n");
+        assertRejected(new RequestParser(), "GET /\r\n\r\n");
+        assertRejected(new RequestParser(), "GET / HTTP/1.1\r\nNo colon\r\n\r\n");
+        assertRejected(new RequestParser(), "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+    }
+
+    private static void assertRejected(RequestParser parser, String request) {
+        try {
+            parser.parse(bytes(request));
+            fail("Request should have been rejected: " + request);
+        } catch (RequestException expected) {
+            //Expected
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
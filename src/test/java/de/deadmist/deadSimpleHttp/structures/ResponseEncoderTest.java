@@ -0,0 +1,49 @@
+package de.deadmist.deadSimpleHttp.structures;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseEncoderTest {
+
+    private static String decode(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    @Test
+    public void testEncodeHead() {
+        Response response = new Response("201 Created", "hello");
+        response.setHeader("X-Custom", "value");
+        response.setHeader("Content-Disposition", "attachment; filename=\"\u00fcber.txt\"");
+
+        ResponseEncoder encoder = new ResponseEncoder();
+        String head = decode(encoder.encodeHead(response));
+
+        assertTrue(head.startsWith("HTTP/1.1 201 Created\r\n"));
+        assertTrue(head.contains("\r\nContent-Length: 5\r\n"));
+        assertTrue(head.contains("\r\nX-Custom: value\r\n"));
+        assertTrue(head.contains("\r\nContent-Disposition: attachment; filename=\"\u00fcber.txt\"\r\n"));
+        assertTrue(head.contains("\r\nDate: " + response.getHeader("Date") + "\r\n"));
+        assertTrue(head.endsWith("\r\n\r\n"));
+        assertEquals(head, new String(response.getHeadBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReuseBuffer() {
+        ResponseEncoder encoder = new ResponseEncoder();
+        Response large = new Response("large");
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 3000; i++) value.append('x');
+        large.setHeader("X-Large", value.toString());
+        assertTrue(encoder.encodeHead(large).remaining() > 3000);
+
+        Response small = new Response("small");
+        byte[] expected = small.getHeadBytes();
+        assertArrayEquals(expected, encoder.encodeHeadBytes(small));
+    }
+}
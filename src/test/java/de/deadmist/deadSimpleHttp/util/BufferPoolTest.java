@@ -0,0 +1,83 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(4);
+
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).capacity());
+        assertEquals(8 * 1024, pool.acquire(5000).capacity());
+        assertEquals(16 * 1024, pool.acquire(16 * 1024).capacity());
+        assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).capacity());
+        assertEquals(4, pool.getAllocated());
+        assertEquals(4, pool.getInUse());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(4);
+
+        ByteBuffer heap = pool.acquire(8 * 1024);
+        heap.put((byte) 1);
+        pool.release(heap);
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(8 * 1024, pool.getPooledBytes());
+
+        //The free buffer is handed out again, cleared
+        ByteBuffer reused = pool.acquire(6 * 1024);
+        assertSame(heap, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+
+        //Direct buffers are pooled separately
+        pool.release(reused);
+        ByteBuffer direct = pool.acquireDirect(8 * 1024);
+        assertTrue(direct.isDirect());
+        assertNotSame(heap, direct);
+        pool.release(direct);
+        assertSame(direct, pool.acquireDirect(8 * 1024));
+
+        //Oversized buffers are dropped
+        pool.release(pool.acquire(BufferPool.MAX_SIZE * 2));
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(3, pool.getAllocated());
+    }
+
+    @Test
+    public void testPoolLimit() {
+        BufferPool pool = new BufferPool(1);
+        ByteBuffer first = pool.acquire(4 * 1024);
+        ByteBuffer second = pool.acquire(4 * 1024);
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testDoubleRelease() {
+        BufferPool pool = new BufferPool(4);
+        pool.setLeakDetection(true);
+
+        ByteBuffer buffer = pool.acquire(4 * 1024);
+        pool.release(buffer);
+        pool.release(buffer);
+
+        //The second release is ignored, the buffer is only pooled once
+        assertEquals(1, pool.getReleased());
+        assertEquals(1, pool.getPooledCount());
+        assertNotSame(pool.acquire(4 * 1024), pool.acquire(4 * 1024));
+        assertEquals(0, pool.getLeaks());
+    }
+}
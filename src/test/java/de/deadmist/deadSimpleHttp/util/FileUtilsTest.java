@@ -1,20 +1,50 @@
 package de.deadmist.deadSimpleHttp.util;
 
+import org.junit.After;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * Created by Deadmist on 28/12/15.
  */
 public class FileUtilsTest {
 
+    @After
+    public void resetMimeTypes() {
+        //The registry is global, later tests must not see the types registered here
+        MimeTypes.reset();
+    }
+
     @Test
     public void testGetMimeType() throws Exception {
         assertEquals("text/css", FileUtils.getMimeType(new File("test.css")));
         assertEquals("text/html", FileUtils.getMimeType(new File("htmlTest.html")));
-        //assertEquals("audio/mpeg", FileUtils.getMimeType(new File("test.mp3")));
+        assertEquals("audio/mpeg", FileUtils.getMimeType(new File("test.mp3")));
+        assertEquals("image/jpeg", FileUtils.getMimeType(new File("dir.v2/Photo.JPG")));
+    }
+
+    @Test
+    public void testExtendMimeTypes() throws Exception {
+        assertNull(MimeTypes.getMimeType("model.glb"));
+        assertNull(MimeTypes.getMimeType("README"));
+
+        MimeTypes.load(new ByteArrayInputStream(("# Comment\n" +
+                "types {\n" +
+                "    model/gltf-binary glb;\n" +
+                "    model/gltf+json   gltf;\n" +
+                "}\n" +
+                "application/x-custom cst cst2\n").getBytes(StandardCharsets.UTF_8)));
+        assertEquals("model/gltf-binary", MimeTypes.getMimeType("model.glb"));
+        assertEquals("model/gltf+json", MimeTypes.getMimeType("scene.gltf"));
+        assertEquals("application/x-custom", MimeTypes.getMimeType("a.cst2"));
+
+        MimeTypes.register("cst", "application/x-other");
+        assertEquals("application/x-other", MimeTypes.getMimeType("a.cst"));
     }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import de.deadmist.deadSimpleHttp.structures.Response;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class StandardResponsesTest {
+
+    @Test
+    public void testFixedResponses() throws IOException {
+        Response first = StandardResponses.create404();
+        Response second = StandardResponses.create404();
+
+        assertNotSame(first, second);
+        assertTrue(new String(first.getHeadBytes(), StandardCharsets.UTF_8).startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertEquals("text/html; charset=utf-8", first.getHeader("Content-Type"));
+        assertTrue(body(first).contains("<h2>404 Not Found</h2>"));
+        //The page is shared, nobody gets to change it for the following responses
+        assertTrue(first.getBodyBuffer().isReadOnly());
+        assertEquals(body(first), body(second));
+
+        //Headers added to one response must not show up in the next
+        first.setHeader("Connection", "close");
+        assertEquals(null, second.getHeader("Connection"));
+        assertEquals(null, StandardResponses.create404().getHeader("Connection"));
+
+        Response busy = StandardResponses.create503(5);
+        assertTrue(new String(busy.getHeadBytes(), StandardCharsets.UTF_8).startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertEquals("5", busy.getHeader("Retry-After"));
+        assertTrue(new String(StandardResponses.create504().getHeadBytes(), StandardCharsets.UTF_8)
+                .startsWith("HTTP/1.1 504 Gateway Timeout\r\n"));
+    }
+
+    @Test
+    public void testParameterIsEscaped() {
+        Response r = StandardResponses.create301("/new?a=1&b=<script>");
+        String body = new String(r.getBody(), StandardCharsets.UTF_8);
+
+        assertEquals("/new?a=1&b=<script>", r.getHeader("Location"));
+        assertTrue(body.contains("moved permanently to /new?a=1&amp;b=&lt;script&gt; </p>"));
+        assertFalse(body.contains("<script>"));
+
+        body = new String(StandardResponses.create400("bad").getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.endsWith("<p>Additional Reason: bad</p></body></html>"));
+    }
+
+    private static String body(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeBody(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package de.deadmist.deadSimpleHttp.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testExpiryOrderAndCancel() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 4);
+        final List<String> expired = new ArrayList<>();
+
+        wheel.schedule(() -> expired.add("late"), 60);
+        wheel.schedule(() -> expired.add("early"), 10);
+        TimerWheel.Timeout cancelled = wheel.schedule(() -> expired.add("cancelled"), 10);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(2, wheel.getPendingCount());
+
+        wheel.advance();
+        assertTrue(expired.isEmpty());
+
+        Thread.sleep(30);
+        wheel.advance();
+        assertEquals("[early]", expired.toString());
+
+        //Longer than one revolution of the wheel, never early
+        Thread.sleep(40);
+        wheel.advance();
+        assertEquals("[early, late]", expired.toString());
+        assertEquals(0, wheel.getPendingCount());
+        assertFalse(cancelled.isExpired());
+    }
+
+    @Test
+    public void testOwnThread() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 64);
+        final Object done = new Object();
+        final boolean[] ran = {false};
+        wheel.start("test-timer");
+        try {
+            synchronized (done) {
+                wheel.schedule(() -> {
+                    synchronized (done) {
+                        ran[0] = true;
+                        done.notifyAll();
+                    }
+                }, 20);
+                done.wait(2000);
+            }
+        } finally {
+            wheel.stop();
+        }
+        assertTrue(ran[0]);
+    }
+}